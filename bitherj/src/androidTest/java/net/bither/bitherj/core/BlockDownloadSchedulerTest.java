@@ -0,0 +1,332 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.bither.bitherj.core;
+
+import net.bither.bitherj.net.TimingWheel;
+import net.bither.bitherj.test.ApplicationTest;
+import net.bither.bitherj.utils.Sha256Hash;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs downloads against stub peers that never connect, on a wheel moved by hand, and looks at
+ * what the scheduler asks its listener to do.
+ */
+public class BlockDownloadSchedulerTest extends ApplicationTest {
+    private TimingWheel wheel;
+    private BlockDownloadScheduler scheduler;
+    private Random random = new Random(42);
+
+    // what the listener was asked to do
+    private LinkedHashMap<Peer, List<Sha256Hash>> requested;
+    private List<Block> relayed;
+    private Peer finishedPeer;
+    private Block finishedBlock;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        requested = new LinkedHashMap<Peer, List<Sha256Hash>>();
+        relayed = new ArrayList<Block>();
+        finishedPeer = null;
+        finishedBlock = null;
+        wheel = new TimingWheel(100, 512);
+        scheduler = new BlockDownloadScheduler(new BlockDownloadScheduler.Listener() {
+            @Override
+            public void requestBlocks(Peer peer, List<Sha256Hash> blockHashes) {
+                List<Sha256Hash> hashes = requested.get(peer);
+                if (hashes == null) {
+                    hashes = new ArrayList<Sha256Hash>();
+                    requested.put(peer, hashes);
+                }
+                hashes.addAll(blockHashes);
+            }
+
+            @Override
+            public void relayBlock(Peer fromPeer, Block block) {
+                relayed.add(block);
+            }
+
+            @Override
+            public void downloadFinished(Peer downloadPeer, Block lastBlock) {
+                finishedPeer = downloadPeer;
+                finishedBlock = lastBlock;
+            }
+        }, wheel, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+    public void testOutOfOrderArrival() throws Exception {
+        Peer p1 = newPeer(1);
+        Peer p2 = newPeer(2);
+        scheduler.setMaxBlocksInFlight(2);
+        scheduler.peerConnected(p1);
+        scheduler.peerConnected(p2);
+        List<Block> blocks = newBlocks(4);
+
+        assertTrue(scheduler.schedule(p1, hashesOf(blocks)));
+        assertTrue(scheduler.isDownloading());
+        // handed out in order to the peer with the most room
+        assertEquals(hashesOf(blocks, 0, 2), requested.get(p1));
+        assertEquals(hashesOf(blocks, 1, 3), requested.get(p2));
+
+        assertTrue(scheduler.blockReceived(p2, blocks.get(3)));
+        assertTrue(scheduler.blockReceived(p2, blocks.get(1)));
+        assertTrue(relayed.isEmpty());
+        assertTrue(scheduler.blockReceived(p1, blocks.get(0)));
+        assertEquals(blocks.subList(0, 2), relayed);
+        // a second copy is taken and not relayed again
+        assertTrue(scheduler.blockReceived(p2, blocks.get(1)));
+        assertEquals(2, relayed.size());
+        assertNull(finishedPeer);
+
+        assertTrue(scheduler.blockReceived(p1, blocks.get(2)));
+        assertEquals(blocks, relayed);
+        assertEquals(p1, finishedPeer);
+        assertSame(blocks.get(3), finishedBlock);
+        assertFalse(scheduler.isDownloading());
+        assertFalse(scheduler.blockReceived(p1, blocks.get(0)));
+        assertEquals(0, wheel.getPendingCount());
+    }
+
+    public void testExpiryRequeuesToAnotherPeer() throws Exception {
+        Peer p1 = newPeer(1);
+        Peer p2 = newPeer(2);
+        scheduler.setMaxBlocksInFlight(4);
+        scheduler.peerConnected(p1);
+        scheduler.peerConnected(p2);
+        List<Block> blocks = newBlocks(2);
+
+        scheduler.schedule(p1, hashesOf(blocks));
+        assertEquals(hashesOf(blocks, 0), requested.get(p1));
+        assertEquals(hashesOf(blocks, 1), requested.get(p2));
+        scheduler.blockReceived(p2, blocks.get(1));
+        requested.clear();
+
+        wheel.advance(BlockDownloadScheduler.REQUEST_TIMEOUT_MILLIS - 100);
+        assertTrue(requested.isEmpty());
+        wheel.advance(100);
+        assertNull(requested.get(p1));
+        assertEquals(hashesOf(blocks, 0), requested.get(p2));
+
+        scheduler.blockReceived(p2, blocks.get(0));
+        assertEquals(blocks, relayed);
+        assertEquals(p1, finishedPeer);
+        assertEquals(0, wheel.getPendingCount());
+    }
+
+    public void testRefetchDropsStaleCopies() throws Exception {
+        Peer p1 = newPeer(1);
+        Peer p2 = newPeer(2);
+        scheduler.setMaxBlocksInFlight(2);
+        scheduler.peerConnected(p1);
+        scheduler.peerConnected(p2);
+        List<Block> blocks = newBlocks(4);
+        scheduler.schedule(p1, hashesOf(blocks));
+        // in, but through the old filter
+        scheduler.blockReceived(p2, blocks.get(1));
+        requested.clear();
+
+        scheduler.refetch();
+        assertEquals(hashesOf(blocks, 0, 2), requested.get(p1));
+        assertEquals(hashesOf(blocks, 3), requested.get(p2));
+        requested.clear();
+
+        // the copies asked for before the change come first and are dropped
+        assertTrue(scheduler.blockReceived(p1, blocks.get(0)));
+        assertTrue(scheduler.blockReceived(p1, blocks.get(2)));
+        assertTrue(requested.isEmpty());
+        assertTrue(scheduler.blockReceived(p2, blocks.get(3)));
+        assertTrue(relayed.isEmpty());
+        // the room of the stale copy goes to the block the peer sent through the old filter
+        assertEquals(hashesOf(blocks, 1), requested.get(p2));
+
+        scheduler.blockReceived(p1, blocks.get(2));
+        scheduler.blockReceived(p1, blocks.get(0));
+        scheduler.blockReceived(p2, blocks.get(3));
+        assertEquals(1, relayed.size());
+        scheduler.blockReceived(p2, blocks.get(1));
+        assertEquals(blocks, relayed);
+        assertSame(blocks.get(3), finishedBlock);
+    }
+
+    public void testPeerLostMidWindow() throws Exception {
+        Peer p1 = newPeer(1);
+        Peer p2 = newPeer(2);
+        Peer p3 = newPeer(3);
+        scheduler.setMaxBlocksInFlight(3);
+        scheduler.peerConnected(p1);
+        scheduler.peerConnected(p2);
+        scheduler.peerConnected(p3);
+        List<Block> blocks = newBlocks(4);
+        scheduler.schedule(p1, hashesOf(blocks));
+        assertEquals(hashesOf(blocks, 0, 3), requested.get(p1));
+        assertEquals(hashesOf(blocks, 1), requested.get(p2));
+        assertEquals(hashesOf(blocks, 2), requested.get(p3));
+        requested.clear();
+
+        p2.state = Peer.State.Disconnected;
+        scheduler.peerDisconnected(p2);
+        assertEquals(hashesOf(blocks, 1), requested.get(p3));
+        // its timeout went with it
+        assertEquals(4, wheel.getPendingCount());
+        wheel.advance(BlockDownloadScheduler.REQUEST_TIMEOUT_MILLIS - 100);
+
+        for (Block block : blocks) {
+            scheduler.blockReceived(block == blocks.get(0) || block == blocks.get(3) ? p1 : p3,
+                    block);
+        }
+        assertEquals(blocks, relayed);
+        assertEquals(0, wheel.getPendingCount());
+    }
+
+    public void testDownloadPeerLost() throws Exception {
+        Peer p1 = newPeer(1);
+        Peer p2 = newPeer(2);
+        scheduler.peerConnected(p1);
+        scheduler.peerConnected(p2);
+        List<Block> blocks = newBlocks(4);
+        scheduler.schedule(p1, hashesOf(blocks));
+        scheduler.blockReceived(p2, blocks.get(1));
+
+        p1.state = Peer.State.Disconnected;
+        scheduler.peerDisconnected(p1);
+        // the next download peer announces the hashes again
+        assertFalse(scheduler.isDownloading());
+        assertFalse(scheduler.isScheduled(hashesOf(blocks).get(0)));
+        assertEquals(0, wheel.getPendingCount());
+        assertFalse(scheduler.blockReceived(p2, blocks.get(0)));
+        assertTrue(relayed.isEmpty());
+    }
+
+    public void testWindowShrinksOnExpiryAndGrowsBack() throws Exception {
+        Peer p1 = newPeer(1);
+        scheduler.setMaxBlocksInFlight(4);
+        scheduler.peerConnected(p1);
+        List<Block> blocks = newBlocks(6);
+        scheduler.schedule(p1, hashesOf(blocks));
+        assertEquals(hashesOf(blocks, 0, 1, 2, 3), requested.get(p1));
+        requested.clear();
+
+        // every expiry halves the window, 4 2 1 1, with no other peer they go back to it one
+        // at a time
+        wheel.advance(BlockDownloadScheduler.REQUEST_TIMEOUT_MILLIS);
+        assertEquals(hashesOf(blocks, 0), requested.get(p1));
+        requested.clear();
+
+        // each delivered block grows it by one again
+        scheduler.blockReceived(p1, blocks.get(0));
+        assertEquals(hashesOf(blocks, 1, 2), requested.get(p1));
+        requested.clear();
+        scheduler.blockReceived(p1, blocks.get(1));
+        assertEquals(hashesOf(blocks, 3, 4), requested.get(p1));
+        requested.clear();
+
+        // a lower maximum shrinks the window at once
+        scheduler.setMaxBlocksInFlight(1);
+        scheduler.blockReceived(p1, blocks.get(2));
+        assertNull(requested.get(p1));
+        scheduler.blockReceived(p1, blocks.get(3));
+        assertNull(requested.get(p1));
+        scheduler.blockReceived(p1, blocks.get(4));
+        assertEquals(hashesOf(blocks, 5), requested.get(p1));
+    }
+
+    public void testGivenUpStaleCopiesFreeRoom() throws Exception {
+        Peer p1 = newPeer(1);
+        Peer p2 = newPeer(2);
+        scheduler.setMaxBlocksInFlight(2);
+        scheduler.peerConnected(p1);
+        scheduler.peerConnected(p2);
+        List<Block> blocks = newBlocks(2);
+        scheduler.schedule(p1, hashesOf(blocks));
+        scheduler.refetch();
+        requested.clear();
+
+        // neither peer sends anything, each window is down to one block and the stale copies
+        // of the requests given up on do not take it
+        wheel.advance(BlockDownloadScheduler.REQUEST_TIMEOUT_MILLIS);
+        assertEquals(hashesOf(blocks, 1), requested.get(p1));
+        assertEquals(hashesOf(blocks, 0), requested.get(p2));
+
+        scheduler.blockReceived(p2, blocks.get(0));
+        scheduler.blockReceived(p1, blocks.get(1));
+        assertEquals(blocks, relayed);
+    }
+
+    public void testOnlyPeersAtTheDownloadHeight() throws Exception {
+        Peer p1 = newPeer(1);
+        Peer behind = newPeer(2);
+        behind.lastBlockHeight = p1.lastBlockHeight - 1;
+        scheduler.peerConnected(behind);
+        List<Block> blocks = newBlocks(2);
+        // no window for the download peer yet, it asks itself
+        p1.state = Peer.State.Connecting;
+        assertFalse(scheduler.schedule(p1, hashesOf(blocks)));
+
+        p1.state = Peer.State.Connected;
+        scheduler.peerConnected(p1);
+        assertTrue(scheduler.schedule(p1, hashesOf(blocks)));
+        assertEquals(hashesOf(blocks, 0, 1), requested.get(p1));
+        assertNull(requested.get(behind));
+    }
+
+    private Peer newPeer(int n) throws Exception {
+        Peer peer = new Peer(InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) n}));
+        peer.state = Peer.State.Connected;
+        peer.lastBlockHeight = 320000;
+        return peer;
+    }
+
+    private List<Block> newBlocks(int count) {
+        List<Block> blocks = new ArrayList<Block>();
+        byte[] prev = new byte[32];
+        for (int i = 0; i < count; i++) {
+            byte[] hash = new byte[32];
+            byte[] root = new byte[32];
+            random.nextBytes(hash);
+            random.nextBytes(root);
+            blocks.add(new Block(hash, 2, prev, root, 1407474112 + i, 406305378,
+                    random.nextInt() & 0xffffffffL, 320001 + i, true));
+            prev = hash;
+        }
+        return blocks;
+    }
+
+    private static List<Sha256Hash> hashesOf(List<Block> blocks, int... indexes) {
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        if (indexes.length == 0) {
+            for (Block block : blocks) {
+                hashes.add(new Sha256Hash(block.getBlockHash()));
+            }
+        }
+        for (int i : indexes) {
+            hashes.add(new Sha256Hash(blocks.get(i).getBlockHash()));
+        }
+        return hashes;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bither.bitherj.core;
+
+import net.bither.bitherj.test.ApplicationTest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * An index of four headers, small enough that every test wraps the ring.
+ */
+public class MainChainIndexTest extends ApplicationTest {
+    private MainChainIndex index;
+    private Random random = new Random(42);
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        index = new MainChainIndex(4);
+    }
+
+    public void testEmpty() {
+        assertEquals(-1, index.getLowestBlockNo());
+        assertNull(index.get(0));
+        assertNull(index.get(-1));
+    }
+
+    public void testRingWrapAround() {
+        List<Block> chain = newChain(new byte[32], 100, 10);
+        for (Block block : chain) {
+            index.append(block);
+        }
+        assertEquals(106, index.getLowestBlockNo());
+        for (int i = 6; i < 10; i++) {
+            assertSame(chain.get(i), index.get(100 + i));
+            assertTrue(index.contains(chain.get(i).getBlockHash()));
+        }
+        // the evicted headers are gone from both lookups
+        for (int i = 0; i < 6; i++) {
+            assertNull(index.get(100 + i));
+            assertFalse(index.contains(chain.get(i).getBlockHash()));
+        }
+    }
+
+    public void testLookupsJustOutsideWindow() {
+        index.load(newChain(new byte[32], 100, 6));
+        assertEquals(102, index.getLowestBlockNo());
+        assertNotNull(index.get(102));
+        assertNotNull(index.get(105));
+        // these share their slots with 105 and 102
+        assertNull(index.get(101));
+        assertNull(index.get(106));
+        assertNull(index.get(109));
+        assertNull(index.get(98));
+    }
+
+    public void testAppendNotFollowingTipStartsOver() {
+        List<Block> chain = newChain(new byte[32], 100, 3);
+        index.load(chain);
+        Block gap = newChain(chain.get(2).getBlockHash(), 104, 1).get(0);
+        index.append(gap);
+        assertEquals(104, index.getLowestBlockNo());
+        assertNull(index.get(102));
+        assertFalse(index.contains(chain.get(2).getBlockHash()));
+
+        // right height, other parent
+        Block other = newChain(new byte[32], 105, 1).get(0);
+        index.append(other);
+        assertEquals(105, index.getLowestBlockNo());
+        assertSame(other, index.get(105));
+        assertFalse(index.contains(gap.getBlockHash()));
+    }
+
+    public void testTruncateAndRefillAfterReorg() {
+        List<Block> chain = newChain(new byte[32], 100, 10);
+        index.load(chain);
+        // the fork starts above 107 and replaces 108 and 109
+        index.truncateAbove(107);
+        assertEquals(106, index.getLowestBlockNo());
+        assertSame(chain.get(7), index.get(107));
+        assertNull(index.get(108));
+        assertFalse(index.contains(chain.get(8).getBlockHash()));
+        assertFalse(index.contains(chain.get(9).getBlockHash()));
+
+        List<Block> fork = newChain(chain.get(7).getBlockHash(), 108, 3);
+        for (Block block : fork) {
+            index.append(block);
+        }
+        assertEquals(107, index.getLowestBlockNo());
+        assertSame(chain.get(7), index.get(107));
+        for (int i = 0; i < 3; i++) {
+            assertSame(fork.get(i), index.get(108 + i));
+            assertTrue(index.contains(fork.get(i).getBlockHash()));
+        }
+        // the refill wrapped over 106
+        assertNull(index.get(106));
+        assertFalse(index.contains(chain.get(6).getBlockHash()));
+        assertFalse(index.contains(chain.get(9).getBlockHash()));
+    }
+
+    public void testTruncateBelowWindow() {
+        List<Block> chain = newChain(new byte[32], 100, 10);
+        index.load(chain);
+        index.truncateAbove(105);
+        assertEquals(-1, index.getLowestBlockNo());
+        assertNull(index.get(105));
+        assertFalse(index.contains(chain.get(6).getBlockHash()));
+
+        // whatever comes next starts a new index
+        index.append(chain.get(6));
+        assertEquals(106, index.getLowestBlockNo());
+        assertSame(chain.get(6), index.get(106));
+    }
+
+    private List<Block> newChain(byte[] prev, int fromBlockNo, int count) {
+        List<Block> blocks = new ArrayList<Block>();
+        for (int i = 0; i < count; i++) {
+            byte[] hash = new byte[32];
+            byte[] root = new byte[32];
+            random.nextBytes(hash);
+            random.nextBytes(root);
+            blocks.add(new Block(hash, 2, prev, root, 1407474112 + i, 406305378,
+                    random.nextInt() & 0xffffffffL, fromBlockNo + i, true));
+            prev = hash;
+        }
+        return blocks;
+    }
+}
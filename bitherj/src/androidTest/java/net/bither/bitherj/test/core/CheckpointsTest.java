@@ -0,0 +1,55 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.bither.bitherj.test.core;
+
+import net.bither.bitherj.core.BitherjSettings;
+import net.bither.bitherj.core.Block;
+import net.bither.bitherj.core.Checkpoints;
+import net.bither.bitherj.test.ApplicationTest;
+import net.bither.bitherj.utils.Utils;
+
+import java.util.Arrays;
+
+public class CheckpointsTest extends ApplicationTest {
+    public void testBundledCheckpoints() {
+        Checkpoints checkpoints = Checkpoints.getInstance();
+        assertTrue(checkpoints.size() > 0);
+
+        Block genesis = checkpoints.getCheckpoint(0);
+        assertTrue(Arrays.equals(BitherjSettings.GENESIS_BLOCK_HASH, genesis.getBlockHash()));
+        assertNull(checkpoints.getCheckpoint(1));
+
+        Block block = checkpoints.getCheckpoint(314496);
+        assertEquals("000000000000000030E597A72386C512D830B08ECC70B254F46033FD06F2BF93", Utils
+                .bytesToHexString(Utils.reverseBytes(block.getBlockHash())));
+        assertTrue(block.isMain());
+
+        // the boundary headers the sample and PeerManagerTest start their chain from
+        assertEquals("0000000000000000092DBE12467F95D456D9BD7FF12B88DC3BCDD28B4A7AA159", Utils
+                .bytesToHexString(Utils.reverseBytes(checkpoints.getCheckpoint(298368)
+                        .getBlockHash())));
+        assertEquals("0000000000000000472132C4DAAF358ACAF461FF1C3E96577A74E5EBF91BB170", Utils
+                .bytesToHexString(Utils.reverseBytes(checkpoints.getCheckpoint(302400)
+                        .getBlockHash())));
+
+        assertEquals(314496, checkpoints.getCheckpointBefore(1407474112).getBlockNo());
+        assertEquals(302400, checkpoints.getCheckpointBefore(1407474111).getBlockNo());
+        assertEquals(298368, checkpoints.getCheckpointBefore(1400928749).getBlockNo());
+        assertEquals(0, checkpoints.getCheckpointBefore(1398811174).getBlockNo());
+        assertNull(checkpoints.getCheckpointBefore(1231006504));
+    }
+}
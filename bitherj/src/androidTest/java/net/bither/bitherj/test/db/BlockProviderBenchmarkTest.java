@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.bither.bitherj.test.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import net.bither.bitherj.BitherjApplication;
+import net.bither.bitherj.core.Block;
+import net.bither.bitherj.db.BlockProvider;
+import net.bither.bitherj.db.IBlockProvider;
+import net.bither.bitherj.test.ApplicationTest;
+import net.bither.bitherj.utils.Utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the per call latency of the block lookups chain sync runs on every header against the
+ * old way of building each query as a new sql string.
+ */
+public class BlockProviderBenchmarkTest extends ApplicationTest {
+    private static final Logger log = LoggerFactory.getLogger(BlockProviderBenchmarkTest.class);
+
+    private static final int BLOCK_COUNT = 500;
+    private static final int ROUNDS = 4;
+
+    private List<Block> blocks = new ArrayList<Block>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Random random = new Random(42);
+        byte[] prev = new byte[32];
+        for (int i = 0; i < BLOCK_COUNT; i++) {
+            byte[] hash = new byte[32];
+            byte[] root = new byte[32];
+            random.nextBytes(hash);
+            random.nextBytes(root);
+            blocks.add(new Block(hash, 2, prev, root, 1407474112 + i, 406305378, random.nextInt
+                    (), 900000 + i, true));
+            prev = hash;
+        }
+        BlockProvider.getInstance().addBlocks(blocks);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (Block block : blocks) {
+            BlockProvider.getInstance().removeBlock(block.getBlockHash());
+        }
+        super.tearDown();
+    }
+
+    public void testLookupLatency() {
+        IBlockProvider provider = BlockProvider.getInstance();
+        SQLiteDatabase db = BitherjApplication.mDbHelper.getReadableDatabase();
+        long concatGetBlock = 0;
+        long concatIsExist = 0;
+        long concatMainChain = 0;
+        long boundGetBlock = 0;
+        long boundIsExist = 0;
+        long boundMainChain = 0;
+        // the first round only warms up both paths
+        for (int round = 0; round <= ROUNDS; round++) {
+            long begin = System.nanoTime();
+            for (Block block : blocks) {
+                assertTrue(concatQueryCount(db, "select * from blocks where block_hash=" +
+                        toLiteral(block.getBlockHash())) == 1);
+            }
+            long concatGetBlockRound = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            for (Block block : blocks) {
+                assertTrue(concatQueryCount(db, "select count(0) from blocks where block_hash=" +
+                        toLiteral(block.getBlockHash())) == 1);
+            }
+            long concatIsExistRound = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            for (Block block : blocks) {
+                assertTrue(concatQueryCount(db, "select * from blocks where block_hash=" +
+                        toLiteral(block.getBlockHash()) + " and is_main=1") == 1);
+            }
+            long concatMainChainRound = System.nanoTime() - begin;
+
+            begin = System.nanoTime();
+            for (Block block : blocks) {
+                assertNotNull(provider.getBlock(block.getBlockHash()));
+            }
+            long boundGetBlockRound = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            for (Block block : blocks) {
+                assertTrue(provider.isExist(block.getBlockHash()));
+            }
+            long boundIsExistRound = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            for (Block block : blocks) {
+                assertNotNull(provider.getMainChainBlock(block.getBlockHash()));
+            }
+            long boundMainChainRound = System.nanoTime() - begin;
+
+            if (round > 0) {
+                concatGetBlock += concatGetBlockRound;
+                concatIsExist += concatIsExistRound;
+                concatMainChain += concatMainChainRound;
+                boundGetBlock += boundGetBlockRound;
+                boundIsExist += boundIsExistRound;
+                boundMainChain += boundMainChainRound;
+            }
+        }
+        int calls = ROUNDS * BLOCK_COUNT;
+        log.info("getBlock: concat {} us/call, bound {} us/call", concatGetBlock / calls / 1000,
+                boundGetBlock / calls / 1000);
+        log.info("isExist: concat {} us/call, bound {} us/call", concatIsExist / calls / 1000,
+                boundIsExist / calls / 1000);
+        log.info("getMainChainBlock: concat {} us/call, bound {} us/call", concatMainChain /
+                calls / 1000, boundMainChain / calls / 1000);
+    }
+
+    private int concatQueryCount(SQLiteDatabase db, String sql) {
+        Cursor c = db.rawQuery(sql, null);
+        int result = 0;
+        if (c.moveToNext()) {
+            result = c.getColumnCount() == 1 ? c.getInt(0) : 1;
+        }
+        c.close();
+        return result;
+    }
+
+    private static String toLiteral(byte[] bytes) {
+        return "x'" + Utils.bytesToHexString(bytes) + "'";
+    }
+}
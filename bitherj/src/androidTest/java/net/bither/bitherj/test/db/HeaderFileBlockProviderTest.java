@@ -0,0 +1,225 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.bither.bitherj.test.db;
+
+import net.bither.bitherj.BitherjApplication;
+import net.bither.bitherj.core.Block;
+import net.bither.bitherj.db.HeaderFileBlockProvider;
+import net.bither.bitherj.test.ApplicationTest;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reopens, rewrites and compacts a header file the way a crash or a long sync would leave it.
+ */
+public class HeaderFileBlockProviderTest extends ApplicationTest {
+    // the file layout documented on HeaderFileBlockProvider
+    private static final int FILE_HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 128;
+
+    private File file;
+    private Random random = new Random(42);
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = new File(BitherjApplication.mContext.getCacheDir(), "header_file_test.dat");
+        deleteFiles();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteFiles();
+        super.tearDown();
+    }
+
+    public void testReopenAfterTornLastRecord() throws Exception {
+        List<Block> chain = newChain(new byte[32], 900000, 10);
+        new HeaderFileBlockProvider(file).addBlocks(chain);
+
+        // a crash halfway through the last append leaves its second half unwritten
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(FILE_HEADER_SIZE + 9 * RECORD_SIZE + RECORD_SIZE / 2);
+        raf.write(new byte[RECORD_SIZE / 2]);
+        raf.close();
+
+        HeaderFileBlockProvider provider = new HeaderFileBlockProvider(file);
+        assertEquals(9, provider.getBlockCount());
+        assertFalse(provider.isExist(chain.get(9).getBlockHash()));
+        assertSameBlock(chain.get(8), provider.getLastBlock());
+        for (int i = 0; i < 9; i++) {
+            assertSameBlock(chain.get(i), provider.getMainChainBlock(900000 + i));
+        }
+
+        // the torn record is cut off, so the block goes back in its place
+        provider.addBlock(chain.get(9));
+        provider = new HeaderFileBlockProvider(file);
+        assertEquals(10, provider.getBlockCount());
+        assertSameBlock(chain.get(9), provider.getLastBlock());
+    }
+
+    public void testFlagsSurviveRewrite() throws Exception {
+        List<Block> chain = newChain(new byte[32], 900000, 10);
+        List<Block> fork = newChain(chain.get(6).getBlockHash(), 900007, 5);
+        for (Block block : fork) {
+            block.setMain(false);
+        }
+        HeaderFileBlockProvider provider = new HeaderFileBlockProvider(file);
+        provider.addBlocks(chain);
+        provider.addBlocks(fork);
+
+        // the fork overtakes the old tip, as BlockChain rewrites the flags on a reorg
+        for (int i = 7; i < 10; i++) {
+            provider.updateBlock(chain.get(i).getBlockHash(), false);
+            chain.get(i).setMain(false);
+        }
+        for (Block block : fork) {
+            provider.updateBlock(block.getBlockHash(), true);
+            block.setMain(true);
+        }
+
+        provider = new HeaderFileBlockProvider(file);
+        assertEquals(15, provider.getBlockCount());
+        for (int i = 0; i < 7; i++) {
+            assertTrue(provider.getBlock(chain.get(i).getBlockHash()).isMain());
+        }
+        for (int i = 7; i < 10; i++) {
+            assertFalse(provider.getBlock(chain.get(i).getBlockHash()).isMain());
+            assertNull(provider.getMainChainBlock(chain.get(i).getBlockHash()));
+        }
+        for (Block block : fork) {
+            assertSameBlock(block, provider.getMainChainBlock(block.getBlockNo()));
+            assertTrue(provider.getBlock(block.getBlockHash()).isMain());
+        }
+        assertSameBlock(fork.get(4), provider.getLastBlock());
+        assertSameBlock(chain.get(9), provider.getLastOrphanBlock());
+    }
+
+    public void testCompactionKeepsMainChain() throws Exception {
+        List<Block> chain = newChain(new byte[32], 900000, 40);
+        List<Block> orphans = newChain(chain.get(19).getBlockHash(), 900020, 5);
+        for (Block block : orphans) {
+            block.setMain(false);
+        }
+        HeaderFileBlockProvider provider = new HeaderFileBlockProvider(file);
+        provider.addBlocks(chain);
+        provider.addBlocks(orphans);
+
+        assertEquals(25, provider.removeOldBlocks(900020, 900030, 100));
+        assertEquals(25 * RECORD_SIZE, provider.reclaimSpace());
+        assertEquals(0, provider.reclaimSpace());
+
+        for (HeaderFileBlockProvider p : Arrays.asList(provider, new HeaderFileBlockProvider
+                (file))) {
+            assertEquals(20, p.getBlockCount());
+            assertNull(p.getLastOrphanBlock());
+            for (int i = 0; i < 20; i++) {
+                assertNull(p.getBlock(chain.get(i).getBlockHash()));
+            }
+            List<Block> mainChain = p.getMainChainBlocksFrom(0);
+            assertEquals(20, mainChain.size());
+            for (int i = 0; i < 20; i++) {
+                assertSameBlock(chain.get(20 + i), mainChain.get(i));
+            }
+            assertSameBlock(chain.get(39), p.getLastBlock());
+        }
+
+        // appending after the rewrite goes on from the compacted end
+        Block next = newChain(chain.get(39).getBlockHash(), 900040, 1).get(0);
+        provider.addBlock(next);
+        provider = new HeaderFileBlockProvider(file);
+        assertEquals(21, provider.getBlockCount());
+        assertSameBlock(next, provider.getLastBlock());
+    }
+
+    public void testOrphanLookups() throws Exception {
+        List<Block> chain = newChain(new byte[32], 900000, 10);
+        List<Block> fork = newChain(chain.get(4).getBlockHash(), 900005, 3);
+        for (Block block : fork) {
+            block.setMain(false);
+        }
+        HeaderFileBlockProvider provider = new HeaderFileBlockProvider(file);
+        provider.addBlocks(chain);
+        provider.addBlocks(fork);
+
+        assertSameBlock(fork.get(2), provider.getLastOrphanBlock());
+        assertSameBlock(fork.get(0), provider.getOrphanBlockByPrevHash(chain.get(4)
+                .getBlockHash()));
+        assertSameBlock(fork.get(1), provider.getOrphanBlockByPrevHash(fork.get(0)
+                .getBlockHash()));
+        // a main chain child is not an orphan
+        assertNull(provider.getOrphanBlockByPrevHash(chain.get(5).getBlockHash()));
+        List<Block> from = provider.getBlocksFrom(900006);
+        assertEquals(4, from.size());
+        assertEquals(900009, from.get(0).getBlockNo());
+        assertEquals(900007, from.get(from.size() - 1).getBlockNo());
+
+        // connecting an orphan and dropping the newest one move the lookups along
+        provider.updateBlock(fork.get(0).getBlockHash(), true);
+        fork.get(0).setMain(true);
+        provider.updateBlock(chain.get(5).getBlockHash(), false);
+        chain.get(5).setMain(false);
+        provider.removeBlock(fork.get(2).getBlockHash());
+        assertSameBlock(chain.get(5), provider.getOrphanBlockByPrevHash(chain.get(4)
+                .getBlockHash()));
+        assertSameBlock(fork.get(1), provider.getLastOrphanBlock());
+        assertEquals(3, provider.getBlocksFrom(900006).size());
+
+        provider = new HeaderFileBlockProvider(file);
+        assertSameBlock(fork.get(1), provider.getLastOrphanBlock());
+        assertSameBlock(chain.get(5), provider.getOrphanBlockByPrevHash(chain.get(4)
+                .getBlockHash()));
+        assertNull(provider.getOrphanBlockByPrevHash(fork.get(1).getBlockHash()));
+    }
+
+    private List<Block> newChain(byte[] prev, int fromBlockNo, int count) {
+        List<Block> blocks = new ArrayList<Block>();
+        for (int i = 0; i < count; i++) {
+            byte[] hash = new byte[32];
+            byte[] root = new byte[32];
+            random.nextBytes(hash);
+            random.nextBytes(root);
+            blocks.add(new Block(hash, 2, prev, root, 1407474112 + i, 406305378,
+                    random.nextInt() & 0xffffffffL, fromBlockNo + i, true));
+            prev = hash;
+        }
+        return blocks;
+    }
+
+    private static void assertSameBlock(Block expected, Block actual) {
+        assertNotNull(actual);
+        assertTrue(Arrays.equals(expected.getBlockHash(), actual.getBlockHash()));
+        assertTrue(Arrays.equals(expected.getBlockPrev(), actual.getBlockPrev()));
+        assertTrue(Arrays.equals(expected.getBlockRoot(), actual.getBlockRoot()));
+        assertEquals(expected.getBlockVer(), actual.getBlockVer());
+        assertEquals(expected.getBlockTime(), actual.getBlockTime());
+        assertEquals(expected.getBlockBits(), actual.getBlockBits());
+        assertEquals(expected.getBlockNonce(), actual.getBlockNonce());
+        assertEquals(expected.getBlockNo(), actual.getBlockNo());
+        assertEquals(expected.isMain(), actual.isMain());
+    }
+
+    private void deleteFiles() {
+        file.delete();
+        new File(file.getParentFile(), file.getName() + ".tmp").delete();
+    }
+}
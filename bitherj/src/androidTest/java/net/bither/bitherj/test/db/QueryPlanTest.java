@@ -0,0 +1,121 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.bither.bitherj.test.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import net.bither.bitherj.BitherjApplication;
+import net.bither.bitherj.db.AddressProvider;
+import net.bither.bitherj.db.BlockProvider;
+import net.bither.bitherj.db.PeerProvider;
+import net.bither.bitherj.db.TxProvider;
+import net.bither.bitherj.test.ApplicationTest;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Fails when a provider query reads a whole table. The providers keep their queries as constants,
+ * which are picked up by reflection. getAllBlocks, getAllPeers, getOuts,
+ * deletePeersNotInAddresses, the cleanPeers prune and the raw tx backfill walk every row by design
+ * and are the only ones still built inline.
+ */
+public class QueryPlanTest extends ApplicationTest {
+    // old sqlite prints "SCAN TABLE outs (~1000 rows)", newer ones "SCAN outs"
+    private static final Pattern FULL_SCAN = Pattern.compile("^SCAN (TABLE )?(\\w+)");
+
+    public void testNoFullTableScan() throws Exception {
+        SQLiteDatabase db = BitherjApplication.mDbHelper.getWritableDatabase();
+        // the temp tables set based statements work on, reading all of one is the point and they
+        // are not in sqlite_master, so their scans do not count
+        List<String> creates = providerStatements(TxProvider.class, "CREATE_");
+        for (String create : creates) {
+            if (create.startsWith("create temp table")) {
+                db.execSQL(create);
+            }
+        }
+        for (String create : creates) {
+            if (!create.startsWith("create temp table")) {
+                db.execSQL(create);
+            }
+        }
+
+        List<String> queries = new ArrayList<String>();
+        queries.addAll(providerQueries(BlockProvider.class));
+        queries.addAll(providerQueries(TxProvider.class));
+        queries.addAll(providerQueries(PeerProvider.class));
+        queries.addAll(providerQueries(AddressProvider.class));
+
+        // a materialized subquery shows up as "SCAN p" or "SCAN SUBQUERY 1", only tables count
+        List<String> tables = new ArrayList<String>();
+        Cursor tableCursor = db.rawQuery("select name from sqlite_master where type='table'", null);
+        try {
+            while (tableCursor.moveToNext()) {
+                tables.add(tableCursor.getString(0));
+            }
+        } finally {
+            tableCursor.close();
+        }
+
+        List<String> failures = new ArrayList<String>();
+        for (String query : queries) {
+            Cursor c = db.rawQuery("explain query plan " + query, null);
+            try {
+                int detailColumn = c.getColumnIndex("detail");
+                while (c.moveToNext()) {
+                    String detail = c.getString(detailColumn);
+                    Matcher matcher = FULL_SCAN.matcher(detail);
+                    if (matcher.find() && !detail.contains("INDEX")
+                            && tables.contains(matcher.group(2))) {
+                        failures.add(query + " -> " + detail);
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        }
+        assertTrue("full table scans:\n" + failures, failures.isEmpty());
+    }
+
+    private static List<String> providerQueries(Class<?> provider) throws Exception {
+        List<String> queries = new ArrayList<String>();
+        queries.addAll(providerStatements(provider, "QUERY_"));
+        queries.addAll(providerStatements(provider, "UPDATE_"));
+        queries.addAll(providerStatements(provider, "DELETE_"));
+        return queries;
+    }
+
+    private static List<String> providerStatements(Class<?> provider, String prefix) throws
+            Exception {
+        List<String> statements = new ArrayList<String>();
+        for (Field field : provider.getDeclaredFields()) {
+            int modifiers = field.getModifiers();
+            if (Modifier.isStatic(modifiers) && field.getType() == String.class
+                    && field.getName().startsWith(prefix)) {
+                field.setAccessible(true);
+                // a %s takes a list of placeholders
+                statements.add(((String) field.get(null)).replace("%s", "?,?,?"));
+            }
+        }
+        return statements;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bither.bitherj.test.message;
+
+import net.bither.bitherj.core.Block;
+import net.bither.bitherj.exception.ProtocolException;
+import net.bither.bitherj.message.BitcoinSerializer;
+import net.bither.bitherj.message.BlockMessage;
+import net.bither.bitherj.message.HeadersMessage;
+import net.bither.bitherj.message.InventoryMessage;
+import net.bither.bitherj.message.Message;
+import net.bither.bitherj.test.ApplicationTest;
+import net.bither.bitherj.utils.InventoryItem;
+import net.bither.bitherj.utils.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Parses messages out of larger shared arrays, the way the serializer hands out heap buffers,
+ * with bytes of other messages on both sides of the payload.
+ */
+public class MessageParseTest extends ApplicationTest {
+    private static final int OFFSET = 7;
+
+    public void testInventoryAtOffset() throws Exception {
+        InventoryMessage inv = new InventoryMessage();
+        inv.addItem(new InventoryItem(InventoryItem.Type.Block, hash(1)));
+        inv.addItem(new InventoryItem(InventoryItem.Type.Transaction, hash(2)));
+        byte[] payload = inv.bitcoinSerialize();
+        byte[] shared = embed(payload, payload);
+
+        InventoryMessage parsed = new InventoryMessage(shared, OFFSET, payload.length);
+        assertEquals(inv.getItems(), parsed.getItems());
+        assertEquals(payload.length, parsed.getMessageSize());
+    }
+
+    public void testInventoryStopsAtLimit() throws Exception {
+        InventoryMessage inv = new InventoryMessage();
+        inv.addItem(new InventoryItem(InventoryItem.Type.Block, hash(1)));
+        inv.addItem(new InventoryItem(InventoryItem.Type.Block, hash(2)));
+        byte[] payload = inv.bitcoinSerialize();
+        // the bytes right after the limit would complete the last item
+        byte[] shared = embed(payload, payload);
+        try {
+            new InventoryMessage(shared, OFFSET, payload.length - 1);
+            fail("read past the limit");
+        } catch (ProtocolException e) {
+            // expected
+        }
+    }
+
+    public void testHeadersAtOffset() throws Exception {
+        Block block = knownBlock();
+        byte[] payload = headersPayload(block, block);
+        byte[] shared = embed(payload, payload);
+
+        HeadersMessage headers = new HeadersMessage(shared, OFFSET, payload.length);
+        List<BlockMessage> parsed = headers.getBlockHeaders();
+        assertEquals(2, parsed.size());
+        for (BlockMessage header : parsed) {
+            Block parsedBlock = header.getBlock();
+            assertTrue(Arrays.equals(block.getBlockPrev(), parsedBlock.getBlockPrev()));
+            assertTrue(Arrays.equals(block.getBlockRoot(), parsedBlock.getBlockRoot()));
+            assertEquals(block.getBlockTime(), parsedBlock.getBlockTime());
+            assertEquals(block.getBlockNonce(), parsedBlock.getBlockNonce());
+            // hashed over its own 80 bytes, not from the start of the array
+            assertEquals("000000000000000030e597a72386c512d830b08ecc70b254f46033fd06f2bf93",
+                    Utils.bytesToHexString(Utils.reverseBytes(parsedBlock.getBlockHash()))
+                            .toLowerCase(Locale.US));
+        }
+    }
+
+    public void testHeadersStopAtLimit() throws Exception {
+        Block block = knownBlock();
+        byte[] payload = headersPayload(block, block);
+        byte[] shared = embed(payload, payload);
+        try {
+            new HeadersMessage(shared, OFFSET, payload.length - 81);
+            fail("read past the limit");
+        } catch (ProtocolException e) {
+            // expected
+        }
+    }
+
+    public void testSerializerParsesSharedHeapBuffer() throws Exception {
+        BitcoinSerializer serializer = new BitcoinSerializer();
+        InventoryMessage first = new InventoryMessage();
+        first.addItem(new InventoryItem(InventoryItem.Type.Transaction, hash(3)));
+        InventoryMessage second = new InventoryMessage();
+        second.addItem(new InventoryItem(InventoryItem.Type.FilteredBlock, hash(4)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize(first, out);
+        serializer.serialize(second, out);
+        byte[] messages = out.toByteArray();
+        byte[] shared = embed(messages, new byte[0]);
+
+        // a slice has a non-zero array offset as well as a position
+        ByteBuffer buffer = ByteBuffer.wrap(shared, 3, shared.length - 3).slice();
+        buffer.position(OFFSET - 3);
+        buffer.limit(OFFSET - 3 + messages.length);
+        Message parsed = serializer.deserialize(buffer);
+        assertEquals(first.getItems(), ((InventoryMessage) parsed).getItems());
+        parsed = serializer.deserialize(buffer);
+        assertEquals(second.getItems(), ((InventoryMessage) parsed).getItems());
+        assertEquals(0, buffer.remaining());
+    }
+
+    private static byte[] hash(int seed) {
+        byte[] hash = new byte[32];
+        Arrays.fill(hash, (byte) seed);
+        return hash;
+    }
+
+    // the payload at OFFSET, garbage before it and the given bytes after it
+    private static byte[] embed(byte[] payload, byte[] after) {
+        byte[] shared = new byte[OFFSET + payload.length + after.length];
+        Arrays.fill(shared, 0, OFFSET, (byte) 0xff);
+        System.arraycopy(payload, 0, shared, OFFSET, payload.length);
+        System.arraycopy(after, 0, shared, OFFSET + payload.length, after.length);
+        return shared;
+    }
+
+    private static Block knownBlock() {
+        return new Block(2, "00000000000000003711b624fbde8c77d4c7e25334cfa8bc176b7248ca67b24b",
+                "d1ce608b0e83f5b0c134d27ea6952fc55bc68b5ccf0490bbb47ea1906a7075d0",
+                1407474112, 406305378, 2798738616L, 314496);
+    }
+
+    private static byte[] headersPayload(Block... blocks) {
+        ByteBuffer payload = ByteBuffer.allocate(1 + 81 * blocks.length).order(ByteOrder
+                .LITTLE_ENDIAN);
+        payload.put((byte) blocks.length);
+        for (Block block : blocks) {
+            payload.putInt((int) block.getBlockVer());
+            payload.put(block.getBlockPrev());
+            payload.put(block.getBlockRoot());
+            payload.putInt(block.getBlockTime());
+            payload.putInt((int) block.getBlockBits());
+            payload.putInt((int) block.getBlockNonce());
+            payload.put((byte) 0);
+        }
+        return payload.array();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bither.bitherj.test.net;
+
+import com.google.common.base.Ticker;
+
+import net.bither.bitherj.net.ThroughputMeter;
+import net.bither.bitherj.test.ApplicationTest;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Meters with a time constant of 10 seconds on a clock moved by hand.
+ */
+public class ThroughputMeterTest extends ApplicationTest {
+    private static final double DELTA = 1e-9;
+
+    private static class ManualTicker extends Ticker {
+        long nanos = 0;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        void advance(long millis) {
+            nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+    }
+
+    private ManualTicker ticker;
+    private ThroughputMeter meter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ticker = new ManualTicker();
+        meter = new ThroughputMeter(10, ticker);
+    }
+
+    public void testSteadyRate() {
+        recordEverySecond(meter, 100, 60);
+        assertEquals(100, meter.getRate(), 1);
+        assertEquals(6000, meter.getTotal());
+        assertEquals(60000, meter.getAgeMillis());
+    }
+
+    public void testRateMovesOncePerInterval() {
+        ticker.advance(200);
+        meter.record(50);
+        ticker.advance(300);
+        assertEquals(0, meter.getRate(), DELTA);
+        ticker.advance(500);
+        assertEquals(50 * (1 - Math.exp(-0.1)), meter.getRate(), DELTA);
+    }
+
+    public void testDecayWithoutSamples() {
+        recordEverySecond(meter, 100, 60);
+        ticker.advance(1000);
+        double rate = meter.getRate();
+        // nothing in ten seconds, one time constant
+        ticker.advance(10000);
+        assertEquals(rate * Math.exp(-1), meter.getRate(), DELTA);
+        ticker.advance(50000);
+        assertEquals(rate * Math.exp(-6), meter.getRate(), DELTA);
+        assertTrue(meter.getRate() < 1);
+    }
+
+    public void testDecayDoesNotDependOnReads() {
+        ThroughputMeter unread = new ThroughputMeter(10, ticker);
+        for (int i = 0; i < 30; i++) {
+            meter.record(100);
+            unread.record(100);
+            ticker.advance(1000);
+        }
+        meter.getRate();
+        unread.getRate();
+
+        // read every 0.7 seconds for a while, or only at the end
+        for (int i = 0; i < 20; i++) {
+            ticker.advance(700);
+            meter.getRate();
+        }
+        ticker.advance(6000);
+        assertEquals(unread.getRate(), meter.getRate(), DELTA);
+    }
+
+    public void testRateAfterIdleGap() {
+        recordEverySecond(meter, 100, 60);
+        ticker.advance(1000);
+        meter.getRate();
+        // a long silence, then the throughput comes back
+        ticker.advance(120000);
+        double idleRate = meter.getRate();
+        assertTrue(idleRate < 0.01);
+        meter.record(100);
+        ticker.advance(1000);
+        assertEquals(idleRate + (1 - Math.exp(-0.1)) * (100 - idleRate), meter.getRate(), DELTA);
+        recordEverySecond(meter, 100, 60);
+        assertEquals(100, meter.getRate(), 1);
+    }
+
+    public void testIdleStartDoesNotDiluteFirstSamples() {
+        ticker.advance(30000);
+        meter.record(1000);
+        ticker.advance(1000);
+        // the idle stretch before closed as its own interval, not averaged into this one
+        assertEquals(1000 * (1 - Math.exp(-0.1)), meter.getRate(), DELTA);
+    }
+
+    // one amount at the start of each second, the clock stops a second after the last
+    private void recordEverySecond(ThroughputMeter meter, long amount, int seconds) {
+        for (int i = 0; i < seconds; i++) {
+            meter.record(amount);
+            ticker.advance(1000);
+        }
+    }
+}
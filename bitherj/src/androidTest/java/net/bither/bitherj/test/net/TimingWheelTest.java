@@ -0,0 +1,160 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.bither.bitherj.test.net;
+
+import net.bither.bitherj.net.TimingWheel;
+import net.bither.bitherj.test.ApplicationTest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drives a wheel of 8 ticks of 100ms by hand, so one turn is 800ms.
+ */
+public class TimingWheelTest extends ApplicationTest {
+    private TimingWheel wheel;
+    private List<String> fired;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        wheel = new TimingWheel(100, 8);
+        fired = new ArrayList<String>();
+    }
+
+    public void testWrapAround() {
+        wheel.advance(700);
+        TimingWheel.Timeout timeout = newTimeout("a");
+        // due in the first buckets of the next turn
+        wheel.schedule(timeout, 300);
+        wheel.advance(200);
+        assertTrue(fired.isEmpty());
+        assertTrue(wheel.isScheduled(timeout));
+        wheel.advance(100);
+        assertEquals(1, fired.size());
+        assertFalse(wheel.isScheduled(timeout));
+        assertEquals(0, wheel.getPendingCount());
+        assertEquals(1, wheel.getExpiredCount());
+    }
+
+    public void testMultiRoundDeadline() {
+        TimingWheel.Timeout late = newTimeout("late");
+        TimingWheel.Timeout early = newTimeout("early");
+        // both in the bucket of tick 1, the first three turns apart
+        wheel.schedule(late, 2500);
+        wheel.schedule(early, 100);
+        wheel.advance(100);
+        assertEquals(1, fired.size());
+        assertEquals("early", fired.get(0));
+        // passing its bucket in the turns before does not fire it
+        wheel.advance(2300);
+        assertEquals(1, fired.size());
+        assertTrue(wheel.isScheduled(late));
+        wheel.advance(100);
+        assertEquals(2, fired.size());
+        assertEquals("late", fired.get(1));
+    }
+
+    public void testCancel() {
+        TimingWheel.Timeout first = newTimeout("first");
+        TimingWheel.Timeout middle = newTimeout("middle");
+        TimingWheel.Timeout last = newTimeout("last");
+        wheel.schedule(first, 300);
+        wheel.schedule(middle, 300);
+        wheel.schedule(last, 300);
+        assertEquals(3, wheel.getPendingCount());
+
+        assertTrue(wheel.cancel(middle));
+        assertFalse(wheel.cancel(middle));
+        assertFalse(wheel.isScheduled(middle));
+        assertEquals(2, wheel.getPendingCount());
+        wheel.advance(1000);
+        assertEquals(2, fired.size());
+        assertFalse(fired.contains("middle"));
+        // a fired timeout is not scheduled anymore
+        assertFalse(wheel.cancel(first));
+        assertFalse(wheel.cancel(newTimeout("never")));
+        assertEquals(0, wheel.getPendingCount());
+    }
+
+    public void testMoveScheduled() {
+        TimingWheel.Timeout timeout = newTimeout("a");
+        wheel.schedule(timeout, 200);
+        wheel.schedule(timeout, 1200);
+        assertEquals(1, wheel.getPendingCount());
+        wheel.advance(1100);
+        assertTrue(fired.isEmpty());
+        wheel.advance(100);
+        assertEquals(1, fired.size());
+    }
+
+    public void testRescheduleFromCallback() {
+        final int[] runs = new int[1];
+        final TimingWheel.Timeout[] holder = new TimingWheel.Timeout[1];
+        holder[0] = new TimingWheel.Timeout(new Runnable() {
+            @Override
+            public void run() {
+                runs[0]++;
+                if (runs[0] < 3) {
+                    wheel.schedule(holder[0], 300);
+                } else if (runs[0] < 5) {
+                    // due right away, it still waits for the next tick
+                    wheel.schedule(holder[0], 0);
+                }
+            }
+        });
+        wheel.schedule(holder[0], 300);
+        wheel.advance(299);
+        assertEquals(0, runs[0]);
+        wheel.advance(1);
+        assertEquals(1, runs[0]);
+        wheel.advance(300);
+        assertEquals(2, runs[0]);
+        wheel.advance(300);
+        assertEquals(3, runs[0]);
+        wheel.advance(100);
+        assertEquals(4, runs[0]);
+        wheel.advance(100);
+        assertEquals(5, runs[0]);
+        assertFalse(wheel.isScheduled(holder[0]));
+        wheel.advance(1000);
+        assertEquals(5, runs[0]);
+        assertEquals(5, wheel.getExpiredCount());
+    }
+
+    public void testFailingTaskDoesNotStopOthers() {
+        wheel.schedule(new TimingWheel.Timeout(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("task failed");
+            }
+        }), 100);
+        TimingWheel.Timeout timeout = newTimeout("a");
+        wheel.schedule(timeout, 100);
+        wheel.advance(100);
+        assertEquals(1, fired.size());
+    }
+
+    private TimingWheel.Timeout newTimeout(final String name) {
+        return new TimingWheel.Timeout(new Runnable() {
+            @Override
+            public void run() {
+                fired.add(name);
+            }
+        });
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bither.bitherj.test.utils;
+
+import net.bither.bitherj.test.ApplicationTest;
+import net.bither.bitherj.utils.BufferPool;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pool of two size classes, 16 bytes keeping two free buffers and 64 bytes keeping one.
+ */
+public class BufferPoolTest extends ApplicationTest {
+    private BufferPool pool;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        pool = new BufferPool(new int[]{16, 64}, new int[]{2, 1});
+    }
+
+    public void testReleasedBufferIsReusedCleared() {
+        ByteBuffer buffer = pool.acquire(10);
+        assertTrue(buffer.isDirect());
+        assertEquals(16, buffer.capacity());
+        buffer.put(new byte[]{1, 2, 3});
+        buffer.flip();
+        pool.release(buffer);
+
+        ByteBuffer again = pool.acquire(16);
+        assertSame(buffer, again);
+        assertEquals(0, again.position());
+        assertEquals(16, again.limit());
+        // taken out of the pool, the next one is new
+        assertNotSame(buffer, pool.acquire(1));
+    }
+
+    public void testSizeClasses() {
+        assertEquals(16, pool.acquire(0).capacity());
+        assertEquals(64, pool.acquire(17).capacity());
+        assertEquals(64, pool.acquire(64).capacity());
+        ByteBuffer large = pool.acquire(65);
+        assertFalse(large.isDirect());
+        assertEquals(65, large.capacity());
+        // a buffer of a class is not handed out for another
+        ByteBuffer small = pool.acquire(16);
+        pool.release(small);
+        assertNotSame(small, pool.acquire(32));
+        assertSame(small, pool.acquire(16));
+    }
+
+    public void testForeignBuffersAreNotPooled() {
+        ByteBuffer heap = pool.acquire(100);
+        pool.release(heap);
+        assertNotSame(heap, pool.acquire(100));
+        ByteBuffer odd = ByteBuffer.allocateDirect(20);
+        pool.release(odd);
+        assertNotSame(odd, pool.acquire(20));
+        pool.release(null);
+    }
+
+    public void testFreeBuffersAreCapped() {
+        ByteBuffer a = pool.acquire(64);
+        ByteBuffer b = pool.acquire(64);
+        pool.release(a);
+        // the class keeps one, the second is left to the collector
+        pool.release(b);
+        assertSame(a, pool.acquire(64));
+        ByteBuffer c = pool.acquire(64);
+        assertNotSame(a, c);
+        assertNotSame(b, c);
+    }
+
+    public void testOutputStreamGrows() throws Exception {
+        BufferPool.BufferOutputStream out = new BufferPool.BufferOutputStream(pool, 10);
+        ByteBuffer first = out.getBuffer();
+        byte[] bytes = new byte[40];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        out.write(bytes, 0, 10);
+        out.write(bytes, 10, 30);
+        ByteBuffer buffer = out.getBuffer();
+        assertEquals(64, buffer.capacity());
+        assertEquals(40, buffer.position());
+        buffer.flip();
+        for (int i = 0; i < bytes.length; i++) {
+            assertEquals(bytes[i], buffer.get());
+        }
+        // the buffer it grew out of went back to the pool
+        assertSame(first, pool.acquire(16));
+    }
+}
@@ -18,11 +18,13 @@ package net.bither.bitherj.core;
 
 import net.bither.bitherj.crypto.ECKey;
 import net.bither.bitherj.crypto.TransactionSignature;
+import net.bither.bitherj.db.AddressProvider;
+import net.bither.bitherj.db.TxHistoryIterator;
 import net.bither.bitherj.db.TxProvider;
+import net.bither.bitherj.db.WriteBehindQueue;
 import net.bither.bitherj.exception.PasswordException;
 import net.bither.bitherj.exception.TxBuilderException;
 import net.bither.bitherj.script.ScriptBuilder;
-import net.bither.bitherj.utils.LogUtil;
 import net.bither.bitherj.utils.NotificationUtil;
 import net.bither.bitherj.utils.PrivateKeyUtil;
 import net.bither.bitherj.utils.Utils;
@@ -60,13 +62,23 @@ public class Address implements Comparable<Address> {
 
     public Address(String address, byte[] pubKey, long createTime,
                    boolean isSyncComplete, boolean hasPrivKey) {
+        this(address, pubKey, createTime, isSyncComplete, hasPrivKey, 0);
+        this.updateBalance();
+    }
+
+    /**
+     * An address loaded with its balance, which is not read again here. The history stays in
+     * the db until it is asked for.
+     */
+    public Address(String address, byte[] pubKey, long createTime,
+                   boolean isSyncComplete, boolean hasPrivKey, long balance) {
         this.hasPrivKey = hasPrivKey;
         this.encryptPrivKey = null;
         this.address = address;
         this.pubKey = pubKey;
         this.createTime = createTime;
         this.syncComplete = isSyncComplete;
-        this.updateBalance();
+        this.balance = balance;
     }
 
     public Address(String address, byte[] pubKey, String encryptString) {
@@ -97,16 +109,52 @@ public class Address implements Comparable<Address> {
         return txs;
     }
 
+    /**
+     * A page of the history, newest first, for lists that do not need all of it.
+     *
+     * @param after the last tx of the previous page, null for the first page
+     */
+    public List<Tx> getTxs(Tx after, int limit) {
+        return TxProvider.getInstance().getTxsByAddress(this.address, after, limit);
+    }
+
+    public TxHistoryIterator iterateTxs() {
+        return TxProvider.getInstance().iterateTxsByAddress(this.address);
+    }
+
     @Override
     public int compareTo(@Nonnull Address address) {
         return (int) (this.getCreateTime() - address.getCreateTime());
     }
 
+    /**
+     * Reads the running balance TxProvider keeps per address. Every tx is applied to it as a
+     * delta when it is stored, confirmed or removed, so this no longer walks the history.
+     */
     public void updateBalance() {
+        this.balance = TxProvider.getInstance().getBalance(this.address);
+    }
+
+    /**
+     * Recomputes the balance from the whole history and compares it with the running one. This
+     * is the old full rescan, only run now and then to check the running balance.
+     *
+     * @return true if both agree
+     */
+    public boolean verifyBalance() {
+        long runningBalance = TxProvider.getInstance().getBalance(this.address);
+        long balance = recomputeBalance();
+        if (balance != runningBalance) {
+            log.warn("address {} running balance {} differs from recomputed {}", this.address,
+                    runningBalance, balance);
+            return false;
+        }
+        return true;
+    }
+
+    private long recomputeBalance() {
         long balance = 0;
-        LogUtil.d(Address.class.getClass().getSimpleName(), "address t1");
         List<Tx> txs = this.getTxs();
-        LogUtil.d(Address.class.getClass().getSimpleName(), "address t2");
 
         Set<byte[]> invalidTx = new HashSet<byte[]>();
         Set<OutPoint> spentOut = new HashSet<OutPoint>();
@@ -146,7 +194,7 @@ public class Address implements Comparable<Address> {
                 balance -= tx1.getOuts().get(o.getOutSn()).getOutValue();
             }
         }
-        this.balance = balance;
+        return balance;
     }
 
     private boolean isIntersects(Set set1, Set set2) {
@@ -176,11 +224,23 @@ public class Address implements Comparable<Address> {
     }
 
     public void removeTx(byte[] txHash) {
+        WriteBehindQueue.getInstance().flush();
         TxProvider.getInstance().remove(txHash);
     }
 
+    /**
+     * Stores the history fetched from the api in batches, broadcasting progress after each one.
+     * Balances follow from unspent_outs, so listeners hear about the balance once at the end.
+     */
     public boolean initTxs(List<Tx> txs) {
-        TxProvider.getInstance().addTxs(txs);
+        WriteBehindQueue.getInstance().flush();
+        TxProvider.getInstance().importTxs(txs, new TxProvider.ImportProgressListener() {
+            @Override
+            public void onProgress(int importedTxCount, int totalTxCount) {
+                NotificationUtil.sendBroadcastAddressImportProgress(getAddress(),
+                        importedTxCount, totalTxCount);
+            }
+        });
         if (txs.size() > 0) {
             notificatTx(null, Tx.TxNotificationType.txFromApi);
         }
@@ -224,13 +284,21 @@ public class Address implements Comparable<Address> {
 
     }
 
+    /**
+     * Writes the .pub file, kept as the backup of the address, and its row in the addresses table
+     * the wallet is loaded from.
+     */
     private void savePubKey(String dir) throws IOException {
+        if (this.createTime == 0) {
+            this.createTime = new Date().getTime();
+        }
         String watchOnlyFullFileName = Utils.format(BitherjSettings.WATCH_ONLY_FILE_NAME
                 , dir, getAddress());
         String watchOnlyContent = Utils.format("%s:%s:%s",
                 Utils.bytesToHexString(this.pubKey), getSyncCompleteString(),
-                Long.toString(new Date().getTime()));
+                Long.toString(this.createTime));
         Utils.writeFile(watchOnlyContent, new File(watchOnlyFullFileName));
+        AddressProvider.getInstance().addAddress(this);
     }
 
     private String getSyncCompleteString() {
@@ -242,7 +310,7 @@ public class Address implements Comparable<Address> {
         String watchOnlyFullFileName = Utils.format(BitherjSettings.WATCH_ONLY_FILE_NAME
                 , Utils.getWatchOnlyDir(), getAddress());
         Utils.removeFile(new File(watchOnlyFullFileName));
-
+        AddressProvider.getInstance().removeAddress(getAddress());
     }
 
     @Override
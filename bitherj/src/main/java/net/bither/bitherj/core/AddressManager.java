@@ -16,28 +16,31 @@
 
 package net.bither.bitherj.core;
 
+import net.bither.bitherj.db.AddressProvider;
 import net.bither.bitherj.db.TxProvider;
+import net.bither.bitherj.db.WriteBehindQueue;
 import net.bither.bitherj.utils.NotificationUtil;
+import net.bither.bitherj.utils.Threading;
 import net.bither.bitherj.utils.Utils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
 public class AddressManager {
     private static final Logger log = LoggerFactory.getLogger(AddressManager.class);
+    private static final long VERIFY_BALANCES_INTERVAL = 24 * 60 * 60 * 1000;
     private final byte[] lock = new byte[0];
     private static AddressManager uniqueInstance = new AddressManager();
 
     protected List<Address> privKeyAddresses = new ArrayList<Address>();
     protected List<Address> watchOnlyAddresses = new ArrayList<Address>();
+    private long lastVerifyBalancesTime = 0;
 
 
     private AddressManager() {
@@ -52,24 +55,73 @@ public class AddressManager {
         return uniqueInstance;
     }
 
-    public boolean registerTx(Tx tx, Tx.TxNotificationType txNotificationType) {
+    /**
+     * Queues the tx for the write behind batch if it belongs to one of our addresses. The
+     * addresses are notified once it is committed, so their balance already counts it.
+     */
+    public boolean registerTx(final Tx tx, final Tx.TxNotificationType txNotificationType) {
         if (TxProvider.getInstance().isExist(tx.getTxHash())) {
             // already in db
             return true;
         }
-        boolean needAdd = false;
+        final List<Address> relatedAddresses = new ArrayList<Address>();
         for (Address address : this.getAllAddresses()) {
-            boolean isRel = this.isAddressContainsTx(address.getAddress(), tx);
-            if (!needAdd && isRel) {
-                needAdd = true;
-                TxProvider.getInstance().add(tx);
+            if (this.isAddressContainsTx(address.getAddress(), tx)) {
+                relatedAddresses.add(address);
+            }
+        }
+        if (relatedAddresses.size() == 0) {
+            return false;
+        }
+        WriteBehindQueue.getInstance().addTx(tx, new Runnable() {
+            @Override
+            public void run() {
                 log.info("add tx {} into db", Utils.hashToString(tx.getTxHash()));
+                for (Address address : relatedAddresses) {
+                    address.notificatTx(tx, txNotificationType);
+                }
             }
-            if (isRel) {
-                address.notificatTx(tx, txNotificationType);
+        });
+        return true;
+    }
+
+    /**
+     * Checks every running balance against a full recompute of its history in the background, at
+     * most once a day. A mismatch is only logged, the running balance stays the one shown.
+     */
+    public void verifyBalancesIfNeeded() {
+        synchronized (lock) {
+            long now = System.currentTimeMillis();
+            if (now - lastVerifyBalancesTime < VERIFY_BALANCES_INTERVAL) {
+                return;
             }
+            lastVerifyBalancesTime = now;
         }
-        return needAdd;
+        Threading.THREAD_POOL.submit(new Runnable() {
+            @Override
+            public void run() {
+                int mismatchCount = 0;
+                for (Address address : getAllAddresses()) {
+                    if (!address.verifyBalance()) {
+                        mismatchCount++;
+                    }
+                }
+                log.info("verified balances, {} mismatch", mismatchCount);
+            }
+        });
+    }
+
+    /**
+     * @return the create time of the oldest address in seconds, now when there is none
+     */
+    public long getEarliestKeyTime() {
+        long earliest = System.currentTimeMillis();
+        for (Address address : getAllAddresses()) {
+            if (address.getCreateTime() > 0 && address.getCreateTime() < earliest) {
+                earliest = address.getCreateTime();
+            }
+        }
+        return earliest / 1000;
     }
 
     private boolean isAddressContainsTx(String address, Tx tx) {
@@ -148,49 +200,10 @@ public class AddressManager {
     }
 
     private void initPrivateKeyList() {
-        File[] files = Utils.getPrivateDir().listFiles();
-        if (files != null) {
-            for (File file : files) {
-                if (file.getName().contains(Address.PUBLIC_KEY_FILE_NAME_SUFFIX)) {
-                    String content = Utils.readFile(file);
-                    String[] strings = content.split(Address.KEY_SPLIT_STRING);
-                    String address = file.getName().substring(0,
-                            file.getName().length() - Address.PUBLIC_KEY_FILE_NAME_SUFFIX.length());
-                    String publicKey = strings[0];
-                    int isSyncComplete = Integer.valueOf(strings[1]);
-                    long createTime = Long.valueOf(strings[2]);
-                    Address add = new Address(address, Utils.hexStringToByteArray(publicKey), createTime
-                            , isSyncComplete == 1, true);
-                    this.privKeyAddresses.add(add);
-                }
-            }
-            if (this.privKeyAddresses.size() > 0) {
-                Collections.sort(this.privKeyAddresses);
-            }
-        }
-
+        this.privKeyAddresses.addAll(AddressProvider.getInstance().getAddresses(true));
     }
 
     private void initWatchOnlyList() {
-        File[] files = Utils.getWatchOnlyDir().listFiles();
-        if (files != null) {
-            for (File file : files) {
-                if (file.getName().contains(Address.PUBLIC_KEY_FILE_NAME_SUFFIX)) {
-                    String content = Utils.readFile(file);
-                    String[] strings = content.split(Address.KEY_SPLIT_STRING);
-                    String address = file.getName().substring(0,
-                            file.getName().length() - Address.PUBLIC_KEY_FILE_NAME_SUFFIX.length());
-                    String publicKey = strings[0];
-                    int isSyncComplete = Integer.valueOf(strings[1]);
-                    long createTime = Long.valueOf(strings[2]);
-                    Address add = new Address(address, Utils.hexStringToByteArray(publicKey), createTime
-                            , isSyncComplete == 1, false);
-                    this.watchOnlyAddresses.add(add);
-                }
-            }
-            if (this.watchOnlyAddresses.size() > 0) {
-                Collections.sort(this.watchOnlyAddresses);
-            }
-        }
+        this.watchOnlyAddresses.addAll(AddressProvider.getInstance().getAddresses(false));
     }
 }
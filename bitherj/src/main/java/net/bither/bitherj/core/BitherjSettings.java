@@ -104,6 +104,35 @@ public class BitherjSettings {
         COLD, HOT
     }
 
+    /**
+     * Where block headers are stored. HEADER_FILE appends them to a memory mapped file, which
+     * keeps headers-first sync from waiting on sqlite inserts. {@link #BLOCK_STORE_MODE} is the
+     * default, an app picks another with
+     * {@link net.bither.bitherj.db.BlockProvider#setBlockStoreMode(BlockStoreMode)}.
+     */
+    public static enum BlockStoreMode {
+        SQLITE, HEADER_FILE
+    }
+
+    public static final BlockStoreMode BLOCK_STORE_MODE = BlockStoreMode.SQLITE;
+
+    /**
+     * Block pruning, see {@link BlockRetention}. Main chain blocks are kept from the retarget
+     * boundary at or below the tip minus the window, orphans for the expiry below the tip. These
+     * are the defaults, an app passes its own with {@link BlockRetention#setDefault}.
+     */
+    public static final int BLOCK_RETENTION_WINDOW = 100;
+    public static final int BLOCK_RETENTION_ORPHAN_EXPIRY = 144;
+    public static final int BLOCK_RETENTION_BATCH_SIZE = 200;
+    public static final boolean BLOCK_RETENTION_RECLAIM_SPACE = true;
+
+    /**
+     * Estimated bytes of parsed txs and blocks kept in memory by the providers. Both can be
+     * resized at runtime through the caches the providers expose.
+     */
+    public static final long TX_CACHE_MAX_BYTES = 512 * 1024;
+    public static final long BLOCK_CACHE_MAX_BYTES = 256 * 1024;
+
     public static final String PRIVATE_KEY_FILE_NAME = "%s/%s.key";
     public static final String WATCH_ONLY_FILE_NAME = "%s/%s.pub";
 
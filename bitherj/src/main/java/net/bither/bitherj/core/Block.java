@@ -116,6 +116,11 @@ public class Block extends Message {
         super(payloadBytes, 0, length);
     }
 
+    public Block(byte[] payloadBytes, int offset, int length)
+            throws ProtocolException {
+        super(payloadBytes, offset, length);
+    }
+
     public Block(long version, String prevBlock, String merkleRoot, int timestamp
             , long target, long nonce, int height) {
         this.blockVer = version;
@@ -272,14 +277,12 @@ public class Block extends Message {
         // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
         // two weeks after the initial block chain download.
         long now = System.currentTimeMillis();
-        Block cursor = get(prev.getBlockHash());
-        for (int i = 0; i < BitherjSettings.BLOCK_DIFFICULTY_INTERVAL - 1; i++) {
-            if (cursor == null) {
-                // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                throw new VerificationException(
-                        "Difficulty transition point but we did not find a way back to the genesis block.");
-            }
-            cursor = get(cursor.getBlockPrev());
+        Block cursor = BlockChain.getInstance().getAncestor(prev, BitherjSettings
+                .BLOCK_DIFFICULTY_INTERVAL - 1);
+        if (cursor == null) {
+            // This should never happen. If it does, it means we are following an incorrect or busted chain.
+            throw new VerificationException(
+                    "Difficulty transition point but we did not find a way back to the genesis block.");
         }
         long elapsed = System.currentTimeMillis() - now;
         if (elapsed > 50)
@@ -545,7 +548,7 @@ public class Block extends Message {
         blockBits = readUint32();
         blockNonce = readUint32();
 
-        blockHash = Utils.doubleDigest(bytes, offset, cursor);
+        blockHash = Utils.doubleDigest(bytes, offset, cursor - offset);
 
         headerParsed = true;
         headerBytesValid = false;
@@ -557,7 +560,7 @@ public class Block extends Message {
 
         cursor = offset + HEADER_SIZE;
         optimalEncodingMessageSize = HEADER_SIZE;
-        if (bytes.length == cursor) {
+        if (limit == cursor) {
             // This message is just a header, it has no transactions.
             transactionsParsed = true;
             transactionBytesValid = false;
@@ -18,6 +18,7 @@ package net.bither.bitherj.core;
 
 import net.bither.bitherj.db.BlockProvider;
 import net.bither.bitherj.db.TxProvider;
+import net.bither.bitherj.db.WriteBehindQueue;
 import net.bither.bitherj.exception.ProtocolException;
 import net.bither.bitherj.exception.VerificationException;
 import net.bither.bitherj.utils.LogUtil;
@@ -34,16 +35,22 @@ import java.util.List;
 public class BlockChain {
     private static BlockChain uniqueInstance = new BlockChain();
     private static final Logger log = LoggerFactory.getLogger(BlockChain.class);
+    // one retarget interval for difficulty verification plus room for reorgs below the tip
+    private static final int MAIN_CHAIN_INDEX_SIZE = BitherjSettings.BLOCK_DIFFICULTY_INTERVAL
+            + 144;
+    private static final long CHECKPOINT_KEY_TIME_MARGIN = 7 * 24 * 60 * 60;
     protected HashMap<byte[], Block> singleBlocks;
     protected Block lastBlock;
     protected Block lastOrphanBlock;
+    private MainChainIndex mainChainIndex;
 
     BlockChain() {
-        BlockProvider.getInstance().cleanOldBlock();
-
         this.singleBlocks = new HashMap<byte[], Block>();
+        this.mainChainIndex = new MainChainIndex(MAIN_CHAIN_INDEX_SIZE);
         this.lastBlock = BlockProvider.getInstance().getLastBlock();
         this.lastOrphanBlock = BlockProvider.getInstance().getLastOrphanBlock();
+        this.loadMainChainIndex();
+        BlockRetention.getDefault().start();
     }
 
     public static BlockChain getInstance() {
@@ -57,7 +64,29 @@ public class BlockChain {
             block.setMain(true);
             this.addBlock(block);
             this.lastBlock = block;
+            this.mainChainIndex.load(Arrays.asList(block));
+        }
+    }
+
+    /**
+     * Seeds an empty block store with the newest bundled checkpoint a week before
+     * earliestKeyTime, so sync starts close to the first key instead of at a fetched header.
+     *
+     * @param earliestKeyTime in seconds
+     * @return true if the store was seeded
+     */
+    public boolean addCheckpointBlock(long earliestKeyTime) {
+        if (this.getBlockCount() > 0) {
+            return false;
+        }
+        Block checkpoint = Checkpoints.getInstance().getCheckpointBefore(earliestKeyTime -
+                CHECKPOINT_KEY_TIME_MARGIN);
+        if (checkpoint == null) {
+            return false;
         }
+        log.info("start block chain from checkpoint {}", checkpoint.getBlockNo());
+        this.addSPVBlock(checkpoint);
+        return true;
     }
 
     public void addBlocks(List<Block> blocks) {
@@ -87,9 +116,7 @@ public class BlockChain {
             locators.add(b.getBlockHash());
             if (++start >= 10) step *= 2;
 
-            for (int i = 0; b != null && i < step; i++) {
-                b = BlockProvider.getInstance().getMainChainBlock(b.getBlockPrev());
-            }
+            b = this.getMainChainBlock(b.getBlockNo() - step);
         }
         locators.add(BitherjSettings.GENESIS_BLOCK_HASH);
 
@@ -104,8 +131,11 @@ public class BlockChain {
         if (delta >= BitherjSettings.BLOCK_DIFFICULTY_INTERVAL || delta >= this.getBlockCount())
             return false;
 
+        // queued confirmations of the blocks rolled back must land before they are undone
+        WriteBehindQueue.getInstance().flush();
         List<Block> blocks = BlockProvider.getInstance().getBlocksFrom(blockNo);
         // DDLogWarn(@"roll back block from %d to %d", self.lastBlock.height, blockNo);
+        this.mainChainIndex.truncateAbove(blockNo);
 
         for (Block block : blocks) {
             BlockProvider.getInstance().removeBlock(block.getBlockHash());
@@ -115,6 +145,10 @@ public class BlockChain {
             }
         }
         this.lastBlock = BlockProvider.getInstance().getLastBlock();
+        if (this.lastBlock != null && this.mainChainIndex.get(this.lastBlock.getBlockNo()) ==
+                null) {
+            this.loadMainChainIndex();
+        }
         return true;
     }
 
@@ -150,6 +184,8 @@ public class BlockChain {
 
             block.setMain(true);
             blocksToAdd.add(block);
+            // indexed before it is saved so the next retarget in this batch can reach it
+            mainChainIndex.append(block);
             prev = block;
         }
         if(blocksToAdd.size() > 0){
@@ -237,10 +273,15 @@ public class BlockChain {
             block.setMain(true);
             this.addBlock(block);
             this.lastBlock = block;
+            this.mainChainIndex.append(block);
         }
     }
 
     private boolean inMainChain(Block block) {
+        int lowestBlockNo = this.mainChainIndex.getLowestBlockNo();
+        if (lowestBlockNo >= 0 && block.getBlockNo() >= lowestBlockNo) {
+            return this.mainChainIndex.contains(block.getBlockHash());
+        }
         Block b = this.lastBlock;
         while (b != null && b.getBlockNo() > block.getBlockNo()) {
             b = BlockProvider.getInstance().getBlock(b.getBlockPrev());
@@ -262,7 +303,16 @@ public class BlockChain {
         Block b1 = block1;
         Block b2 = block2;
 
-        while (b1 != null && b2 != null && b1.getBlockHash() != b2.getBlockHash()) {
+        // block2 is on the main chain, so the first ancestor of block1 the index knows is the fork
+        int lowestBlockNo = this.mainChainIndex.getLowestBlockNo();
+        while (b1 != null && lowestBlockNo >= 0 && b1.getBlockNo() >= lowestBlockNo) {
+            if (this.mainChainIndex.contains(b1.getBlockHash())) {
+                return b1;
+            }
+            b1 = BlockProvider.getInstance().getBlock(b1.getBlockPrev());
+        }
+        b1 = block1;
+        while (b1 != null && b2 != null && !Arrays.equals(b1.getBlockHash(), b2.getBlockHash())) {
             b1 = BlockProvider.getInstance().getBlock(b1.getBlockPrev());
             if (b1.getBlockNo() < b2.getBlockNo()) {
                 b2 = BlockProvider.getInstance().getBlock(b2.getBlockPrev());
@@ -274,22 +324,68 @@ public class BlockChain {
     private void forkMainChain(Block forkStartBlock, Block lastBlock) {
         Block b = this.lastBlock;
         Block next = lastBlock;
-        while (b.getBlockHash() != forkStartBlock.getBlockHash()) {
+        while (!Arrays.equals(b.getBlockHash(), forkStartBlock.getBlockHash())) {
             next = BlockProvider.getInstance().getOrphanBlockByPrevHash(b.getBlockPrev());
             BlockProvider.getInstance().updateBlock(b.getBlockHash(), false);
             b = BlockProvider.getInstance().getMainChainBlock(b.getBlockPrev());
             this.lastBlock = b;
         }
+        this.mainChainIndex.truncateAbove(forkStartBlock.getBlockNo());
         b = next;
-        BlockProvider.getInstance().updateBlock(next.getBlockHash(), true);
-        this.lastBlock = next;
-        while (b.getBlockHash() != lastBlock.getBlockPrev()) {
+        while (b != null) {
             BlockProvider.getInstance().updateBlock(b.getBlockHash(), true);
+            b.setMain(true);
+            this.mainChainIndex.append(b);
             this.lastBlock = b;
+            if (Arrays.equals(b.getBlockHash(), lastBlock.getBlockPrev())) {
+                break;
+            }
             b = BlockProvider.getInstance().getOrphanBlockByPrevHash(b.getBlockHash());
         }
         lastBlock.setMain(true);
         this.addBlock(lastBlock);
         this.lastBlock = lastBlock;
+        this.mainChainIndex.append(lastBlock);
+    }
+
+    /**
+     * The main chain block blocksBack below block, served from the index when block is on the
+     * indexed part of the main chain.
+     */
+    Block getAncestor(Block block, int blocksBack) {
+        if (this.mainChainIndex.contains(block.getBlockHash())) {
+            Block ancestor = this.mainChainIndex.get(block.getBlockNo() - blocksBack);
+            if (ancestor != null) {
+                return ancestor;
+            }
+        }
+        // a chain started from a checkpoint has nothing stored below it
+        Block checkpoint = Checkpoints.getInstance().getCheckpoint(block.getBlockNo() -
+                blocksBack);
+        if (checkpoint != null) {
+            return checkpoint;
+        }
+        Block cursor = block;
+        for (int i = 0; cursor != null && i < blocksBack; i++) {
+            cursor = BlockProvider.getInstance().getBlock(cursor.getBlockPrev());
+        }
+        return cursor;
+    }
+
+    private Block getMainChainBlock(int blockNo) {
+        Block block = this.mainChainIndex.get(blockNo);
+        if (block == null && blockNo >= 0) {
+            block = BlockProvider.getInstance().getMainChainBlock(blockNo);
+        }
+        return block;
+    }
+
+    private void loadMainChainIndex() {
+        if (this.lastBlock == null) {
+            this.mainChainIndex.clear();
+            return;
+        }
+        this.mainChainIndex.load(BlockProvider.getInstance().getMainChainBlocksFrom(this
+                .lastBlock.getBlockNo() - MAIN_CHAIN_INDEX_SIZE + 1));
     }
 }
@@ -0,0 +1,643 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.bither.bitherj.core;
+
+import net.bither.bitherj.net.TimingWheel;
+import net.bither.bitherj.utils.Sha256Hash;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Spreads the filtered blocks of a chain download over the connected peers. Every peer has a
+ * window of blocks it may have requested and not delivered yet, and gets getdata for the next
+ * blocks of the announced order as it delivers, so each connection is kept busy without
+ * queueing more than it can send. Blocks that arrive are held back until every block before
+ * them in the announced order is in, then relayed in that order.
+ * <p/>
+ * A request not answered in time goes back to the front of the queue for another peer, and the
+ * window of the peer that let it expire is halved. Each delivered block grows the window again
+ * by one, up to the configured maximum.
+ * <p/>
+ * Requests are decided under the scheduler's lock and sent through the {@link Listener} after
+ * it is released.
+ */
+class BlockDownloadScheduler {
+    private static final Logger log = LoggerFactory.getLogger(BlockDownloadScheduler.class);
+
+    static final int DEFAULT_MAX_BLOCKS_IN_FLIGHT = 16;
+    static final long REQUEST_TIMEOUT_MILLIS = 20 * 1000;
+
+    /**
+     * Where the scheduler hands its results, called without its lock held.
+     */
+    interface Listener {
+        /**
+         * Sends getdata for the filtered blocks, after loading the peer's bloom filter if it has
+         * none yet.
+         */
+        void requestBlocks(Peer peer, List<Sha256Hash> blockHashes);
+
+        /**
+         * A downloaded block whose predecessors in the download were all relayed.
+         */
+        void relayBlock(Peer fromPeer, Block block);
+
+        /**
+         * Every scheduled block was relayed, the download peer can ask for the next hashes.
+         */
+        void downloadFinished(Peer downloadPeer, Block lastBlock);
+    }
+
+    private class Request {
+        final Sha256Hash hash;
+        // position in the announced order, requeued requests are sorted back in by it
+        long seq;
+        // null while queued
+        Peer peer;
+        // the last peer that let it expire, asked again only if no other peer is left
+        Peer expiredOn;
+        final TimingWheel.Timeout timeout = new TimingWheel.Timeout(new Runnable() {
+            @Override
+            public void run() {
+                // the ticker only hands it on, a requeue may send requests
+                timeoutExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        requestTimedOut(Request.this);
+                    }
+                });
+            }
+        });
+
+        Request(Sha256Hash hash, long seq) {
+            this.hash = hash;
+            this.seq = seq;
+        }
+    }
+
+    private static class Window {
+        int size;
+        // requests of this download assigned to the peer
+        int inFlight;
+        // copies of each block the peer was asked for and has not sent, given up on or not
+        final HashMap<Sha256Hash, Integer> owed = new HashMap<Sha256Hash, Integer>();
+        // the first copies of owed blocks, asked for before the bloom filter changed
+        final HashMap<Sha256Hash, Integer> stale = new HashMap<Sha256Hash, Integer>();
+        // the stale copies of blocks still requested from the peer, they take room until they
+        // arrive or the request is given up on
+        final HashMap<Sha256Hash, Integer> staleInRoom = new HashMap<Sha256Hash, Integer>();
+        int staleCount;
+
+        Window(int size) {
+            this.size = size;
+        }
+
+        int room() {
+            return size - inFlight - staleCount;
+        }
+
+        void asked(Sha256Hash hash) {
+            Integer count = owed.get(hash);
+            owed.put(hash, count == null ? 1 : count + 1);
+        }
+
+        /**
+         * @return whether the copy was asked for before the bloom filter changed, a peer
+         * answers getdata in order so its first owed copies are the stale ones
+         */
+        boolean arrived(Sha256Hash hash) {
+            Integer count = owed.get(hash);
+            if (count == null) {
+                return false;
+            }
+            if (count > 1) {
+                owed.put(hash, count - 1);
+            } else {
+                owed.remove(hash);
+            }
+            Integer staleCopies = stale.get(hash);
+            if (staleCopies == null) {
+                return false;
+            }
+            if (staleCopies > 1) {
+                stale.put(hash, staleCopies - 1);
+            } else {
+                stale.remove(hash);
+            }
+            Integer inRoom = staleInRoom.get(hash);
+            if (inRoom != null) {
+                if (inRoom > 1) {
+                    staleInRoom.put(hash, inRoom - 1);
+                } else {
+                    staleInRoom.remove(hash);
+                }
+                staleCount--;
+            }
+            return true;
+        }
+
+        /**
+         * The request for the block went to another peer. Copies this one still sends are
+         * recognized, but its stale copies stop taking room, they may never come.
+         */
+        void gaveUp(Sha256Hash hash) {
+            Integer inRoom = staleInRoom.remove(hash);
+            if (inRoom != null) {
+                staleCount -= inRoom;
+            }
+        }
+
+        void filterChanged() {
+            stale.clear();
+            stale.putAll(owed);
+            staleInRoom.clear();
+            staleInRoom.putAll(owed);
+            staleCount = 0;
+            for (Integer count : owed.values()) {
+                staleCount += count;
+            }
+        }
+
+        void forgetOwed() {
+            owed.clear();
+            stale.clear();
+            staleInRoom.clear();
+            staleCount = 0;
+        }
+    }
+
+    private static class Received {
+        final Peer fromPeer;
+        final Block block;
+
+        Received(Peer fromPeer, Block block) {
+            this.fromPeer = fromPeer;
+            this.block = block;
+        }
+    }
+
+    private final Listener listener;
+    private final TimingWheel wheel;
+    private final Executor timeoutExecutor;
+
+    private int maxBlocksInFlight = DEFAULT_MAX_BLOCKS_IN_FLIGHT;
+    private final LinkedHashMap<Peer, Window> windows = new LinkedHashMap<Peer, Window>();
+
+    private Peer downloadPeer;
+    // every hash of this download in announced order, until relayed
+    private final LinkedList<Sha256Hash> order = new LinkedList<Sha256Hash>();
+    private final HashSet<Sha256Hash> scheduled = new HashSet<Sha256Hash>();
+    private long nextSeq = 0;
+    // requests not sent to any peer yet, in announced order
+    private final LinkedList<Request> pending = new LinkedList<Request>();
+    // every block of this download not received yet, queued or in flight
+    private final HashMap<Sha256Hash, Request> requests = new HashMap<Sha256Hash, Request>();
+    private final HashMap<Sha256Hash, Received> received = new HashMap<Sha256Hash, Received>();
+    // requests decided and not handed to the listener yet, one getdata a peer
+    private final LinkedHashMap<Peer, ArrayList<Sha256Hash>> unsent = new LinkedHashMap<Peer,
+            ArrayList<Sha256Hash>>();
+
+    private final LinkedList<Received> toRelay = new LinkedList<Received>();
+    private boolean relaying = false;
+    private Block lastRelayed;
+
+    /**
+     * @param timeoutExecutor where expired requests are handled, never the wheel's own ticker
+     */
+    BlockDownloadScheduler(Listener listener, TimingWheel wheel, Executor timeoutExecutor) {
+        this.listener = listener;
+        this.wheel = wheel;
+        this.timeoutExecutor = timeoutExecutor;
+    }
+
+    /**
+     * Sets how many blocks one peer may have requested and not delivered yet. Windows shrunk
+     * below it by expired requests grow back to it one delivered block at a time.
+     */
+    void setMaxBlocksInFlight(int maxBlocksInFlight) {
+        checkArgument(maxBlocksInFlight > 0);
+        synchronized (this) {
+            this.maxBlocksInFlight = maxBlocksInFlight;
+            for (Window window : windows.values()) {
+                window.size = Math.min(window.size, maxBlocksInFlight);
+            }
+            assignPendingRequests();
+        }
+        sendRequests();
+    }
+
+    synchronized int getMaxBlocksInFlight() {
+        return maxBlocksInFlight;
+    }
+
+    void peerConnected(Peer peer) {
+        synchronized (this) {
+            windowOf(peer);
+            assignPendingRequests();
+        }
+        sendRequests();
+    }
+
+    /**
+     * Takes the peer's requests back for the others. Everything is dropped when it was the
+     * download peer, the next one announces the hashes again.
+     */
+    void peerDisconnected(Peer peer) {
+        synchronized (this) {
+            windows.remove(peer);
+            unsent.remove(peer);
+            if (peer.equals(downloadPeer)) {
+                reset();
+                return;
+            }
+            for (Request request : new ArrayList<Request>(requests.values())) {
+                if (peer.equals(request.peer)) {
+                    wheel.cancel(request.timeout);
+                    request.peer = null;
+                    requeue(request);
+                }
+            }
+            assignPendingRequests();
+        }
+        sendRequests();
+    }
+
+    /**
+     * Hands the current download to another download peer. The blocks the replaced one was
+     * asked for go to the others, and it stays connected with a window of one block.
+     */
+    void replaceDownloadPeer(Peer replaced, Peer next) {
+        synchronized (this) {
+            if (scheduled.isEmpty()) {
+                return;
+            }
+            downloadPeer = next;
+            Window window = windows.get(replaced);
+            for (Request request : new ArrayList<Request>(requests.values())) {
+                if (replaced.equals(request.peer)) {
+                    requestFinished(request);
+                    if (window != null) {
+                        window.gaveUp(request.hash);
+                    }
+                    request.expiredOn = replaced;
+                    requeue(request);
+                }
+            }
+            if (window != null) {
+                window.size = 1;
+            }
+            assignPendingRequests();
+        }
+        sendRequests();
+    }
+
+    /**
+     * Schedules the filtered blocks the download peer announced, in chain order. Once a
+     * download started it takes all hashes until it is done.
+     *
+     * @return false if the caller should request the blocks from the download peer itself
+     */
+    boolean schedule(Peer fromPeer, List<Sha256Hash> blockHashes) {
+        synchronized (this) {
+            if (scheduled.isEmpty() && eligiblePeers(fromPeer).isEmpty()) {
+                return false;
+            }
+            downloadPeer = fromPeer;
+            int count = 0;
+            for (Sha256Hash hash : blockHashes) {
+                if (scheduled.add(hash)) {
+                    order.add(hash);
+                    Request request = new Request(hash, nextSeq++);
+                    requests.put(hash, request);
+                    pending.add(request);
+                    count++;
+                }
+            }
+            log.info("scheduled {} blocks over {} peers", count, eligiblePeers(fromPeer).size());
+            assignPendingRequests();
+        }
+        sendRequests();
+        return true;
+    }
+
+    /**
+     * @return whether the block belongs to the current download, it is then relayed in order by
+     * this scheduler and the caller must not relay it
+     */
+    boolean blockReceived(Peer fromPeer, Block block) {
+        boolean relay;
+        synchronized (this) {
+            Sha256Hash hash = new Sha256Hash(block.getBlockHash());
+            if (!scheduled.contains(hash)) {
+                return false;
+            }
+            Window window = windows.get(fromPeer);
+            if (window != null && window.arrived(hash)) {
+                // filtered with the bloom filter before the last change, the peer sends it again,
+                // the room the copy took is free for the queue
+                assignPendingRequests();
+                relay = false;
+            } else {
+                relay = blockArrived(fromPeer, window, hash, block);
+            }
+        }
+        sendRequests();
+        if (relay) {
+            relayInOrder();
+        }
+        return true;
+    }
+
+    // called with the lock held, returns whether the caller should relay
+    private boolean blockArrived(Peer fromPeer, Window window, Sha256Hash hash, Block block) {
+        Request request = requests.remove(hash);
+        if (request == null) {
+            // a second copy of a block already in
+            return false;
+        }
+        if (request.peer == null) {
+            // late from a peer whose request went back to the queue
+            pending.remove(request);
+        } else {
+            requestFinished(request);
+        }
+        if (window != null && window.size < maxBlocksInFlight) {
+            window.size++;
+        }
+        received.put(hash, new Received(fromPeer, block));
+        assignPendingRequests();
+        while (!order.isEmpty() && received.containsKey(order.getFirst())) {
+            Sha256Hash next = order.removeFirst();
+            toRelay.add(received.remove(next));
+        }
+        boolean relay = !relaying;
+        relaying = true;
+        return relay;
+    }
+
+    /**
+     * @return whether the hash is a block of the current download
+     */
+    synchronized boolean isScheduled(Sha256Hash blockHash) {
+        return scheduled.contains(blockHash);
+    }
+
+    /**
+     * Requests every block not relayed yet again, after the bloom filter changed and was loaded
+     * into the connected peers. A block still owed is asked from the same peer again, and the
+     * copy it owes from before the change is dropped when it arrives.
+     */
+    void refetch() {
+        synchronized (this) {
+            if (order.isEmpty()) {
+                return;
+            }
+            for (Window window : windows.values()) {
+                window.filterChanged();
+            }
+            // blocks in and not relayed yet went through the old filter too
+            received.clear();
+            pending.clear();
+            for (Sha256Hash hash : order) {
+                Request request = requests.get(hash);
+                if (request == null) {
+                    request = new Request(hash, nextSeq);
+                    requests.put(hash, request);
+                }
+                request.seq = nextSeq++;
+                if (request.peer == null) {
+                    pending.add(request);
+                } else {
+                    wheel.schedule(request.timeout, REQUEST_TIMEOUT_MILLIS);
+                    windowOf(request.peer).asked(hash);
+                    addUnsent(request.peer, hash);
+                }
+            }
+            log.info("refetch {} blocks", order.size());
+            assignPendingRequests();
+        }
+        sendRequests();
+    }
+
+    /**
+     * Drops the download, nothing scheduled so far is relayed anymore.
+     */
+    synchronized void reset() {
+        cancelRequests();
+        downloadPeer = null;
+        lastRelayed = null;
+        order.clear();
+        scheduled.clear();
+        received.clear();
+        for (Window window : windows.values()) {
+            window.size = maxBlocksInFlight;
+            window.forgetOwed();
+        }
+    }
+
+    synchronized boolean isDownloading() {
+        return !scheduled.isEmpty();
+    }
+
+    private void sendRequests() {
+        LinkedHashMap<Peer, ArrayList<Sha256Hash>> batches;
+        synchronized (this) {
+            if (unsent.isEmpty()) {
+                return;
+            }
+            batches = new LinkedHashMap<Peer, ArrayList<Sha256Hash>>(unsent);
+            unsent.clear();
+        }
+        for (Map.Entry<Peer, ArrayList<Sha256Hash>> batch : batches.entrySet()) {
+            listener.requestBlocks(batch.getKey(), batch.getValue());
+        }
+    }
+
+    // one thread at a time relays, so blocks reach the chain in order
+    private void relayInOrder() {
+        while (true) {
+            Received next;
+            Peer finishedPeer = null;
+            Block lastBlock = null;
+            synchronized (this) {
+                next = toRelay.poll();
+                if (next == null) {
+                    relaying = false;
+                    if (order.isEmpty() && downloadPeer != null && lastRelayed != null) {
+                        finishedPeer = downloadPeer;
+                        lastBlock = lastRelayed;
+                        downloadPeer = null;
+                        lastRelayed = null;
+                        scheduled.clear();
+                        for (Window window : windows.values()) {
+                            window.forgetOwed();
+                        }
+                    }
+                } else {
+                    lastRelayed = next.block;
+                }
+            }
+            if (next == null) {
+                if (finishedPeer != null) {
+                    listener.downloadFinished(finishedPeer, lastBlock);
+                }
+                return;
+            }
+            listener.relayBlock(next.fromPeer, next.block);
+        }
+    }
+
+    private void requestTimedOut(Request request) {
+        synchronized (this) {
+            if (request.peer == null || requests.get(request.hash) != request) {
+                return;
+            }
+            Peer peer = request.peer;
+            requestFinished(request);
+            Window window = windows.get(peer);
+            if (window != null) {
+                window.gaveUp(request.hash);
+                window.size = Math.max(window.size / 2, 1);
+                log.info("Peer {} did not send block {} in time, window now {}",
+                        peer.getPeerAddress().getHostAddress(), request.hash, window.size);
+            }
+            request.expiredOn = peer;
+            requeue(request);
+            assignPendingRequests();
+        }
+        sendRequests();
+    }
+
+    private void requestFinished(Request request) {
+        wheel.cancel(request.timeout);
+        Window window = windows.get(request.peer);
+        if (window != null) {
+            window.inFlight--;
+        }
+        request.peer = null;
+    }
+
+    // puts the request back in announced order, it is usually one of the first
+    private void requeue(Request request) {
+        ListIterator<Request> iterator = pending.listIterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().seq > request.seq) {
+                iterator.previous();
+                break;
+            }
+        }
+        iterator.add(request);
+    }
+
+    private void cancelRequests() {
+        for (Request request : requests.values()) {
+            wheel.cancel(request.timeout);
+        }
+        requests.clear();
+        pending.clear();
+        unsent.clear();
+        for (Window window : windows.values()) {
+            window.inFlight = 0;
+        }
+    }
+
+    private void addUnsent(Peer peer, Sha256Hash hash) {
+        ArrayList<Sha256Hash> batch = unsent.get(peer);
+        if (batch == null) {
+            batch = new ArrayList<Sha256Hash>();
+            unsent.put(peer, batch);
+        }
+        batch.add(hash);
+    }
+
+    // hands queued requests out in order to the peers with the most room
+    private void assignPendingRequests() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<Peer> candidates = eligiblePeers(downloadPeer);
+        while (!pending.isEmpty()) {
+            Request request = pending.getFirst();
+            Peer peer = peerWithMostRoom(candidates, request.expiredOn);
+            if (peer == null) {
+                break;
+            }
+            pending.removeFirst();
+            request.peer = peer;
+            Window window = windowOf(peer);
+            window.inFlight++;
+            window.asked(request.hash);
+            wheel.schedule(request.timeout, REQUEST_TIMEOUT_MILLIS);
+            addUnsent(peer, request.hash);
+        }
+    }
+
+    private Peer peerWithMostRoom(List<Peer> candidates, Peer avoid) {
+        Peer best = null;
+        int bestRoom = 0;
+        for (Peer peer : candidates) {
+            if (peer.equals(avoid) && candidates.size() > 1) {
+                continue;
+            }
+            int room = windowOf(peer).room();
+            if (room > bestRoom) {
+                best = peer;
+                bestRoom = room;
+            }
+        }
+        return best;
+    }
+
+    private Window windowOf(Peer peer) {
+        Window window = windows.get(peer);
+        if (window == null) {
+            window = new Window(maxBlocksInFlight);
+            windows.put(peer, window);
+        }
+        return window;
+    }
+
+    private List<Peer> eligiblePeers(Peer downloadPeer) {
+        List<Peer> eligible = new ArrayList<Peer>();
+        if (downloadPeer == null) {
+            return eligible;
+        }
+        for (Peer peer : windows.keySet()) {
+            if (peer.state == Peer.State.Connected && peer.getLastBlockHeight() >= downloadPeer
+                    .getLastBlockHeight()) {
+                eligible.add(peer);
+            }
+        }
+        if (!eligible.contains(downloadPeer) && downloadPeer.state == Peer.State.Connected) {
+            eligible.add(0, downloadPeer);
+        }
+        return eligible;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.bither.bitherj.core;
+
+import net.bither.bitherj.db.BlockProvider;
+import net.bither.bitherj.db.IBlockProvider;
+import net.bither.bitherj.utils.Threading;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Prunes the stored blocks off the startup path. Main chain blocks below the retarget boundary
+ * at or under tip - window are dropped, so difficulty verification still finds the first block
+ * of the current interval, and orphans older than the expiry go as well. Deletes run in small
+ * batches with a pause in between so block and tx writes are not held up for long.
+ */
+public class BlockRetention implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(BlockRetention.class);
+
+    private static final long BATCH_PAUSE_MS = 50;
+
+    private static BlockRetention defaultRetention;
+
+    private int window;
+    private int orphanExpiry;
+    private int batchSize;
+    private boolean reclaimSpace;
+
+    public BlockRetention(int window, int orphanExpiry, int batchSize, boolean reclaimSpace) {
+        this.window = window;
+        this.orphanExpiry = orphanExpiry;
+        this.batchSize = batchSize;
+        this.reclaimSpace = reclaimSpace;
+    }
+
+    /**
+     * @return the retention {@link BlockChain} prunes with on startup, the settings values unless
+     * the app set its own
+     */
+    public static synchronized BlockRetention getDefault() {
+        if (defaultRetention == null) {
+            defaultRetention = fromSettings();
+        }
+        return defaultRetention;
+    }
+
+    /**
+     * Sets the retention {@link BlockChain} prunes with, only before it is first used.
+     */
+    public static synchronized void setDefault(BlockRetention retention) {
+        checkNotNull(retention);
+        checkState(defaultRetention == null, "BlockRetention already in use");
+        defaultRetention = retention;
+    }
+
+    public static BlockRetention fromSettings() {
+        return new BlockRetention(BitherjSettings.BLOCK_RETENTION_WINDOW, BitherjSettings
+                .BLOCK_RETENTION_ORPHAN_EXPIRY, BitherjSettings.BLOCK_RETENTION_BATCH_SIZE,
+                BitherjSettings.BLOCK_RETENTION_RECLAIM_SPACE);
+    }
+
+    public void start() {
+        Threading.THREAD_POOL.submit(this);
+    }
+
+    @Override
+    public void run() {
+        try {
+            prune();
+        } catch (RuntimeException e) {
+            log.warn("block retention failed", e);
+        }
+    }
+
+    /**
+     * @return bytes reclaimed
+     */
+    public long prune() {
+        IBlockProvider provider = BlockProvider.getInstance();
+        Block tip = provider.getLastBlock();
+        if (tip == null) {
+            return 0;
+        }
+        int mainBelow = mainCutoff(tip.getBlockNo());
+        int orphanBelow = Math.max(0, tip.getBlockNo() - orphanExpiry);
+        int removed = 0;
+        int count;
+        do {
+            count = provider.removeOldBlocks(mainBelow, orphanBelow, batchSize);
+            removed += count;
+            if (count == batchSize) {
+                try {
+                    Thread.sleep(BATCH_PAUSE_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        } while (count == batchSize);
+        long reclaimed = 0;
+        if (reclaimSpace && removed > 0) {
+            reclaimed = provider.reclaimSpace();
+        }
+        log.info("block retention removed {} blocks, reclaimed {} bytes", removed, reclaimed);
+        return reclaimed;
+    }
+
+    int mainCutoff(int tipBlockNo) {
+        int keepFrom = tipBlockNo - window;
+        if (keepFrom <= 0) {
+            return 0;
+        }
+        return keepFrom - keepFrom % BitherjSettings.BLOCK_DIFFICULTY_INTERVAL;
+    }
+}
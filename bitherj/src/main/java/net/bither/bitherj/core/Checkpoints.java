@@ -0,0 +1,248 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.bither.bitherj.core;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+
+import net.bither.bitherj.BitherjApplication;
+import net.bither.bitherj.db.IBlockProvider;
+import net.bither.bitherj.exception.ProtocolException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Main chain headers at retarget boundaries, shipped as the checkpoints.dat asset and memory
+ * mapped on first use. An empty block store starts from the newest checkpoint before the
+ * earliest key instead of a header the app fetched, and the retarget after it finds the first
+ * block of its interval here rather than needing the 2016 headers before it.
+ * <p/>
+ * File layout, big endian: "BCKP", version, count, then count records of height followed by the
+ * 80 byte header, ascending by height.
+ */
+public class Checkpoints {
+    private static final Logger log = LoggerFactory.getLogger(Checkpoints.class);
+
+    public static final String ASSET_NAME = "checkpoints.dat";
+    private static final byte[] MAGIC = new byte[]{'B', 'C', 'K', 'P'};
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 12;
+    private static final int RECORD_SIZE = 4 + Block.HEADER_SIZE;
+
+    private static Checkpoints instance;
+
+    public static synchronized Checkpoints getInstance() {
+        if (instance == null) {
+            instance = new Checkpoints(map(BitherjApplication.mContext));
+        }
+        return instance;
+    }
+
+    private ByteBuffer buffer;
+    private int count;
+
+    Checkpoints(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.count = readCount(buffer);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the newest checkpoint whose block time is at or before time, or null
+     */
+    public Block getCheckpointBefore(long time) {
+        // block times only roughly increase, scan back from the newest
+        for (int i = count - 1; i >= 0; i--) {
+            Block block = readBlock(i);
+            if (block != null && block.getBlockTime() <= time) {
+                return block;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the checkpoint at blockNo, or null when it is not a checkpoint height
+     */
+    public Block getCheckpoint(int blockNo) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int height = readHeight(mid);
+            if (height < blockNo) {
+                low = mid + 1;
+            } else if (height > blockNo) {
+                high = mid - 1;
+            } else {
+                return readBlock(mid);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return these checkpoints followed by the main chain blocks of a synced store at every
+     * retarget boundary past the newest of them, in the order {@link #write(List, OutputStream)}
+     * takes. Stops at the first boundary the store does not have.
+     */
+    public List<Block> extendedBy(IBlockProvider blockProvider) {
+        List<Block> blocks = new ArrayList<Block>();
+        for (int i = 0; i < count; i++) {
+            blocks.add(readBlock(i));
+        }
+        int blockNo = count == 0 ? 0 : readHeight(count - 1) + BitherjSettings
+                .BLOCK_DIFFICULTY_INTERVAL;
+        Block block;
+        while ((block = blockProvider.getMainChainBlock(blockNo)) != null) {
+            blocks.add(block);
+            blockNo += BitherjSettings.BLOCK_DIFFICULTY_INTERVAL;
+        }
+        return blocks;
+    }
+
+    /**
+     * Writes blocks, which must be main chain ones at retarget boundaries in ascending order, in
+     * the checkpoint layout. Used to regenerate the asset from a synced chain, see
+     * {@link #extendedBy(IBlockProvider)}.
+     */
+    public static void write(List<Block> blocks, OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(blocks.size());
+        for (Block block : blocks) {
+            if (block.getBlockNo() % BitherjSettings.BLOCK_DIFFICULTY_INTERVAL != 0) {
+                throw new IllegalArgumentException("block " + block.getBlockNo() + " is not at " +
+                        "a retarget boundary");
+            }
+            ByteArrayOutputStream header = new ByteArrayOutputStream(Block.HEADER_SIZE);
+            block.writeHeader(header);
+            out.writeInt(block.getBlockNo());
+            out.write(header.toByteArray());
+        }
+        out.flush();
+    }
+
+    private int readHeight(int index) {
+        return buffer.getInt(FILE_HEADER_SIZE + index * RECORD_SIZE);
+    }
+
+    private Block readBlock(int index) {
+        byte[] header = new byte[Block.HEADER_SIZE];
+        ByteBuffer record = buffer.duplicate();
+        record.position(FILE_HEADER_SIZE + index * RECORD_SIZE + 4);
+        record.get(header);
+        try {
+            Block block = new Block(header);
+            block.setBlockNo(readHeight(index));
+            block.setMain(true);
+            return block;
+        } catch (ProtocolException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static int readCount(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() < FILE_HEADER_SIZE) {
+            return 0;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(i) != MAGIC[i]) {
+                log.warn("checkpoints have no magic");
+                return 0;
+            }
+        }
+        if (buffer.getInt(4) != VERSION) {
+            log.warn("checkpoints version {} is not supported", buffer.getInt(4));
+            return 0;
+        }
+        int count = buffer.getInt(8);
+        if (count < 0 || FILE_HEADER_SIZE + (long) count * RECORD_SIZE > buffer.capacity()) {
+            log.warn("checkpoints are truncated");
+            return 0;
+        }
+        return count;
+    }
+
+    /**
+     * Maps the asset in place when the apk stores it uncompressed, otherwise maps a copy in the
+     * files dir.
+     */
+    private static ByteBuffer map(Context context) {
+        if (context == null) {
+            return null;
+        }
+        try {
+            AssetFileDescriptor fd = context.getAssets().openFd(ASSET_NAME);
+            FileInputStream in = fd.createInputStream();
+            try {
+                return in.getChannel().map(FileChannel.MapMode.READ_ONLY, fd.getStartOffset(),
+                        fd.getLength());
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // compressed in the apk, no descriptor to map
+        }
+        try {
+            File file = new File(context.getFilesDir(), ASSET_NAME);
+            InputStream asset = context.getAssets().open(ASSET_NAME);
+            try {
+                FileOutputStream out = new FileOutputStream(file);
+                try {
+                    byte[] bytes = new byte[8192];
+                    int read;
+                    while ((read = asset.read(bytes)) > 0) {
+                        out.write(bytes, 0, read);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                asset.close();
+            }
+            FileInputStream in = new FileInputStream(file);
+            try {
+                return in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.bither.bitherj.core;
+
+import net.bither.bitherj.utils.Sha256Hash;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The most recent main chain headers, contiguous by height and ending at the chain tip. Heights
+ * map to slots of a ring buffer, so appending past the capacity drops the oldest header.
+ */
+class MainChainIndex {
+    private final Block[] blocks;
+    private final HashMap<Sha256Hash, Integer> heights = new HashMap<Sha256Hash, Integer>();
+    private int tipNo = -1;
+    private int size = 0;
+
+    MainChainIndex(int capacity) {
+        this.blocks = new Block[capacity];
+    }
+
+    /**
+     * @param mainChainBlocks main chain blocks ordered by height ascending
+     */
+    synchronized void load(List<Block> mainChainBlocks) {
+        clear();
+        for (Block block : mainChainBlocks) {
+            append(block);
+        }
+    }
+
+    synchronized void clear() {
+        Arrays.fill(blocks, null);
+        heights.clear();
+        tipNo = -1;
+        size = 0;
+    }
+
+    /**
+     * Adds the new tip. A block that does not directly follow the current tip starts a new index.
+     */
+    synchronized void append(Block block) {
+        if (size > 0 && (block.getBlockNo() != tipNo + 1
+                || !Arrays.equals(block.getBlockPrev(), blocks[slot(tipNo)].getBlockHash()))) {
+            clear();
+        }
+        int slot = slot(block.getBlockNo());
+        Block evicted = blocks[slot];
+        if (evicted != null) {
+            heights.remove(new Sha256Hash(evicted.getBlockHash()));
+        }
+        blocks[slot] = block;
+        heights.put(new Sha256Hash(block.getBlockHash()), block.getBlockNo());
+        tipNo = block.getBlockNo();
+        size = Math.min(size + 1, blocks.length);
+    }
+
+    /**
+     * Drops every header above blockNo, the new tip is blockNo.
+     */
+    synchronized void truncateAbove(int blockNo) {
+        while (size > 0 && tipNo > blockNo) {
+            int slot = slot(tipNo);
+            heights.remove(new Sha256Hash(blocks[slot].getBlockHash()));
+            blocks[slot] = null;
+            tipNo--;
+            size--;
+        }
+        if (size == 0) {
+            tipNo = -1;
+        }
+    }
+
+    synchronized Block get(int blockNo) {
+        if (size == 0 || blockNo > tipNo || blockNo <= tipNo - size) {
+            return null;
+        }
+        return blocks[slot(blockNo)];
+    }
+
+    synchronized boolean contains(byte[] blockHash) {
+        return heights.containsKey(new Sha256Hash(blockHash));
+    }
+
+    synchronized int getLowestBlockNo() {
+        return size == 0 ? -1 : tipNo - size + 1;
+    }
+
+    private int slot(int blockNo) {
+        return blockNo % blocks.length;
+    }
+}
@@ -16,7 +16,6 @@
 
 package net.bither.bitherj.core;
 
-import net.bither.bitherj.db.PeerProvider;
 import net.bither.bitherj.db.TxProvider;
 import net.bither.bitherj.exception.ProtocolException;
 import net.bither.bitherj.exception.ScriptException;
@@ -40,6 +39,7 @@ import net.bither.bitherj.message.VersionAck;
 import net.bither.bitherj.message.VersionMessage;
 import net.bither.bitherj.net.NioClientManager;
 import net.bither.bitherj.net.PeerSocketHandler;
+import net.bither.bitherj.net.ThroughputMeter;
 import net.bither.bitherj.script.Script;
 import net.bither.bitherj.utils.InventoryItem;
 import net.bither.bitherj.utils.LogUtil;
@@ -85,6 +85,9 @@ public class Peer extends PeerSocketHandler {
     protected int peerPort;
     protected long peerServices;
     protected int peerConnectedCnt;
+    protected int peerSuccessCnt;
+    protected int peerFailureCnt;
+    protected long peerLatency;
     protected long lastBlockHeight;
     protected int version;
     protected long nonce;
@@ -103,6 +106,8 @@ public class Peer extends PeerSocketHandler {
     private Block currentFilteredBlock;
     private VersionMessage versionMessage;
     private boolean bloomFilterSent;
+    // filtered blocks and headers, to tell a download peer that slowed down from a healthy one
+    private final ThroughputMeter blocksReceived = new ThroughputMeter();
 
 
     public Peer(InetAddress address) {
@@ -386,6 +391,12 @@ public class Peer extends PeerSocketHandler {
         txHashSha256Hashs.removeAll(knownTxHashes);
         knownTxHashes.addAll(txHashSha256Hashs);
 
+        // while catching up, the blocks are requested a few at a time from all connected peers
+        if (blockHashSha256Hashs.size() > 0 && PeerManager.instance().scheduleBlockDownload
+                (this, blockHashSha256Hashs)) {
+            blockHashSha256Hashs.clear();
+        }
+
         if (txHashSha256Hashs.size() + blockHashSha256Hashs.size() > 0) {
             sendGetDataMessageWithTxHashesAndBlockHashes(txHashSha256Hashs, blockHashSha256Hashs);
 
@@ -419,6 +430,10 @@ public class Peer extends PeerSocketHandler {
     private void startFilteredBlock(FilteredBlockMessage m) {
         Block block = m.getBlock();
         block.verifyHeader();
+        blocksReceived.record(1);
+        // a shared download asks for more itself once all its blocks are in
+        boolean scheduled = PeerManager.instance().isScheduledBlock(new Sha256Hash(block
+                .getBlockHash()));
 
         log.info("peer[{}:{}] receive filtered block {} with {} tx",
                 this.peerAddress.getHostAddress(), this.peerPort,
@@ -446,7 +461,7 @@ public class Peer extends PeerSocketHandler {
         } else {
             PeerManager.instance().relayedBlock(this, block);
         }
-        if(currentBlockHashes.size() == 0){
+        if (currentBlockHashes.size() == 0 && !scheduled) {
             sendGetBlocksMessage(Arrays.asList(new byte[][]{block.getBlockHash(), BlockChain.getInstance().getBlockLocatorArray().get(0)}), null);
         }
     }
@@ -485,11 +500,11 @@ public class Peer extends PeerSocketHandler {
                 if (prevTx == null) {
                     needToRequest.add(new Sha256Hash(tx.getIns().get(i).getPrevTxHash()));
                 } else {
-                    if (prevTx.getOuts().size() <= tx.getIns().get(i).getInSn()) {
+                    if (prevTx.getOuts().size() <= tx.getIns().get(i).getPrevOutSn()) {
                         valid = false;
                         break;
                     }
-                    byte[] outScript = prevTx.getOuts().get(tx.getIns().get(i).getInSn())
+                    byte[] outScript = prevTx.getOuts().get(tx.getIns().get(i).getPrevOutSn())
                             .getOutScript();
                     Script pubKeyScript = new Script(outScript);
                     Script script = new Script(tx.getIns().get(i).getInSignature());
@@ -575,6 +590,13 @@ public class Peer extends PeerSocketHandler {
         if (m.getBlockHeaders() == null || m.getBlockHeaders().size() == 0) {
             return;
         }
+        blocksReceived.record(m.getBlockHeaders().size());
+        if (!getDownloadData()) {
+            // answer to a getheaders sent before another peer took over the download
+            log.info("peer[{}:{}] is not the download peer, ignore its headers",
+                    this.peerAddress.getHostAddress(), this.peerPort);
+            return;
+        }
 
         try {
             int lastBlockTime = 0;
@@ -655,6 +677,7 @@ public class Peer extends PeerSocketHandler {
                     pingTime = new Date().getTime() - pingStartTime;
                 }
                 pingStartTime = 0;
+                PeerAddressBook.getInstance().setLatency(getPeerAddress(), pingTime);
             }
             LogUtil.i(Peer.class.getSimpleName(), "Peer " + getPeerAddress().getHostAddress() +" receive pong, ping time: " + pingTime);
         }
@@ -707,6 +730,24 @@ public class Peer extends PeerSocketHandler {
         sendMessage(filter);
     }
 
+    boolean isBloomFilterSent() {
+        return bloomFilterSent;
+    }
+
+    /**
+     * @return the filtered blocks and headers per second recently received from this peer
+     */
+    public double getBlocksPerSecond() {
+        return blocksReceived.getRate();
+    }
+
+    /**
+     * @return how long this peer has been measured, its rates mean little at first
+     */
+    public long getThroughputAgeMillis() {
+        return blocksReceived.getAgeMillis();
+    }
+
     public void sendMemPoolMessage() {
         if (state != State.Connected) {
             return;
@@ -821,23 +862,23 @@ public class Peer extends PeerSocketHandler {
 
 
     public void connectFail() {
-        PeerProvider.getInstance().conncetFail(getPeerAddress());
+        PeerAddressBook.getInstance().connectFail(getPeerAddress());
     }
 
     public void connectError() {
-        PeerProvider.getInstance().removePeer(getPeerAddress());
+        PeerAddressBook.getInstance().removePeer(getPeerAddress());
     }
 
 
     public void connectSucceed() {
         peerConnectedCnt = 1;
         peerTimestamp = (int) (new Date().getTime() / 1000);
-        PeerProvider.getInstance().connectSucceed(getPeerAddress());
+        PeerAddressBook.getInstance().connectSucceed(getPeerAddress());
         sendFilterLoadMessage(PeerManager.instance().bloomFilterForPeer(this));
     }
 
     @Override
-    public void connectionClosed() {
+    protected void messagesClosed() {
         state = State.Disconnected;
         PeerManager.instance().peerDisconnected(this, DisconnectReason.Normal);
     }
@@ -917,6 +958,30 @@ public class Peer extends PeerSocketHandler {
         this.peerConnectedCnt = peerConnectedCnt;
     }
 
+    public int getPeerSuccessCnt() {
+        return peerSuccessCnt;
+    }
+
+    public void setPeerSuccessCnt(int peerSuccessCnt) {
+        this.peerSuccessCnt = peerSuccessCnt;
+    }
+
+    public int getPeerFailureCnt() {
+        return peerFailureCnt;
+    }
+
+    public void setPeerFailureCnt(int peerFailureCnt) {
+        this.peerFailureCnt = peerFailureCnt;
+    }
+
+    public long getPeerLatency() {
+        return peerLatency;
+    }
+
+    public void setPeerLatency(long peerLatency) {
+        this.peerLatency = peerLatency;
+    }
+
     public long getLastBlockHeight() {
         return lastBlockHeight;
     }
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.bither.bitherj.core;
+
+import net.bither.bitherj.db.PeerProvider;
+import net.bither.bitherj.db.WriteBehindQueue;
+import net.bither.bitherj.utils.Utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Every peer address we know with how connecting to it went, kept in memory and ranked so the
+ * best candidates are read off the front. Connection events only touch memory; the peers table
+ * gets a snapshot at most every PERSIST_INTERVAL and when PeerManager stops.
+ * <p/>
+ * peer_connected_cnt keeps its meaning: 0 never tried, 1 connected, n > 1 failed n - 1 times.
+ * peer_success_cnt, peer_failure_cnt and peer_latency carry the rest of the ranking across
+ * restarts; rows from before those columns get their counts from peer_connected_cnt.
+ */
+public class PeerAddressBook {
+    private static final Logger log = LoggerFactory.getLogger(PeerAddressBook.class);
+
+    private static final int MAX_PEER_SAVE_CNT = 1000;
+    private static final long PERSIST_INTERVAL = 60 * 1000;
+
+    private static PeerAddressBook instance = new PeerAddressBook();
+
+    public static PeerAddressBook getInstance() {
+        return instance;
+    }
+
+    private final HashMap<Long, Entry> entries = new HashMap<Long, Entry>();
+    private final TreeSet<Entry> ranked = new TreeSet<Entry>(new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            if (lhs.tier() != rhs.tier()) {
+                return lhs.tier() - rhs.tier();
+            }
+            if (lhs.connectedCnt != rhs.connectedCnt) {
+                return lhs.connectedCnt - rhs.connectedCnt;
+            }
+            if (lhs.failureCount - lhs.successCount != rhs.failureCount - rhs.successCount) {
+                return (lhs.failureCount - lhs.successCount) - (rhs.failureCount - rhs
+                        .successCount);
+            }
+            if (lhs.latency != rhs.latency) {
+                // an unknown latency ranks after every measured one
+                if (lhs.latency == 0 || rhs.latency == 0) {
+                    return lhs.latency == 0 ? 1 : -1;
+                }
+                return lhs.latency < rhs.latency ? -1 : 1;
+            }
+            if (lhs.timestamp != rhs.timestamp) {
+                return lhs.timestamp > rhs.timestamp ? -1 : 1;
+            }
+            return lhs.key < rhs.key ? -1 : (lhs.key == rhs.key ? 0 : 1);
+        }
+    });
+    private int connectedCount = 0;
+    private boolean isLoaded = false;
+    private boolean isDirty = false;
+    private long lastPersistTime = 0;
+
+    private PeerAddressBook() {
+    }
+
+    public synchronized List<Peer> getPeersWithLimit(int limit) {
+        load();
+        List<Peer> peers = new ArrayList<Peer>();
+        Iterator<Entry> iterator = ranked.iterator();
+        while (iterator.hasNext() && peers.size() < limit) {
+            peers.add(iterator.next().toPeer());
+        }
+        return peers;
+    }
+
+    public synchronized int size() {
+        load();
+        return entries.size();
+    }
+
+    /**
+     * Adds the addresses not known yet and drops the worst ranked ones that are not connected
+     * beyond MAX_PEER_SAVE_CNT.
+     */
+    public synchronized void addPeers(List<Peer> peers) {
+        load();
+        for (Peer peer : peers) {
+            long key = Utils.parseLongFromAddress(peer.getPeerAddress());
+            if (!entries.containsKey(key)) {
+                add(new Entry(key, peer));
+                isDirty = true;
+            }
+        }
+        while (entries.size() - connectedCount > MAX_PEER_SAVE_CNT && ranked.last()
+                .connectedCnt != 1) {
+            remove(ranked.last());
+        }
+        persistIfNeeded();
+    }
+
+    public synchronized void connectSucceed(InetAddress address) {
+        Entry entry = get(address);
+        if (entry != null) {
+            remove(entry);
+            entry.connectedCnt = 1;
+            entry.successCount++;
+            entry.timestamp = (int) (System.currentTimeMillis() / 1000);
+            add(entry);
+            isDirty = true;
+            persistIfNeeded();
+        }
+    }
+
+    public synchronized void connectFail(InetAddress address) {
+        Entry entry = get(address);
+        if (entry != null) {
+            remove(entry);
+            entry.connectedCnt = entry.connectedCnt == 0 ? 2 : entry.connectedCnt + 1;
+            entry.failureCount++;
+            add(entry);
+            isDirty = true;
+            persistIfNeeded();
+        }
+    }
+
+    public synchronized void removePeer(InetAddress address) {
+        Entry entry = get(address);
+        if (entry != null) {
+            remove(entry);
+            isDirty = true;
+            persistIfNeeded();
+        }
+    }
+
+    /**
+     * @param latency smoothed ping time in ms
+     */
+    public synchronized void setLatency(InetAddress address, long latency) {
+        Entry entry = get(address);
+        if (entry != null && latency > 0) {
+            remove(entry);
+            entry.latency = latency;
+            add(entry);
+        }
+    }
+
+    /**
+     * Queues a snapshot of the whole book for the peers table.
+     */
+    public synchronized void persist() {
+        if (!isLoaded || !isDirty) {
+            return;
+        }
+        final List<Peer> peers = new ArrayList<Peer>();
+        for (Entry entry : ranked) {
+            peers.add(entry.toPeer());
+        }
+        WriteBehindQueue.getInstance().enqueue(new Runnable() {
+            @Override
+            public void run() {
+                PeerProvider.getInstance().replacePeers(peers);
+            }
+        }, null);
+        isDirty = false;
+        lastPersistTime = System.currentTimeMillis();
+        log.info("persist {} peers", peers.size());
+    }
+
+    private void persistIfNeeded() {
+        if (System.currentTimeMillis() - lastPersistTime >= PERSIST_INTERVAL) {
+            persist();
+        }
+    }
+
+    private void load() {
+        if (isLoaded) {
+            return;
+        }
+        for (Peer peer : PeerProvider.getInstance().getAllPeers()) {
+            if (peer.getPeerAddress() != null) {
+                long key = Utils.parseLongFromAddress(peer.getPeerAddress());
+                if (!entries.containsKey(key)) {
+                    add(new Entry(key, peer));
+                }
+            }
+        }
+        isLoaded = true;
+        lastPersistTime = System.currentTimeMillis();
+    }
+
+    private Entry get(InetAddress address) {
+        load();
+        return entries.get(Utils.parseLongFromAddress(address));
+    }
+
+    private void add(Entry entry) {
+        entries.put(entry.key, entry);
+        ranked.add(entry);
+        if (entry.connectedCnt == 1) {
+            connectedCount++;
+        }
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.key);
+        ranked.remove(entry);
+        if (entry.connectedCnt == 1) {
+            connectedCount--;
+        }
+    }
+
+    private static class Entry {
+        private long key;
+        private InetAddress address;
+        private int port;
+        private long services;
+        private int timestamp;
+        private int connectedCnt;
+        private int successCount;
+        private int failureCount;
+        private long latency;
+
+        Entry(long key, Peer peer) {
+            this.key = key;
+            this.address = peer.getPeerAddress();
+            this.port = peer.getPeerPort();
+            this.services = peer.getPeerServices();
+            this.timestamp = peer.getPeerTimestamp();
+            this.connectedCnt = peer.getPeerConnectedCnt();
+            this.successCount = peer.getPeerSuccessCnt();
+            this.failureCount = peer.getPeerFailureCnt();
+            this.latency = peer.getPeerLatency();
+            if (successCount == 0 && failureCount == 0) {
+                this.successCount = connectedCnt == 1 ? 1 : 0;
+                this.failureCount = connectedCnt > 1 ? connectedCnt - 1 : 0;
+            }
+        }
+
+        int tier() {
+            if (connectedCnt == 1) {
+                return 0;
+            }
+            return connectedCnt == 0 ? 1 : 2;
+        }
+
+        Peer toPeer() {
+            Peer peer = new Peer(address);
+            peer.setPeerPort(port);
+            peer.setPeerServices(services);
+            peer.setPeerTimestamp(timestamp);
+            peer.setPeerConnectedCnt(connectedCnt);
+            peer.setPeerSuccessCnt(successCount);
+            peer.setPeerFailureCnt(failureCount);
+            peer.setPeerLatency(latency);
+            return peer;
+        }
+    }
+}
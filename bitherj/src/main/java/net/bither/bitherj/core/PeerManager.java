@@ -19,9 +19,10 @@ package net.bither.bitherj.core;
 import android.content.Intent;
 
 import net.bither.bitherj.BitherjApplication;
-import net.bither.bitherj.db.PeerProvider;
 import net.bither.bitherj.db.TxProvider;
+import net.bither.bitherj.db.WriteBehindQueue;
 import net.bither.bitherj.exception.ProtocolException;
+import net.bither.bitherj.net.TimingWheel;
 import net.bither.bitherj.utils.DnsDiscovery;
 import net.bither.bitherj.utils.LogUtil;
 import net.bither.bitherj.utils.NotificationUtil;
@@ -32,6 +33,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -39,8 +41,10 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -57,6 +61,16 @@ public class PeerManager {
     private static final int MaxPeerCount = 100;
     private static final int MaxConnectFailure = 20;
 
+    // a download peer is measured this long before it can be replaced, about three time
+    // constants of its throughput meter
+    private static final long StallGraceMillis = 30 * 1000;
+    private static final long StallCheckMillis = 5 * 1000;
+    // a peer below this is not downloading, it can not take over from the download peer
+    private static final double StalledBlocksPerSecond = 0.2;
+    // the download peer is replaced by a peer this many times faster. When all of them are
+    // slow the chain or the executor is the bottleneck and switching would only restart the sync
+    private static final double SlowDownloadFactor = 4;
+
     private static PeerManager instance = new PeerManager();
 
     private PeerManagerExecutorService executor;
@@ -79,6 +93,24 @@ public class PeerManager {
 
     private boolean synchronizing;
     private Peer downloadingPeer;
+    private long downloadingPeerSince;
+    private final BlockDownloadScheduler blockDownloads;
+    private final TimingWheel.Timeout stallCheck = new TimingWheel.Timeout(new Runnable() {
+        @Override
+        public void run() {
+            // the ticker must not wait for room, and a backlog that long is no peer's fault
+            if (executor.getQueue().size() >= PeerManagerExecutorService.TaskCapacityWaitForRoom) {
+                TimingWheel.getInstance().schedule(stallCheck, StallCheckMillis);
+                return;
+            }
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    checkDownloadStall();
+                }
+            });
+        }
+    });
 
 
     public static final PeerManager instance() {
@@ -96,6 +128,45 @@ public class PeerManager {
         tweak = new Random().nextLong();
         earliestKeyTime = new Date().getTime() / 1000;//TODO how to set this field
         executor = new PeerManagerExecutorService();
+        blockDownloads = new BlockDownloadScheduler(new BlockDownloadScheduler.Listener() {
+            @Override
+            public void requestBlocks(final Peer peer, final List<Sha256Hash> blockHashes) {
+                if (peer.isBloomFilterSent()) {
+                    peer.sendGetDataMessageWithTxHashesAndBlockHashes(null, blockHashes);
+                    return;
+                }
+                // the filter is only built on the executor
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!peer.isBloomFilterSent()) {
+                            peer.sendFilterLoadMessage(bloomFilterForPeer(peer));
+                        }
+                        peer.sendGetDataMessageWithTxHashesAndBlockHashes(null, blockHashes);
+                    }
+                });
+            }
+
+            @Override
+            public void relayBlock(Peer fromPeer, Block block) {
+                relayDownloadedBlock(fromPeer, block);
+            }
+
+            @Override
+            public void downloadFinished(Peer downloadPeer, Block lastBlock) {
+                // the same as a download peer does when it runs out of requested blocks
+                if (downloadPeer == downloadingPeer) {
+                    downloadPeer.sendGetBlocksMessage(Arrays.asList(new byte[][]{lastBlock
+                            .getBlockHash(), BlockChain.getInstance().getBlockLocatorArray().get
+                            (0)}), null);
+                }
+            }
+        }, TimingWheel.getInstance(), new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executor.executeWithoutWaiting(command);
+            }
+        });
         initPublishedTx();
     }
 
@@ -120,6 +191,8 @@ public class PeerManager {
         if (!running) {
             log.info("peer manager call start");
             running = true;
+            BlockChain.getInstance().addCheckpointBlock(AddressManager.getInstance()
+                    .getEarliestKeyTime());
             if (!connected) {
                 bloomFilter = null;
                 reconnect();
@@ -133,11 +206,14 @@ public class PeerManager {
         if (running) {
             log.info("peer manager call stop");
             running = false;
+            PeerAddressBook.getInstance().persist();
+            WriteBehindQueue.getInstance().flush();
             if (connected) {
                 NotificationUtil.removeBroadcastPeerState();
                 bloomFilter = null;
                 connected = false;
                 sendAvailabilityChangeBroadcast();
+                blockDownloads.reset();
                 executor.getQueue().clear();
                 executor.submit(new Runnable() {
                     @Override
@@ -203,12 +279,12 @@ public class PeerManager {
 
     private HashSet<Peer> bestPeers() {
         HashSet<Peer> peers = new HashSet<Peer>();
-        peers.addAll(PeerProvider.getInstance().getPeersWithLimit(BitherjSettings
+        peers.addAll(PeerAddressBook.getInstance().getPeersWithLimit(BitherjSettings
                 .MaxPeerConnections));
         if (peers.size() < BitherjSettings.MaxPeerConnections) {
             if (getPeersFromDns().size() > 0) {
                 peers.clear();
-                peers.addAll(PeerProvider.getInstance().getPeersWithLimit(BitherjSettings
+                peers.addAll(PeerAddressBook.getInstance().getPeersWithLimit(BitherjSettings
                         .MaxPeerConnections));
             }
         }
@@ -221,7 +297,7 @@ public class PeerManager {
         HashSet<Peer> peers = new HashSet<Peer>();
         Peer[] ps = DnsDiscovery.instance().getPeers(5, TimeUnit.SECONDS);
         Collections.addAll(peers, ps);
-        PeerProvider.getInstance().addPeers(new ArrayList<Peer>(peers));
+        PeerAddressBook.getInstance().addPeers(new ArrayList<Peer>(peers));
         return peers;
     }
 
@@ -235,6 +311,7 @@ public class PeerManager {
         peer.connectError();
         peer.disconnect();
         connectedPeers.remove(peer);
+        blockDownloads.peerDisconnected(peer);
         abandonPeers.add(peer);
         reconnect();
     }
@@ -249,8 +326,7 @@ public class PeerManager {
                         result.add(peer);
                     }
                 }
-                PeerProvider.getInstance().addPeers(result);
-                PeerProvider.getInstance().cleanPeers();
+                PeerAddressBook.getInstance().addPeers(result);
             }
         });
     }
@@ -262,11 +338,23 @@ public class PeerManager {
         if (height != BitherjSettings.TX_UNCONFIRMED) {
             // update all tx in db
             log.info("update {} txs confirmation", txHashes.size());
-            TxProvider.getInstance().confirmTx(height, txHashes);
-            // update all address 's tx and balance
-            for (Address address : AddressManager.getInstance().getAllAddresses()) {
-                address.setBlockHeight(txHashes, height);
-            }
+            final Set<String> changedAddresses = new HashSet<String>();
+            WriteBehindQueue.getInstance().enqueue(new Runnable() {
+                @Override
+                public void run() {
+                    changedAddresses.addAll(TxProvider.getInstance().confirmTx(height, txHashes));
+                }
+            }, new Runnable() {
+                @Override
+                public void run() {
+                    // only the addresses the block touched have new txs or balance
+                    for (Address address : AddressManager.getInstance().getAllAddresses()) {
+                        if (changedAddresses.contains(address.getAddress())) {
+                            address.setBlockHeight(txHashes, height);
+                        }
+                    }
+                }
+            });
 
             // remove confirmed tx from publish list and relay counts
             for (byte[] hash : txHashes) {
@@ -300,6 +388,7 @@ public class PeerManager {
                 @Override
                 public void run() {
                     peer.connectSucceed();
+                    blockDownloads.peerConnected(peer);
                     if (connected && ((downloadingPeer != null && downloadingPeer
                             .getLastBlockHeight() >= peer.getLastBlockHeight()) ||
                             getLastBlockHeight() >= peer.getLastBlockHeight())) {
@@ -328,6 +417,7 @@ public class PeerManager {
                         downloadingPeer.disconnect();
                     }
                     downloadingPeer = dp;
+                    downloadingPeerSince = new Date().getTime();
                     connected = true;
 
                     // every time a new wallet address is added, the bloom filter has to be
@@ -346,6 +436,7 @@ public class PeerManager {
 
                         lastRelayTime = 0;
                         synchronizing = true;
+                        TimingWheel.getInstance().schedule(stallCheck, StallCheckMillis);
 
                         // request just block headers up to a week before earliestKeyTime,
                         // and then merkleblocks after that
@@ -378,6 +469,8 @@ public class PeerManager {
 
     private void syncStopped() {
         synchronizing = false;
+        TimingWheel.getInstance().cancel(stallCheck);
+        AddressManager.getInstance().verifyBalancesIfNeeded();
 
         for (Peer p : connectedPeers) { // after syncing, load filters and get mempools from the
             // other peers
@@ -393,6 +486,59 @@ public class PeerManager {
         }
     }
 
+    // runs on the executor every few seconds while synchronizing
+    private void checkDownloadStall() {
+        Peer dp = downloadingPeer;
+        if (!running || !synchronizing || dp == null) {
+            return;
+        }
+        TimingWheel.getInstance().schedule(stallCheck, StallCheckMillis);
+        if (new Date().getTime() - downloadingPeerSince < StallGraceMillis) {
+            return;
+        }
+        double rate = dp.getBlocksPerSecond();
+        Peer best = null;
+        for (Peer p : connectedPeers) {
+            if (p == dp || p.state != Peer.State.Connected || p.getLastBlockHeight() <=
+                    getLastBlockHeight() || p.getThroughputAgeMillis() < StallGraceMillis) {
+                continue;
+            }
+            if (best == null || p.getBlocksPerSecond() > best.getBlocksPerSecond() || (p
+                    .getBlocksPerSecond() == best.getBlocksPerSecond() && p.pingTime < best
+                    .pingTime)) {
+                best = p;
+            }
+        }
+        if (best == null) {
+            return;
+        }
+        double bestRate = best.getBlocksPerSecond();
+        if (bestRate > StalledBlocksPerSecond && bestRate > rate * SlowDownloadFactor) {
+            log.info("Download peer {} stalled at {} blocks/s {} bytes/s, switch to {} at {} " +
+                    "blocks/s {} bytes/s", dp.getPeerAddress().getHostAddress(), rate,
+                    dp.getBytesPerSecond(), best.getPeerAddress().getHostAddress(), bestRate,
+                    best.getBytesPerSecond());
+            replaceDownloadingPeer(dp, best);
+        }
+    }
+
+    // the stalled peer stays connected, it just no longer leads the download
+    private void replaceDownloadingPeer(Peer stalled, Peer next) {
+        downloadingPeer = next;
+        downloadingPeerSince = new Date().getTime();
+        lastRelayTime = 0;
+        blockDownloads.replaceDownloadPeer(stalled, next);
+        if (!next.isBloomFilterSent()) {
+            next.sendFilterLoadMessage(bloomFilterForPeer(next));
+        }
+        // blocks already scheduled are announced again and only the new ones are added
+        if (doneSyncFromSPV()) {
+            next.sendGetBlocksMessage(BlockChain.getInstance().getBlockLocatorArray(), null);
+        } else {
+            next.sendGetHeadersMessage(BlockChain.getInstance().getBlockLocatorArray(), null);
+        }
+    }
+
     public void peerDisconnected(final Peer peer, final Peer.DisconnectReason reason) {
         executor.submit(new Runnable() {
             @Override
@@ -412,6 +558,7 @@ public class PeerManager {
                 }
                 int previousConnectedCount = connectedPeers.size();
                 connectedPeers.remove(peer);
+                blockDownloads.peerDisconnected(peer);
                 log.info("Peer disconnected {} , remaining {} peers , reason: " + reason,
                         peer.getPeerAddress().getHostAddress(), connectedPeers.size());
                 if (previousConnectedCount > 0 && connectedPeers.size() == 0) {
@@ -507,6 +654,7 @@ public class PeerManager {
                         downloadingPeer.refetchBlocksFrom(new Sha256Hash(BlockChain.getInstance()
                                 .lastBlock.getBlockHash()));
                     }
+                    blockDownloads.refetch();
                 }
             }
         });
@@ -568,6 +716,33 @@ public class PeerManager {
         });
     }
 
+    /**
+     * Requests the announced blocks a few at a time from each connected peer while catching up.
+     *
+     * @return false if fromPeer should request them itself
+     */
+    public boolean scheduleBlockDownload(Peer fromPeer, List<Sha256Hash> blockHashes) {
+        if (!isRunning() || !synchronizing || fromPeer != downloadingPeer) {
+            return false;
+        }
+        return blockDownloads.schedule(fromPeer, blockHashes);
+    }
+
+    public boolean isScheduledBlock(Sha256Hash blockHash) {
+        return blockDownloads.isScheduled(blockHash);
+    }
+
+    /**
+     * Sets how many filtered blocks one peer may be asked for ahead while catching up.
+     */
+    public void setMaxBlocksInFlightPerPeer(int count) {
+        blockDownloads.setMaxBlocksInFlight(count);
+    }
+
+    public int getMaxBlocksInFlightPerPeer() {
+        return blockDownloads.getMaxBlocksInFlight();
+    }
+
     public void relayedBlock(final Peer fromPeer, final Block block) {
         if (!isRunning()) {
             return;
@@ -578,6 +753,17 @@ public class PeerManager {
         if (fromPeer == downloadingPeer) {
             lastRelayTime = new Date().getTime() / 1000;
         }
+        // blocks of a shared download come back here in chain order
+        if (blockDownloads.blockReceived(fromPeer, block)) {
+            return;
+        }
+        relayDownloadedBlock(fromPeer, block);
+    }
+
+    private void relayDownloadedBlock(final Peer fromPeer, final Block block) {
+        if (!isRunning()) {
+            return;
+        }
         if ((block.getTxHashes() == null || block.getTxHashes().size() == 0) && block
                 .getBlockTime() - new Date().getTime() / 1000 + 60 * 60 * 24 * 7 >
                 earliestKeyTime) {
@@ -614,10 +800,13 @@ public class PeerManager {
                     log.warn("Peer {} relay block {} error, drop this peer", fromPeer.getPeerAddress().getHostAddress(), Utils.hashToString(block.getBlockHash()));
                 }
 
-                if (block.getBlockNo() == fromPeer.getLastBlockHeight() && block.getBlockNo() ==
-                        getLastBlockHeight()) {
+                // the block may come from a helper peer, the sync ends at the download peer's
+                // height
+                Peer downloadPeer = downloadingPeer == null ? fromPeer : downloadingPeer;
+                if (block.getBlockNo() == downloadPeer.getLastBlockHeight() && block.getBlockNo()
+                        == getLastBlockHeight()) {
                     syncStopped();
-                    fromPeer.sendGetAddrMessage(); // request a list of other bitcoin peers
+                    downloadPeer.sendGetAddrMessage(); // request a list of other bitcoin peers
                     syncStartHeight = 0;
                     if (!doneSyncFromSPV()) {
                         NotificationUtil.sendBroadcastSyncSPVFinished(true);
@@ -682,6 +871,8 @@ public class PeerManager {
         }
 
         AddressManager.getInstance().registerTx(tx, Tx.TxNotificationType.txSend);
+        // our own tx is written before it goes out
+        WriteBehindQueue.getInstance().flush();
 
         publishedTx.put(new Sha256Hash(tx.getTxHash()), tx);
 
@@ -785,6 +976,14 @@ public class PeerManager {
             super(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
         }
 
+        /**
+         * Queues the task even over capacity, for threads that must never wait such as the
+         * timing wheel's ticker.
+         */
+        public void executeWithoutWaiting(Runnable command) {
+            super.execute(command);
+        }
+
         @Override
         public void execute(Runnable command) {
             int waiting = getQueue().size();
@@ -0,0 +1,128 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.bither.bitherj.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import net.bither.bitherj.BitherjApplication;
+import net.bither.bitherj.core.Address;
+import net.bither.bitherj.utils.Utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class AddressProvider {
+    private static final Logger log = LoggerFactory.getLogger(AddressProvider.class);
+
+    private static AddressProvider addressProvider = new AddressProvider(BitherjApplication.mDbHelper);
+
+    public static AddressProvider getInstance() {
+        return addressProvider;
+    }
+
+    // the running balance comes along, so loading an address does not query it again
+    private static final String QUERY_ADDRESSES = "select a.address, a.pub_key, a.create_time, a.sync_complete," +
+            " ifnull(b.balance,0) balance from addresses a left join address_balances b on b.address=a.address" +
+            " where a.has_priv_key=? order by a.create_time";
+    private static final String INSERT_ADDRESS = "insert or replace into addresses(address, pub_key, has_priv_key," +
+            " create_time, sync_complete) values(?,?,?,?,?)";
+    private static final String INSERT_ADDRESS_FILE = "insert or ignore into addresses(address, pub_key, has_priv_key," +
+            " create_time, sync_complete) values(?,?,?,?,?)";
+    private static final String DELETE_ADDRESS = "delete from addresses where address=?";
+
+    private SQLiteOpenHelper mDb;
+    private StatementRegistry statements = new StatementRegistry();
+
+    public AddressProvider(SQLiteOpenHelper db) {
+        this.mDb = db;
+    }
+
+    /**
+     * The addresses with or without a private key, oldest first, with their balances.
+     */
+    public List<Address> getAddresses(boolean hasPrivKey) {
+        List<Address> addresses = new ArrayList<Address>();
+        SQLiteDatabase db = this.mDb.getReadableDatabase();
+        Cursor c = BlobCursorFactory.rawQuery(db, QUERY_ADDRESSES, hasPrivKey ? 1 : 0);
+        try {
+            while (c.moveToNext()) {
+                addresses.add(new Address(c.getString(0), c.getBlob(1), c.getLong(2),
+                        c.getInt(3) == 1, hasPrivKey, c.getLong(4)));
+            }
+        } finally {
+            c.close();
+        }
+        return addresses;
+    }
+
+    public void addAddress(Address address) {
+        SQLiteDatabase db = this.mDb.getWritableDatabase();
+        statements.executeInsert(db, INSERT_ADDRESS, address.getAddress(), address.getPubKey(),
+                address.hasPrivKey() ? 1 : 0, address.getCreateTime(), address.isSyncComplete()
+                        ? 1 : 0);
+    }
+
+    public void removeAddress(String address) {
+        SQLiteDatabase db = this.mDb.getWritableDatabase();
+        statements.execute(db, DELETE_ADDRESS, address);
+    }
+
+    /**
+     * Copies the addresses kept as address.pub files of "pubkey:syncComplete:createTime" in the
+     * private and watch only dirs. Runs inside the migration, so it works on the db it is given.
+     */
+    void importAddressFiles(SQLiteDatabase db) {
+        int count = importAddressFiles(db, Utils.getPrivateDir(), true)
+                + importAddressFiles(db, Utils.getWatchOnlyDir(), false);
+        log.info("imported {} address files", count);
+    }
+
+    private int importAddressFiles(SQLiteDatabase db, File dir, boolean hasPrivKey) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int count = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(Address.PUBLIC_KEY_FILE_NAME_SUFFIX)) {
+                continue;
+            }
+            String address = name.substring(0, name.length() - Address
+                    .PUBLIC_KEY_FILE_NAME_SUFFIX.length());
+            try {
+                String[] strings = Utils.readFile(file).split(Address.KEY_SPLIT_STRING);
+                byte[] pubKey = Utils.hexStringToByteArray(strings[0]);
+                int isSyncComplete = Integer.valueOf(strings[1]);
+                long createTime = Long.valueOf(strings[2].trim());
+                statements.executeInsert(db, INSERT_ADDRESS_FILE, address, pubKey, hasPrivKey ?
+                        1 : 0, createTime, isSyncComplete == 1 ? 1 : 0);
+                count++;
+            } catch (RuntimeException e) {
+                log.warn("skip unreadable address file {}", name);
+                e.printStackTrace();
+            }
+        }
+        return count;
+    }
+}
@@ -17,14 +17,82 @@
 package net.bither.bitherj.db;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+
+import net.bither.bitherj.core.Out;
+import net.bither.bitherj.exception.AddressFormatException;
+import net.bither.bitherj.utils.Base58;
+import net.bither.bitherj.utils.Utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class BitherjDatabaseHelper extends SQLiteOpenHelper {
+    private static final Logger log = LoggerFactory.getLogger(BitherjDatabaseHelper.class);
 
-    public static final int DB_VERSION = 1;
+    public static final int DB_VERSION = 9;
     private static final String DB_NAME = "bitherj.db";
 
+    /**
+     * Ordered by version. A step is never edited once released, later changes get a new one.
+     */
+    private final Migration[] migrations = new Migration[]{
+            new Migration(2) {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    if (!isColumnType(db, Tables.BLOCKS, BlocksColumns.BLOCK_HASH, "blob")) {
+                        upgradeHashColumnsToBlob(db);
+                    }
+                }
+            },
+            new Migration(3) {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    createQueryIndexes(db);
+                }
+            },
+            new Migration(4) {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    createUnspentOutsTable(db);
+                }
+            },
+            new Migration(5) {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    createAddressBalancesTable(db);
+                }
+            },
+            new Migration(6) {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    addTxsRawColumn(db);
+                }
+            },
+            new Migration(7) {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    createAddressesTable(db);
+                }
+            },
+            new Migration(8) {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    createTxsHistoryIndex(db);
+                }
+            },
+            new Migration(9) {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    addPeersScoreColumns(db);
+                }
+            }
+    };
+
     public BitherjDatabaseHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
     }
@@ -37,12 +105,31 @@ public class BitherjDatabaseHelper extends SQLiteOpenHelper {
         createInsTable(db);
         createOutsTable(db);
         createPeersTable(db);
+        migrate(db, 1, DB_VERSION);
+    }
 
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // provider queries use constant sql with bound args, keep all of them compiled. Both the
+        // method and MAX_SQL_CACHE_SIZE (100) only exist from API 11.
+        if (Build.VERSION.SDK_INT >= 11) {
+            db.setMaxSqlCacheSize(100);
+        }
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        migrate(db, oldVersion, newVersion);
+    }
 
+    private void migrate(SQLiteDatabase db, int fromVersion, int toVersion) {
+        for (Migration migration : migrations) {
+            if (migration.getVersion() > fromVersion && migration.getVersion() <= toVersion) {
+                log.info("migrate db to version {}", migration.getVersion());
+                migration.migrate(db);
+            }
+        }
     }
 
     public interface Tables {
@@ -52,6 +139,9 @@ public class BitherjDatabaseHelper extends SQLiteOpenHelper {
         public static final String INS = "ins";
         public static final String OUTS = "outs";
         public static final String PEERS = "peers";
+        public static final String UNSPENT_OUTS = "unspent_outs";
+        public static final String ADDRESS_BALANCES = "address_balances";
+        public static final String ADDRESSES = "addresses";
     }
 
     public interface BlocksColumns {
@@ -73,6 +163,7 @@ public class BitherjDatabaseHelper extends SQLiteOpenHelper {
         public static final String TX_TIME = "tx_time";
         public static final String BLOCK_NO = "block_no";
         public static final String SOURCE = "source";
+        public static final String RAW = "raw";
     }
 
     public interface AddressesTxsColumns {
@@ -98,12 +189,36 @@ public class BitherjDatabaseHelper extends SQLiteOpenHelper {
         public static final String OUT_ADDRESS = "out_address";
     }
 
+    public interface UnspentOutsColumns {
+        public static final String OUT_ADDRESS = "out_address";
+        public static final String TX_HASH = "tx_hash";
+        public static final String OUT_SN = "out_sn";
+        public static final String OUT_VALUE = "out_value";
+        public static final String BLOCK_NO = "block_no";
+    }
+
+    public interface AddressBalancesColumns {
+        public static final String ADDRESS = "address";
+        public static final String BALANCE = "balance";
+    }
+
+    public interface AddressesColumns {
+        public static final String ADDRESS = "address";
+        public static final String PUB_KEY = "pub_key";
+        public static final String HAS_PRIV_KEY = "has_priv_key";
+        public static final String CREATE_TIME = "create_time";
+        public static final String SYNC_COMPLETE = "sync_complete";
+    }
+
     public interface PeersColumns {
         public static final String PEER_ADDRESS = "peer_address";
         public static final String PEER_PORT = "peer_port";
         public static final String PEER_SERVICES = "peer_services";
         public static final String PEER_TIMESTAMP = "peer_timestamp";
         public static final String PEER_CONNECTED_CNT = "peer_connected_cnt";
+        public static final String PEER_SUCCESS_CNT = "peer_success_cnt";
+        public static final String PEER_FAILURE_CNT = "peer_failure_cnt";
+        public static final String PEER_LATENCY = "peer_latency";
 
     }
 
@@ -111,23 +226,23 @@ public class BitherjDatabaseHelper extends SQLiteOpenHelper {
     private void createBlocksTable(SQLiteDatabase db) {
         String sql = "create table if not exists blocks " +
                 "(block_no integer not null" +
-                ", block_hash text not null primary key" +
-                ", block_root text not null" +
+                ", block_hash blob not null primary key" +
+                ", block_root blob not null" +
                 ", block_ver integer not null" +
                 ", block_bits integer not null" +
                 ", block_nonce integer not null" +
                 ", block_time integer not null" +
-                ", block_prev text" +
+                ", block_prev blob" +
                 ", is_main integer not null);";
         db.execSQL(sql);
-        db.execSQL("create index idx_blocks_block_no on blocks (block_no);");
-        db.execSQL("create index idx_blocks_block_prev on blocks (block_prev);");
+        db.execSQL("create index if not exists idx_blocks_block_no on blocks (block_no);");
+        db.execSQL("create index if not exists idx_blocks_block_prev on blocks (block_prev);");
 
     }
 
     private void createTxsTable(SQLiteDatabase db) {
         String sql = "create table if not exists txs " +
-                "(tx_hash text primary key" +
+                "(tx_hash blob primary key" +
                 ", tx_ver integer" +
                 ", tx_locktime integer" +
                 ", tx_time integer" +
@@ -137,10 +252,21 @@ public class BitherjDatabaseHelper extends SQLiteOpenHelper {
 
     }
 
+    /**
+     * The serialized tx, read back in one piece. ins and outs stay for the queries that search
+     * them. Rows written before keep working from those tables until filled here.
+     */
+    private void addTxsRawColumn(SQLiteDatabase db) {
+        if (!hasColumn(db, Tables.TXS, TxsColumns.RAW)) {
+            db.execSQL("alter table txs add column raw blob");
+        }
+        new TxProvider(this).fillRawTxs(db);
+    }
+
     private void createAddressTxsTable(SQLiteDatabase db) {
         String sql = "create table if not exists addresses_txs " +
                 "(address text not null" +
-                ", tx_hash text not null" +
+                ", tx_hash blob not null" +
                 ", primary key (address, tx_hash));";
         db.execSQL(sql);
 
@@ -148,11 +274,11 @@ public class BitherjDatabaseHelper extends SQLiteOpenHelper {
 
     private void createInsTable(SQLiteDatabase db) {
         String sql = "create table if not exists ins " +
-                "(tx_hash text not null" +
+                "(tx_hash blob not null" +
                 ", in_sn integer not null" +
-                ", prev_tx_hash text" +
+                ", prev_tx_hash blob" +
                 ", prev_out_sn integer" +
-                ", in_signature text" +
+                ", in_signature blob" +
                 ", in_sequence integer" +
                 ", primary key (tx_hash, in_sn));";
         db.execSQL(sql);
@@ -160,9 +286,9 @@ public class BitherjDatabaseHelper extends SQLiteOpenHelper {
 
     private void createOutsTable(SQLiteDatabase db) {
         String sql = "create table if not exists outs " +
-                "(tx_hash text not null" +
+                "(tx_hash blob not null" +
                 ", out_sn integer not null" +
-                ", out_script text not null" +
+                ", out_script blob not null" +
                 ", out_value integer not null" +
                 ", out_status integer not null" +
                 ", out_address text" +
@@ -180,4 +306,260 @@ public class BitherjDatabaseHelper extends SQLiteOpenHelper {
                 ", peer_connected_cnt integer not null);";
         db.execSQL(sql);
     }
+
+    /**
+     * What PeerAddressBook ranks on besides peer_connected_cnt. Rows written before start at 0,
+     * which the book reads as nothing recorded yet.
+     */
+    private void addPeersScoreColumns(SQLiteDatabase db) {
+        if (!hasColumn(db, Tables.PEERS, PeersColumns.PEER_SUCCESS_CNT)) {
+            db.execSQL("alter table peers add column peer_success_cnt integer not null default 0");
+        }
+        if (!hasColumn(db, Tables.PEERS, PeersColumns.PEER_FAILURE_CNT)) {
+            db.execSQL("alter table peers add column peer_failure_cnt integer not null default 0");
+        }
+        if (!hasColumn(db, Tables.PEERS, PeersColumns.PEER_LATENCY)) {
+            db.execSQL("alter table peers add column peer_latency integer not null default 0");
+        }
+    }
+
+    /**
+     * Indexes for the lookups the providers run on every tx and block. The ins index carries
+     * tx_hash so finding the spender of an out never touches the table.
+     */
+    private void createQueryIndexes(SQLiteDatabase db) {
+        db.execSQL("create index if not exists idx_ins_prev_tx_hash on ins " +
+                "(prev_tx_hash, prev_out_sn, tx_hash);");
+        db.execSQL("create index if not exists idx_outs_out_address on outs " +
+                "(out_address, out_status);");
+        db.execSQL("create index if not exists idx_txs_block_no on txs (block_no);");
+        db.execSQL("create index if not exists idx_addresses_txs_tx_hash on addresses_txs " +
+                "(tx_hash, address);");
+        db.execSQL("create index if not exists idx_peers_peer_connected_cnt on peers " +
+                "(peer_connected_cnt, peer_timestamp);");
+    }
+
+    /**
+     * Address history pages seek this index from the key of the previous page instead of sorting
+     * the whole history. Its block_no prefix serves the lookups idx_txs_block_no did.
+     */
+    private void createTxsHistoryIndex(SQLiteDatabase db) {
+        db.execSQL("create index if not exists idx_txs_history on txs " +
+                "(block_no, tx_time, tx_hash);");
+        db.execSQL("drop index if exists idx_txs_block_no;");
+    }
+
+    /**
+     * The unspent outs of our addresses with the block_no of their tx, kept by TxProvider in the
+     * same transaction as outs and txs. Balance and coin selection read one address range of it
+     * instead of joining the whole history.
+     */
+    private void createUnspentOutsTable(SQLiteDatabase db) {
+        String sql = "create table if not exists unspent_outs " +
+                "(out_address text not null" +
+                ", tx_hash blob not null" +
+                ", out_sn integer not null" +
+                ", out_value integer not null" +
+                ", block_no integer" +
+                ", primary key (tx_hash, out_sn));";
+        db.execSQL(sql);
+        db.execSQL("create index if not exists idx_unspent_outs_out_address on unspent_outs " +
+                "(out_address, block_no);");
+        db.execSQL("create index if not exists idx_unspent_outs_block_no on unspent_outs " +
+                "(block_no);");
+        db.execSQL("insert or ignore into unspent_outs(out_address, tx_hash, out_sn, out_value" +
+                ", block_no) select o.out_address, o.tx_hash, o.out_sn, o.out_value, t.block_no " +
+                "from outs o, txs t where t.tx_hash=o.tx_hash and o.out_status=? and " +
+                "o.out_address is not null", new Object[]{Out.OutStatus.unspent.getValue()});
+    }
+
+    /**
+     * The running balance of each address. The triggers add an out to its address when it enters
+     * unspent_outs and take it off when it leaves, so every write TxProvider makes to unspent_outs
+     * is applied as a delta in the same transaction. Seeding recomputes the sums, which makes the
+     * step safe to run again.
+     */
+    private void createAddressBalancesTable(SQLiteDatabase db) {
+        String sql = "create table if not exists address_balances " +
+                "(address text not null primary key" +
+                ", balance integer not null);";
+        db.execSQL(sql);
+        db.execSQL("create trigger if not exists trg_unspent_outs_insert after insert on " +
+                "unspent_outs begin " +
+                "insert or ignore into address_balances(address, balance) values(new" +
+                ".out_address, 0); " +
+                "update address_balances set balance=balance+new.out_value where address=new" +
+                ".out_address; " +
+                "end;");
+        db.execSQL("create trigger if not exists trg_unspent_outs_delete after delete on " +
+                "unspent_outs begin " +
+                "update address_balances set balance=balance-old.out_value where address=old" +
+                ".out_address; " +
+                "end;");
+        db.execSQL("delete from address_balances");
+        db.execSQL("insert into address_balances(address, balance) select out_address, sum" +
+                "(out_value) from unspent_outs group by out_address");
+    }
+
+    /**
+     * The addresses of the wallet, read in one query at startup instead of listing and parsing a
+     * .pub file per address. The files are still written as the backup of record, this step
+     * copies the ones written before. Encrypted private keys stay in their .key files.
+     */
+    private void createAddressesTable(SQLiteDatabase db) {
+        String sql = "create table if not exists addresses " +
+                "(address text not null primary key" +
+                ", pub_key blob not null" +
+                ", has_priv_key integer not null" +
+                ", create_time integer not null" +
+                ", sync_complete integer not null);";
+        db.execSQL(sql);
+        db.execSQL("create index if not exists idx_addresses_has_priv_key on addresses " +
+                "(has_priv_key, create_time);");
+        new AddressProvider(this).importAddressFiles(db);
+    }
+
+    private boolean hasColumn(SQLiteDatabase db, String table, String column) {
+        boolean result = false;
+        Cursor c = db.rawQuery("pragma table_info(" + table + ")", null);
+        try {
+            while (c.moveToNext()) {
+                if (column.equals(c.getString(c.getColumnIndex("name")))) {
+                    result = true;
+                    break;
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return result;
+    }
+
+    private boolean isColumnType(SQLiteDatabase db, String table, String column, String type) {
+        boolean result = false;
+        Cursor c = db.rawQuery("pragma table_info(" + table + ")", null);
+        try {
+            while (c.moveToNext()) {
+                if (column.equals(c.getString(c.getColumnIndex("name")))) {
+                    result = type.equalsIgnoreCase(c.getString(c.getColumnIndex("type")));
+                    break;
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return result;
+    }
+
+    /**
+     * Version 1 stored every hash and script as a Base58 string. Rewrite each table in place with
+     * the raw bytes so lookups can bind the hash directly and the indexes stay narrow.
+     */
+    private void upgradeHashColumnsToBlob(SQLiteDatabase db) {
+        db.execSQL("drop index if exists idx_blocks_block_no;");
+        db.execSQL("drop index if exists idx_blocks_block_prev;");
+        String[] tables = new String[]{Tables.BLOCKS, Tables.TXS, Tables.ADDRESSES_TXS,
+                Tables.INS, Tables.OUTS};
+        for (String table : tables) {
+            db.execSQL("alter table " + table + " rename to " + table + "_v1;");
+        }
+        createBlocksTable(db);
+        createTxsTable(db);
+        createAddressTxsTable(db);
+        createInsTable(db);
+        createOutsTable(db);
+
+        copyTableDecodingBase58(db, Tables.BLOCKS, new String[]{BlocksColumns.BLOCK_NO,
+                BlocksColumns.BLOCK_HASH, BlocksColumns.BLOCK_ROOT, BlocksColumns.BLOCK_VER,
+                BlocksColumns.BLOCK_BITS, BlocksColumns.BLOCK_NONCE, BlocksColumns.BLOCK_TIME,
+                BlocksColumns.BLOCK_PREV, BlocksColumns.IS_MAIN}, new boolean[]{false, true,
+                true, false, false, false, false, true, false});
+        copyTableDecodingBase58(db, Tables.TXS, new String[]{TxsColumns.TX_HASH,
+                TxsColumns.TX_VER, TxsColumns.TX_LOCKTIME, TxsColumns.TX_TIME,
+                TxsColumns.BLOCK_NO, TxsColumns.SOURCE}, new boolean[]{true, false, false,
+                false, false, false});
+        copyTableDecodingBase58(db, Tables.ADDRESSES_TXS, new String[]{AddressesTxsColumns
+                .ADDRESS, AddressesTxsColumns.TX_HASH}, new boolean[]{false, true});
+        copyTableDecodingBase58(db, Tables.INS, new String[]{InsColumns.TX_HASH,
+                InsColumns.IN_SN, InsColumns.PREV_TX_HASH, InsColumns.PREV_OUT_SN,
+                InsColumns.IN_SIGNATURE, InsColumns.IN_SEQUENCE}, new boolean[]{true, false,
+                true, false, true, false});
+        copyTableDecodingBase58(db, Tables.OUTS, new String[]{OutsColumns.TX_HASH,
+                OutsColumns.OUT_SN, OutsColumns.OUT_SCRIPT, OutsColumns.OUT_VALUE,
+                OutsColumns.OUT_STATUS, OutsColumns.OUT_ADDRESS}, new boolean[]{true, false,
+                true, false, false, false});
+
+        for (String table : tables) {
+            db.execSQL("drop table " + table + "_v1;");
+        }
+    }
+
+    private void copyTableDecodingBase58(SQLiteDatabase db, String table, String[] columns,
+                                         boolean[] isBase58) {
+        StringBuilder columnList = new StringBuilder();
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                columnList.append(",");
+                placeholders.append(",");
+            }
+            columnList.append(columns[i]);
+            placeholders.append("?");
+        }
+        SQLiteStatement insert = db.compileStatement("insert or ignore into " + table + "(" +
+                columnList + ") values(" + placeholders + ")");
+        Cursor c = db.rawQuery("select " + columnList + " from " + table + "_v1", null);
+        int rows = 0;
+        try {
+            while (c.moveToNext()) {
+                insert.clearBindings();
+                for (int i = 0; i < columns.length; i++) {
+                    if (c.isNull(i)) {
+                        insert.bindNull(i + 1);
+                    } else if (isBase58[i]) {
+                        String value = c.getString(i);
+                        if (Utils.isEmpty(value)) {
+                            insert.bindNull(i + 1);
+                        } else {
+                            insert.bindBlob(i + 1, decodeBase58(table, columns[i], value));
+                        }
+                    } else {
+                        insert.bindString(i + 1, c.getString(i));
+                    }
+                }
+                insert.executeInsert();
+                rows++;
+            }
+        } finally {
+            c.close();
+            insert.close();
+        }
+        // decoding maps distinct strings to distinct bytes, so an ignored insert means a lost row
+        long copied = countRows(db, table);
+        if (copied != rows) {
+            log.error("migrating {} kept {} of {} rows", table, copied, rows);
+            throw new RuntimeException("migrating " + table + " lost " + (rows - copied) +
+                    " of " + rows + " rows");
+        }
+    }
+
+    // throwing rolls the whole upgrade back, the old tables stay as they were
+    private byte[] decodeBase58(String table, String column, String value) {
+        try {
+            return Base58.decode(value);
+        } catch (AddressFormatException e) {
+            log.error("can not decode {}.{} value {}", table, column, value);
+            throw new RuntimeException("can not decode " + table + "." + column + " while " +
+                    "migrating", e);
+        }
+    }
+
+    private long countRows(SQLiteDatabase db, String table) {
+        Cursor c = db.rawQuery("select count(0) from " + table, null);
+        try {
+            return c.moveToNext() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
 }
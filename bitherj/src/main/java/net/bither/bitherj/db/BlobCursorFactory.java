@@ -0,0 +1,48 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.bither.bitherj.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQuery;
+
+/**
+ * SQLiteDatabase.rawQuery can only bind strings, which never match the blob hash columns. This
+ * factory binds byte[] as blobs, numbers as integers and everything else as strings.
+ */
+public class BlobCursorFactory implements SQLiteDatabase.CursorFactory {
+    private Object[] args;
+
+    public BlobCursorFactory(Object... args) {
+        this.args = args;
+    }
+
+    public static Cursor rawQuery(SQLiteDatabase db, String sql, Object... args) {
+        return db.rawQueryWithFactory(new BlobCursorFactory(args), sql, null, null);
+    }
+
+    // the three argument constructor only exists from API 11, the library still runs on 9
+    @SuppressWarnings("deprecation")
+    @Override
+    public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery, String editTable,
+                            SQLiteQuery query) {
+        StatementRegistry.bind(query, args);
+        return new SQLiteCursor(db, masterQuery, editTable, query);
+    }
+}
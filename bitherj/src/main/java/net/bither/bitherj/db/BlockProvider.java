@@ -22,23 +22,67 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
 import net.bither.bitherj.BitherjApplication;
-import net.bither.bitherj.utils.Base58;
-import net.bither.bitherj.exception.AddressFormatException;
+import net.bither.bitherj.core.BitherjSettings;
 import net.bither.bitherj.core.Block;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
-public class BlockProvider {
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
-    private static BlockProvider blockProvider = new BlockProvider(BitherjApplication.mDbHelper);
+public class BlockProvider implements IBlockProvider {
+    private static final String HEADER_FILE_NAME = "headers.dat";
 
-    public static BlockProvider getInstance() {
+    private static CachedBlockProvider blockProvider;
+    private static BitherjSettings.BlockStoreMode blockStoreMode = BitherjSettings
+            .BLOCK_STORE_MODE;
+
+    public static synchronized CachedBlockProvider getInstance() {
+        if (blockProvider == null) {
+            blockProvider = new CachedBlockProvider(blockStoreMode == BitherjSettings
+                    .BlockStoreMode.HEADER_FILE ? new HeaderFileBlockProvider(new File
+                    (BitherjApplication.mContext.getFilesDir(), HEADER_FILE_NAME)) : new
+                    BlockProvider(BitherjApplication.mDbHelper));
+        }
         return blockProvider;
     }
 
+    /**
+     * Sets where block headers are stored, only before the first {@link #getInstance()}.
+     */
+    public static synchronized void setBlockStoreMode(BitherjSettings.BlockStoreMode mode) {
+        checkNotNull(mode);
+        checkState(blockProvider == null, "BlockProvider already created with %s",
+                blockStoreMode);
+        blockStoreMode = mode;
+    }
+
+    private static final String QUERY_BLOCK = "select * from blocks where block_hash=?";
+    // delete has no limit clause on android builds of sqlite
+    private static final String DELETE_OLD_BLOCKS = "delete from blocks where rowid in (select rowid from blocks where block_no<? and (block_no<? or is_main=0) limit ?)";
+    // rows changed by the last statement on the connection, executeUpdateDelete needs API 11
+    private static final String QUERY_CHANGES = "select changes()";
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+    // a full VACUUM rewrites and locks the whole wallet database, only worth it for this much
+    private static final long VACUUM_MIN_FREE_BYTES = 4 * 1024 * 1024;
+    private static final int VACUUM_MIN_FREE_PAGES_PERCENT = 25;
+    private static final String QUERY_MAIN_CHAIN_BLOCK = "select * from blocks where block_hash=? and is_main=1";
+    private static final String QUERY_MAIN_CHAIN_BLOCK_BY_NO = "select * from blocks where block_no=? and is_main=1";
+    private static final String QUERY_MAIN_CHAIN_BLOCKS_FROM = "select * from blocks where block_no>=? and is_main=1 order by block_no asc";
+    private static final String QUERY_ORPHAN_BLOCK_BY_PREV = "select * from blocks where block_prev=? and is_main=0";
+    private static final String QUERY_BLOCK_EXISTS = "select count(0) from blocks where block_hash=?";
+    private static final String QUERY_BLOCK_COUNT = "select count(0) from blocks";
+    private static final String QUERY_BLOCKS_FROM = "select * from blocks where block_no>? order by block_no desc";
+    private static final String QUERY_LAST_MAIN_BLOCK = "select * from blocks where is_main=1 order by block_no desc limit 1";
+    private static final String QUERY_LAST_ORPHAN_BLOCK = "select * from blocks where is_main=0 order by block_no desc limit 1";
+    private static final String UPDATE_BLOCK_IS_MAIN = "update blocks set is_main=? where block_hash=?";
+    private static final String DELETE_BLOCK = "delete from blocks where block_hash=?";
+
     private SQLiteOpenHelper mDb;
+    private StatementRegistry statements = new StatementRegistry();
 
 
     private BlockProvider(SQLiteOpenHelper db) {
@@ -54,8 +98,6 @@ public class BlockProvider {
             while (c.moveToNext()) {
                 blockItems.add(applyCursor(c));
             }
-        } catch (AddressFormatException e) {
-            e.printStackTrace();
         } finally {
             c.close();
         }
@@ -65,15 +107,12 @@ public class BlockProvider {
 
     public List<Block> getBlocksFrom(int blockNo) {
         List<Block> blockItems = new ArrayList<Block>();
-        String sql = "select * from blocks where block_no>" + Integer.toString(blockNo) + " order by block_no desc";
         SQLiteDatabase db = this.mDb.getReadableDatabase();
-        Cursor c = db.rawQuery(sql, null);
+        Cursor c = BlobCursorFactory.rawQuery(db, QUERY_BLOCKS_FROM, blockNo);
         try {
             while (c.moveToNext()) {
                 blockItems.add(applyCursor(c));
             }
-        } catch (AddressFormatException e) {
-            e.printStackTrace();
         } finally {
             c.close();
         }
@@ -81,32 +120,34 @@ public class BlockProvider {
         return blockItems;
     }
 
-    public int getBlockCount() {
-        String sql = "select count(*) cnt from blocks ";
+    public List<Block> getMainChainBlocksFrom(int blockNo) {
+        List<Block> blockItems = new ArrayList<Block>();
         SQLiteDatabase db = this.mDb.getReadableDatabase();
-        Cursor c = db.rawQuery(sql, null);
-        int count = 0;
-        if (c.moveToNext()) {
-            int idColumn = c.getColumnIndex("cnt");
-            if (idColumn != -1) {
-                count = c.getInt(idColumn);
+        Cursor c = BlobCursorFactory.rawQuery(db, QUERY_MAIN_CHAIN_BLOCKS_FROM, blockNo);
+        try {
+            while (c.moveToNext()) {
+                blockItems.add(applyCursor(c));
             }
+        } finally {
+            c.close();
         }
-        c.close();
-        return count;
+
+        return blockItems;
+    }
+
+    public int getBlockCount() {
+        SQLiteDatabase db = this.mDb.getReadableDatabase();
+        return (int) statements.simpleQueryForLong(db, QUERY_BLOCK_COUNT);
     }
 
     public Block getLastBlock() {
         Block item = null;
         SQLiteDatabase db = this.mDb.getReadableDatabase();
-        String sql = "select * from blocks where is_main=1 order by block_no desc limit 1";
-        Cursor c = db.rawQuery(sql, null);
+        Cursor c = db.rawQuery(QUERY_LAST_MAIN_BLOCK, null);
         try {
             if (c.moveToNext()) {
                 item = applyCursor(c);
             }
-        } catch (AddressFormatException e) {
-            e.printStackTrace();
         } finally {
             c.close();
         }
@@ -117,14 +158,11 @@ public class BlockProvider {
     public Block getLastOrphanBlock() {
         Block item = null;
         SQLiteDatabase db = this.mDb.getReadableDatabase();
-        String sql = "select * from blocks where is_main=0 order by block_no desc limit 1";
-        Cursor c = db.rawQuery(sql, null);
+        Cursor c = db.rawQuery(QUERY_LAST_ORPHAN_BLOCK, null);
         try {
             if (c.moveToNext()) {
                 item = applyCursor(c);
             }
-        } catch (AddressFormatException e) {
-            e.printStackTrace();
         } finally {
             c.close();
         }
@@ -135,14 +173,11 @@ public class BlockProvider {
     public Block getBlock(byte[] blockHash) {
         Block item = null;
         SQLiteDatabase db = this.mDb.getReadableDatabase();
-        String sql = "select * from blocks where block_hash='" + Base58.encode(blockHash) + "'";
-        Cursor c = db.rawQuery(sql, null);
+        Cursor c = BlobCursorFactory.rawQuery(db, QUERY_BLOCK, blockHash);
         try {
             if (c.moveToNext()) {
                 item = applyCursor(c);
             }
-        } catch (AddressFormatException e) {
-            e.printStackTrace();
         } finally {
             c.close();
         }
@@ -153,14 +188,26 @@ public class BlockProvider {
     public Block getOrphanBlockByPrevHash(byte[] prevHash) {
         Block item = null;
         SQLiteDatabase db = this.mDb.getReadableDatabase();
-        String sql = "select * from blocks where block_prev=" + Base58.encode(prevHash) + " and is_main=0";
-        Cursor c = db.rawQuery(sql, null);
+        Cursor c = BlobCursorFactory.rawQuery(db, QUERY_ORPHAN_BLOCK_BY_PREV, prevHash);
+        try {
+            if (c.moveToNext()) {
+                item = applyCursor(c);
+            }
+        } finally {
+            c.close();
+        }
+
+        return item;
+    }
+
+    public Block getMainChainBlock(int blockNo) {
+        Block item = null;
+        SQLiteDatabase db = this.mDb.getReadableDatabase();
+        Cursor c = BlobCursorFactory.rawQuery(db, QUERY_MAIN_CHAIN_BLOCK_BY_NO, blockNo);
         try {
             if (c.moveToNext()) {
                 item = applyCursor(c);
             }
-        } catch (AddressFormatException e) {
-            e.printStackTrace();
         } finally {
             c.close();
         }
@@ -171,14 +218,11 @@ public class BlockProvider {
     public Block getMainChainBlock(byte[] blockHash) {
         Block item = null;
         SQLiteDatabase db = this.mDb.getReadableDatabase();
-        String sql = "select * from blocks where block_hash= '" + Base58.encode(blockHash) + "' and is_main=1";
-        Cursor c = db.rawQuery(sql, null);
+        Cursor c = BlobCursorFactory.rawQuery(db, QUERY_MAIN_CHAIN_BLOCK, blockHash);
         try {
             if (c.moveToNext()) {
                 item = applyCursor(c);
             }
-        } catch (AddressFormatException e) {
-            e.printStackTrace();
         } finally {
             c.close();
         }
@@ -201,33 +245,19 @@ public class BlockProvider {
     }
 
     public boolean isExist(byte[] blockHash) {
-        boolean result = false;
-        String sql = "select count(0) cnt from blocks where block_hash='" + Base58.encode(blockHash) + "'";
         SQLiteDatabase db = this.mDb.getReadableDatabase();
-        Cursor c = db.rawQuery(sql, null);
-        if (c.moveToNext()) {
-            int idColumn = c.getColumnIndex("cnt");
-            result = c.getInt(idColumn) == 1;
-        }
-        c.close();
-        return result;
+        return statements.simpleQueryForLong(db, QUERY_BLOCK_EXISTS, blockHash) == 1;
     }
 
     public void addBlocks(List<Block> blockItemList) {
-        List<Block> addBlockList = new ArrayList<Block>();
-        List<Block> allBlockList = getAllBlocks();
-        for (Block item : blockItemList) {
-            if (!allBlockList.contains(item)) {
-                addBlockList.add(item);
-            }
-        }
-        allBlockList.clear();
         SQLiteDatabase db = this.mDb.getWritableDatabase();
         db.beginTransaction();
-        for (Block item : addBlockList) {
-            ContentValues cv = new ContentValues();
-            applyContentValues(item, cv);
-            db.insert(BitherjDatabaseHelper.Tables.BLOCKS, null, cv);
+        for (Block item : blockItemList) {
+            if (!blockExists(db, item.getBlockHash())) {
+                ContentValues cv = new ContentValues();
+                applyContentValues(item, cv);
+                db.insert(BitherjDatabaseHelper.Tables.BLOCKS, null, cv);
+            }
         }
         db.setTransactionSuccessful();
         db.endTransaction();
@@ -245,83 +275,89 @@ public class BlockProvider {
 
     }
 
-    public boolean blockExists(SQLiteDatabase db, byte[] blockHash) {
-        String sql = "select count(0) cnt from blocks where block_hash='" + Base58.encode(blockHash) + "'";
-        Cursor c = db.rawQuery(sql, null);
-        int cnt = 0;
-        if (c.moveToNext()) {
-            int idColumn = c.getColumnIndex("cnt");
-            cnt = c.getInt(idColumn);
-        }
-        c.close();
-        return cnt > 0;
+    private boolean blockExists(SQLiteDatabase db, byte[] blockHash) {
+        return statements.simpleQueryForLong(db, QUERY_BLOCK_EXISTS, blockHash) > 0;
     }
 
     public void updateBlock(byte[] blockHash, boolean isMain) {
         SQLiteDatabase db = this.mDb.getWritableDatabase();
-        ContentValues cv = new ContentValues();
-        cv.put(BitherjDatabaseHelper.BlocksColumns.IS_MAIN, isMain ? 1 : 0);
-        db.update(BitherjDatabaseHelper.Tables.BLOCKS, cv, "block_hash=?", new String[]{Base58.encode(blockHash)});
+        statements.execute(db, UPDATE_BLOCK_IS_MAIN, isMain ? 1 : 0, blockHash);
     }
 
     public void removeBlock(byte[] blockHash) {
         SQLiteDatabase db = this.mDb.getWritableDatabase();
-        db.delete(BitherjDatabaseHelper.Tables.BLOCKS, "block_hash=?", new String[]{Base58.encode(blockHash)});
+        statements.execute(db, DELETE_BLOCK, blockHash);
     }
 
-    public void cleanOldBlock() {
-        SQLiteDatabase db = this.mDb.getReadableDatabase();
-        String sql = "select count(0) cnt from blocks";
-        Cursor c = db.rawQuery(sql, null);
-        int cnt = 0;
-        if (c.moveToNext()) {
-            int idColumn = c.getColumnIndex("cnt");
-            if (idColumn != -1) {
-                cnt = c.getInt(idColumn);
-            }
+    @Override
+    public int removeOldBlocks(int mainBelowBlockNo, int orphanBelowBlockNo, int limit) {
+        SQLiteDatabase db = this.mDb.getWritableDatabase();
+        // in a transaction, so no other statement runs on the connection before changes()
+        db.beginTransaction();
+        try {
+            statements.execute(db, DELETE_OLD_BLOCKS, Math.max(mainBelowBlockNo,
+                    orphanBelowBlockNo), mainBelowBlockNo, limit);
+            int removed = (int) statements.simpleQueryForLong(db, QUERY_CHANGES);
+            db.setTransactionSuccessful();
+            return removed;
+        } finally {
+            db.endTransaction();
         }
-        c.close();
-        if (cnt > 5000) {
-            sql = "select max(block_no) max_block_no from blocks where is_main=1";
-            c = db.rawQuery(sql, null);
-            int maxBlockNo = 0;
-            if (c.moveToNext()) {
-                int idColumn = c.getColumnIndex("max_block_no");
-                if (idColumn != -1) {
-                    maxBlockNo = c.getInt(idColumn);
+    }
 
-                }
+    /**
+     * With auto_vacuum=incremental the free pages are handed back in place. Otherwise the
+     * database is rebuilt with VACUUM, which needs free disk of its size and locks it meanwhile,
+     * so that only happens once free pages are at least 4 MB and a quarter of the file. Fewer
+     * are reused by later writes anyway.
+     */
+    @Override
+    public long reclaimSpace() {
+        SQLiteDatabase db = this.mDb.getWritableDatabase();
+        long pageSize = pragmaLong(db, "page_size");
+        long pageCount = pragmaLong(db, "page_count");
+        long freePages = pragmaLong(db, "freelist_count");
+        if (freePages == 0) {
+            return 0;
+        }
+        if (pragmaLong(db, "auto_vacuum") == AUTO_VACUUM_INCREMENTAL) {
+            Cursor c = db.rawQuery("pragma incremental_vacuum", null);
+            while (c.moveToNext()) {
+                // every step frees one page
             }
             c.close();
-            int interval = 2016;
-            int minBlockCount = 100;
-            int left = maxBlockNo % interval;
-            int blockNo = 0;
-            if (left > minBlockCount) {
-                blockNo = maxBlockNo - left;
-            } else {
-                blockNo = maxBlockNo = left - interval;
-            }
-            db = this.mDb.getWritableDatabase();
-            db.delete(BitherjDatabaseHelper.Tables.BLOCKS, "block_no<?", new String[]{Integer.toString(blockNo)});
+        } else if (freePages * pageSize >= VACUUM_MIN_FREE_BYTES && freePages * 100 >=
+                pageCount * VACUUM_MIN_FREE_PAGES_PERCENT) {
+            db.execSQL("vacuum");
+        } else {
+            return 0;
         }
+        return (pageCount - pragmaLong(db, "page_count")) * pageSize;
+    }
 
+    private long pragmaLong(SQLiteDatabase db, String pragma) {
+        Cursor c = db.rawQuery("pragma " + pragma, null);
+        try {
+            return c.moveToNext() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
     }
 
     private void applyContentValues(Block item, ContentValues cv) {
         cv.put(BitherjDatabaseHelper.BlocksColumns.BLOCK_BITS, item.getBlockBits());
-        cv.put(BitherjDatabaseHelper.BlocksColumns.BLOCK_HASH, Base58.encode(item.getBlockHash()));
+        cv.put(BitherjDatabaseHelper.BlocksColumns.BLOCK_HASH, item.getBlockHash());
         cv.put(BitherjDatabaseHelper.BlocksColumns.BLOCK_NO, item.getBlockNo());
         cv.put(BitherjDatabaseHelper.BlocksColumns.BLOCK_NONCE, item.getBlockNonce());
-        cv.put(BitherjDatabaseHelper.BlocksColumns.BLOCK_PREV, Base58.encode(item.getBlockPrev()));
-        cv.put(BitherjDatabaseHelper.BlocksColumns.BLOCK_ROOT, Base58.encode(item.getBlockRoot()));
+        cv.put(BitherjDatabaseHelper.BlocksColumns.BLOCK_PREV, item.getBlockPrev());
+        cv.put(BitherjDatabaseHelper.BlocksColumns.BLOCK_ROOT, item.getBlockRoot());
         cv.put(BitherjDatabaseHelper.BlocksColumns.BLOCK_TIME, item.getBlockTime());
         cv.put(BitherjDatabaseHelper.BlocksColumns.BLOCK_VER, item.getBlockVer());
         cv.put(BitherjDatabaseHelper.BlocksColumns.IS_MAIN, item.isMain() ? 1 : 0);
 
     }
 
-    private Block applyCursor(Cursor c) throws AddressFormatException {
+    private Block applyCursor(Cursor c) {
         byte[] blockHash = null;
         long version = 1;
         byte[] prevBlock = null;
@@ -337,7 +373,7 @@ public class BlockProvider {
         }
         idColumn = c.getColumnIndex(BitherjDatabaseHelper.BlocksColumns.BLOCK_HASH);
         if (idColumn != -1) {
-            blockHash = Base58.decode(c.getString(idColumn));
+            blockHash = c.getBlob(idColumn);
         }
         idColumn = c.getColumnIndex(BitherjDatabaseHelper.BlocksColumns.BLOCK_NO);
         if (idColumn != -1) {
@@ -349,11 +385,11 @@ public class BlockProvider {
         }
         idColumn = c.getColumnIndex(BitherjDatabaseHelper.BlocksColumns.BLOCK_PREV);
         if (idColumn != -1) {
-            prevBlock = Base58.decode(c.getString(idColumn));
+            prevBlock = c.getBlob(idColumn);
         }
         idColumn = c.getColumnIndex(BitherjDatabaseHelper.BlocksColumns.BLOCK_ROOT);
         if (idColumn != -1) {
-            merkleRoot = Base58.decode(c.getString(idColumn));
+            merkleRoot = c.getBlob(idColumn);
         }
         idColumn = c.getColumnIndex(BitherjDatabaseHelper.BlocksColumns.BLOCK_TIME);
         if (idColumn != -1) {
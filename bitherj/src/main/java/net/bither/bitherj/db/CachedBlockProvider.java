@@ -0,0 +1,180 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.bither.bitherj.db;
+
+import com.google.common.cache.Weigher;
+
+import net.bither.bitherj.core.BitherjSettings;
+import net.bither.bitherj.core.Block;
+import net.bither.bitherj.utils.Sha256Hash;
+
+import java.util.List;
+
+/**
+ * Serves getBlock and getMainChainBlock from LRU caches in front of either block store, so
+ * walking back through prev hashes reads each block once. Every write goes through here and
+ * invalidates what it changes; a change of is_main drops all blocks cached by number.
+ */
+public class CachedBlockProvider implements IBlockProvider {
+    // header fields, hash arrays and object overhead of a parsed block
+    private static final int BLOCK_WEIGHT = 256;
+
+    private static final Weigher<Object, Block> BLOCK_WEIGHER = new Weigher<Object, Block>() {
+        @Override
+        public int weigh(Object key, Block value) {
+            return BLOCK_WEIGHT;
+        }
+    };
+
+    private IBlockProvider provider;
+    private ProviderCache<Sha256Hash, Block> blockCache;
+    private ProviderCache<Integer, Block> mainChainBlockCache;
+
+    public CachedBlockProvider(IBlockProvider provider) {
+        this.provider = provider;
+        this.blockCache = new ProviderCache<Sha256Hash, Block>(BitherjSettings
+                .BLOCK_CACHE_MAX_BYTES / 2, BLOCK_WEIGHER);
+        this.mainChainBlockCache = new ProviderCache<Integer, Block>(BitherjSettings
+                .BLOCK_CACHE_MAX_BYTES / 2, BLOCK_WEIGHER);
+    }
+
+    /**
+     * Blocks by hash, the one to size and watch for getBlock walks.
+     */
+    public ProviderCache<Sha256Hash, Block> getBlockCache() {
+        return blockCache;
+    }
+
+    /**
+     * Main chain blocks by block no.
+     */
+    public ProviderCache<Integer, Block> getMainChainBlockCache() {
+        return mainChainBlockCache;
+    }
+
+    public List<Block> getAllBlocks() {
+        return provider.getAllBlocks();
+    }
+
+    public List<Block> getBlocksFrom(int blockNo) {
+        return provider.getBlocksFrom(blockNo);
+    }
+
+    public List<Block> getMainChainBlocksFrom(int blockNo) {
+        return provider.getMainChainBlocksFrom(blockNo);
+    }
+
+    public int getBlockCount() {
+        return provider.getBlockCount();
+    }
+
+    public Block getLastBlock() {
+        return provider.getLastBlock();
+    }
+
+    public Block getLastOrphanBlock() {
+        return provider.getLastOrphanBlock();
+    }
+
+    public Block getBlock(byte[] blockHash) {
+        Sha256Hash key = new Sha256Hash(blockHash);
+        Block block = blockCache.get(key);
+        if (block == null) {
+            long generation = blockCache.generation();
+            block = provider.getBlock(blockHash);
+            if (block != null) {
+                blockCache.put(key, block, generation);
+            }
+        }
+        return block;
+    }
+
+    public Block getOrphanBlockByPrevHash(byte[] prevHash) {
+        return provider.getOrphanBlockByPrevHash(prevHash);
+    }
+
+    public Block getMainChainBlock(int blockNo) {
+        Block block = mainChainBlockCache.get(blockNo);
+        if (block == null) {
+            long generation = mainChainBlockCache.generation();
+            block = provider.getMainChainBlock(blockNo);
+            if (block != null) {
+                mainChainBlockCache.put(blockNo, block, generation);
+            }
+        }
+        return block;
+    }
+
+    public Block getMainChainBlock(byte[] blockHash) {
+        Block block = getBlock(blockHash);
+        return block != null && block.isMain() ? block : null;
+    }
+
+    public List<byte[]> exists(List<byte[]> blockHashes) {
+        return provider.exists(blockHashes);
+    }
+
+    public boolean isExist(byte[] blockHash) {
+        return provider.isExist(blockHash);
+    }
+
+    public void addBlocks(List<Block> blockItemList) {
+        provider.addBlocks(blockItemList);
+        for (Block block : blockItemList) {
+            invalidate(block);
+        }
+    }
+
+    public void addBlock(Block item) {
+        provider.addBlock(item);
+        invalidate(item);
+    }
+
+    public void updateBlock(byte[] blockHash, boolean isMain) {
+        provider.updateBlock(blockHash, isMain);
+        blockCache.invalidate(new Sha256Hash(blockHash));
+        mainChainBlockCache.invalidateAll();
+    }
+
+    public void removeBlock(byte[] blockHash) {
+        provider.removeBlock(blockHash);
+        blockCache.invalidate(new Sha256Hash(blockHash));
+        mainChainBlockCache.invalidateAll();
+    }
+
+    @Override
+    public int removeOldBlocks(int mainBelowBlockNo, int orphanBelowBlockNo, int limit) {
+        int removed = provider.removeOldBlocks(mainBelowBlockNo, orphanBelowBlockNo, limit);
+        if (removed > 0) {
+            blockCache.invalidateAll();
+            mainChainBlockCache.invalidateAll();
+        }
+        return removed;
+    }
+
+    @Override
+    public long reclaimSpace() {
+        return provider.reclaimSpace();
+    }
+
+    private void invalidate(Block block) {
+        blockCache.invalidate(new Sha256Hash(block.getBlockHash()));
+        if (block.isMain()) {
+            mainChainBlockCache.invalidate(block.getBlockNo());
+        }
+    }
+}
@@ -0,0 +1,527 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.bither.bitherj.db;
+
+import net.bither.bitherj.core.Block;
+import net.bither.bitherj.utils.Sha256Hash;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Block headers kept as fixed size records appended to a memory mapped file.
+ * <p/>
+ * Record layout, little endian:
+ * <pre>
+ *   0  block hash     32
+ *  32  80 byte header 80
+ * 112  block no        4
+ * 116  flags           1   main / removed, rewritten in place
+ * 117  reserved        7
+ * 124  crc32 of 0-116  4
+ * </pre>
+ * The flags are a single byte so updating them in place can not tear a record. Everything else is
+ * only ever appended, so after a crash only the tail can be bad: opening the file stops at the
+ * first record whose checksum does not match and cuts the tail off there.
+ * <p/>
+ * The hash, main chain height and orphan indexes live in memory and are rebuilt from the file on
+ * open.
+ */
+public class HeaderFileBlockProvider implements IBlockProvider {
+    private static final Logger log = LoggerFactory.getLogger(HeaderFileBlockProvider.class);
+
+    private static final int MAGIC = 0x42484452; // BHDR
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 16;
+
+    static final int RECORD_SIZE = 128;
+    private static final int HASH_OFFSET = 0;
+    private static final int HEADER_OFFSET = 32;
+    private static final int BLOCK_NO_OFFSET = 112;
+    private static final int FLAGS_OFFSET = 116;
+    private static final int CRC_OFFSET = 124;
+    private static final int CRC_LENGTH = FLAGS_OFFSET;
+
+    private static final byte FLAG_MAIN = 1;
+    private static final byte FLAG_REMOVED = 2;
+
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+
+    private final File file;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int recordCount;
+
+    private final HashMap<Sha256Hash, Integer> hashIndex = new HashMap<Sha256Hash, Integer>();
+    private final TreeMap<Integer, Integer> mainChainIndex = new TreeMap<Integer, Integer>();
+    // the blocks off the main chain, few next to it, with their prev hashes for connecting them
+    private final HashSet<Integer> orphans = new HashSet<Integer>();
+    private final HashMap<Sha256Hash, ArrayList<Integer>> orphansByPrev = new HashMap<Sha256Hash,
+            ArrayList<Integer>>();
+    private int lastOrphan = -1;
+
+    public HeaderFileBlockProvider(File file) {
+        this.file = file;
+        try {
+            open();
+        } catch (IOException e) {
+            throw new RuntimeException("can not open header file " + file.getAbsolutePath(), e);
+        }
+    }
+
+    @Override
+    public synchronized List<Block> getAllBlocks() {
+        List<Block> blockItems = new ArrayList<Block>();
+        for (int record : hashIndex.values()) {
+            blockItems.add(readBlock(record));
+        }
+        Collections.sort(blockItems, BLOCK_NO_DESC);
+        return blockItems;
+    }
+
+    @Override
+    public synchronized List<Block> getBlocksFrom(int blockNo) {
+        List<Block> blockItems = new ArrayList<Block>();
+        for (int record : mainChainIndex.tailMap(blockNo, false).values()) {
+            blockItems.add(readBlock(record));
+        }
+        for (int record : orphans) {
+            if (readBlockNo(record) > blockNo) {
+                blockItems.add(readBlock(record));
+            }
+        }
+        Collections.sort(blockItems, BLOCK_NO_DESC);
+        return blockItems;
+    }
+
+    @Override
+    public synchronized List<Block> getMainChainBlocksFrom(int blockNo) {
+        List<Block> blockItems = new ArrayList<Block>();
+        for (int record : mainChainIndex.tailMap(blockNo).values()) {
+            blockItems.add(readBlock(record));
+        }
+        return blockItems;
+    }
+
+    @Override
+    public synchronized int getBlockCount() {
+        return hashIndex.size();
+    }
+
+    @Override
+    public synchronized Block getLastBlock() {
+        if (mainChainIndex.isEmpty()) {
+            return null;
+        }
+        return readBlock(mainChainIndex.lastEntry().getValue());
+    }
+
+    @Override
+    public synchronized Block getLastOrphanBlock() {
+        return lastOrphan < 0 ? null : readBlock(lastOrphan);
+    }
+
+    @Override
+    public synchronized Block getBlock(byte[] blockHash) {
+        Integer record = hashIndex.get(new Sha256Hash(blockHash));
+        return record == null ? null : readBlock(record);
+    }
+
+    @Override
+    public synchronized Block getOrphanBlockByPrevHash(byte[] prevHash) {
+        ArrayList<Integer> records = orphansByPrev.get(new Sha256Hash(prevHash));
+        return records == null ? null : readBlock(records.get(0));
+    }
+
+    @Override
+    public synchronized Block getMainChainBlock(int blockNo) {
+        Integer record = mainChainIndex.get(blockNo);
+        return record == null ? null : readBlock(record);
+    }
+
+    @Override
+    public synchronized Block getMainChainBlock(byte[] blockHash) {
+        Integer record = hashIndex.get(new Sha256Hash(blockHash));
+        if (record == null || (readFlags(record) & FLAG_MAIN) == 0) {
+            return null;
+        }
+        return readBlock(record);
+    }
+
+    @Override
+    public synchronized List<byte[]> exists(List<byte[]> blockHashes) {
+        List<byte[]> exists = new ArrayList<byte[]>();
+        for (byte[] blockHash : blockHashes) {
+            if (hashIndex.containsKey(new Sha256Hash(blockHash))) {
+                exists.add(blockHash);
+            }
+        }
+        return exists;
+    }
+
+    @Override
+    public synchronized boolean isExist(byte[] blockHash) {
+        return hashIndex.containsKey(new Sha256Hash(blockHash));
+    }
+
+    @Override
+    public synchronized void addBlocks(List<Block> blockItemList) {
+        for (Block item : blockItemList) {
+            append(item);
+        }
+        buffer.force();
+    }
+
+    @Override
+    public synchronized void addBlock(Block item) {
+        append(item);
+        buffer.force();
+    }
+
+    @Override
+    public synchronized void updateBlock(byte[] blockHash, boolean isMain) {
+        Integer record = hashIndex.get(new Sha256Hash(blockHash));
+        if (record == null) {
+            return;
+        }
+        int blockNo = readBlockNo(record);
+        writeFlags(record, isMain ? FLAG_MAIN : 0);
+        if (isMain) {
+            mainChainIndex.put(blockNo, record);
+            removeOrphan(record);
+        } else {
+            if (record.equals(mainChainIndex.get(blockNo))) {
+                mainChainIndex.remove(blockNo);
+            }
+            addOrphan(record);
+        }
+    }
+
+    @Override
+    public synchronized void removeBlock(byte[] blockHash) {
+        Integer record = hashIndex.remove(new Sha256Hash(blockHash));
+        if (record == null) {
+            return;
+        }
+        int blockNo = readBlockNo(record);
+        writeFlags(record, FLAG_REMOVED);
+        if (record.equals(mainChainIndex.get(blockNo))) {
+            mainChainIndex.remove(blockNo);
+        }
+        removeOrphan(record);
+    }
+
+    @Override
+    public synchronized int removeOldBlocks(int mainBelowBlockNo, int orphanBelowBlockNo,
+                                            int limit) {
+        int removed = 0;
+        for (int record = 0; record < recordCount && removed < limit; record++) {
+            byte flags = readFlags(record);
+            if ((flags & FLAG_REMOVED) != 0) {
+                continue;
+            }
+            int blockNo = readBlockNo(record);
+            if (blockNo < mainBelowBlockNo || ((flags & FLAG_MAIN) == 0 && blockNo <
+                    orphanBelowBlockNo)) {
+                removeBlock(readBytes(record, HASH_OFFSET, 32));
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removed records only carry a flag, the file is rewritten without them. The mapping keeps
+     * its minimum capacity, so the records freed are what is reported.
+     */
+    @Override
+    public synchronized long reclaimSpace() {
+        int records = recordCount;
+        if (hashIndex.size() == records) {
+            return 0;
+        }
+        try {
+            compact();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return (long) (records - recordCount) * RECORD_SIZE;
+    }
+
+    private void open() throws IOException {
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        long length = channel.size();
+        if (length < FILE_HEADER_SIZE || !hasValidFileHeader()) {
+            channel.truncate(0);
+            length = 0;
+        }
+        int records = length == 0 ? 0 : (int) ((length - FILE_HEADER_SIZE) / RECORD_SIZE);
+        capacity = Math.max(INITIAL_CAPACITY, records);
+        map();
+        if (length == 0) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+        }
+
+        recordCount = 0;
+        hashIndex.clear();
+        mainChainIndex.clear();
+        orphans.clear();
+        orphansByPrev.clear();
+        lastOrphan = -1;
+        while (recordCount < records && isValidRecord(recordCount)) {
+            indexRecord(recordCount);
+            recordCount++;
+        }
+        if (recordCount < records && !isEmptyRecord(recordCount)) {
+            // a crash while appending, everything from the torn record on is garbage
+            log.warn("header file {} truncated from {} to {} records", file.getName(), records,
+                    recordCount);
+            clearRecords(recordCount, records);
+        }
+        buffer.force();
+    }
+
+    private boolean hasValidFileHeader() throws IOException {
+        ByteBuffer fileHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        channel.read(fileHeader, 0);
+        return fileHeader.getInt(0) == MAGIC && fileHeader.getInt(4) == VERSION;
+    }
+
+    private void map() throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_HEADER_SIZE + (long)
+                capacity * RECORD_SIZE);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void append(Block item) {
+        Sha256Hash key = new Sha256Hash(item.getBlockHash());
+        if (hashIndex.containsKey(key)) {
+            return;
+        }
+        if (recordCount == capacity) {
+            buffer.force();
+            capacity *= 2;
+            try {
+                map();
+            } catch (IOException e) {
+                throw new RuntimeException("can not grow header file " + file.getAbsolutePath(),
+                        e);
+            }
+        }
+        int record = recordCount;
+        byte[] bytes = new byte[RECORD_SIZE];
+        ByteBuffer recordBuffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        recordBuffer.position(HASH_OFFSET);
+        recordBuffer.put(item.getBlockHash());
+        recordBuffer.putInt(HEADER_OFFSET, (int) item.getBlockVer());
+        recordBuffer.position(HEADER_OFFSET + 4);
+        recordBuffer.put(item.getBlockPrev());
+        recordBuffer.put(item.getBlockRoot());
+        recordBuffer.putInt(HEADER_OFFSET + 68, item.getBlockTime());
+        recordBuffer.putInt(HEADER_OFFSET + 72, (int) item.getBlockBits());
+        recordBuffer.putInt(HEADER_OFFSET + 76, (int) item.getBlockNonce());
+        recordBuffer.putInt(BLOCK_NO_OFFSET, item.getBlockNo());
+        bytes[FLAGS_OFFSET] = item.isMain() ? FLAG_MAIN : 0;
+        recordBuffer.putInt(CRC_OFFSET, crc(bytes));
+
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset(record));
+        view.put(bytes);
+        recordCount++;
+        indexRecord(record);
+    }
+
+    private void indexRecord(int record) {
+        byte flags = readFlags(record);
+        if ((flags & FLAG_REMOVED) != 0) {
+            return;
+        }
+        hashIndex.put(new Sha256Hash(readBytes(record, HASH_OFFSET, 32)), record);
+        if ((flags & FLAG_MAIN) != 0) {
+            mainChainIndex.put(readBlockNo(record), record);
+        } else {
+            addOrphan(record);
+        }
+    }
+
+    private void addOrphan(int record) {
+        if (!orphans.add(record)) {
+            return;
+        }
+        Sha256Hash prev = new Sha256Hash(readBytes(record, HEADER_OFFSET + 4, 32));
+        ArrayList<Integer> records = orphansByPrev.get(prev);
+        if (records == null) {
+            records = new ArrayList<Integer>(1);
+            orphansByPrev.put(prev, records);
+        }
+        records.add(record);
+        if (lastOrphan < 0 || readBlockNo(record) > readBlockNo(lastOrphan)) {
+            lastOrphan = record;
+        }
+    }
+
+    private void removeOrphan(int record) {
+        if (!orphans.remove(record)) {
+            return;
+        }
+        Sha256Hash prev = new Sha256Hash(readBytes(record, HEADER_OFFSET + 4, 32));
+        ArrayList<Integer> records = orphansByPrev.get(prev);
+        records.remove(Integer.valueOf(record));
+        if (records.isEmpty()) {
+            orphansByPrev.remove(prev);
+        }
+        if (record == lastOrphan) {
+            lastOrphan = -1;
+            for (int orphan : orphans) {
+                if (lastOrphan < 0 || readBlockNo(orphan) > readBlockNo(lastOrphan)) {
+                    lastOrphan = orphan;
+                }
+            }
+        }
+    }
+
+    private boolean isValidRecord(int record) {
+        byte[] bytes = readBytes(record, 0, RECORD_SIZE);
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getInt(CRC_OFFSET) == crc
+                (bytes);
+    }
+
+    private boolean isEmptyRecord(int record) {
+        for (byte b : readBytes(record, 0, RECORD_SIZE)) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void clearRecords(int from, int to) {
+        byte[] empty = new byte[RECORD_SIZE];
+        ByteBuffer view = buffer.duplicate();
+        for (int record = from; record < to; record++) {
+            view.position(offset(record));
+            view.put(empty);
+        }
+    }
+
+    private void compact() throws IOException {
+        List<byte[]> kept = new ArrayList<byte[]>();
+        for (int record = 0; record < recordCount; record++) {
+            if ((readFlags(record) & FLAG_REMOVED) == 0) {
+                kept.add(readBytes(record, 0, RECORD_SIZE));
+            }
+        }
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        try {
+            out.setLength(0);
+            ByteBuffer fileHeader = ByteBuffer.allocate(FILE_HEADER_SIZE).order(ByteOrder
+                    .LITTLE_ENDIAN);
+            fileHeader.putInt(0, MAGIC);
+            fileHeader.putInt(4, VERSION);
+            out.write(fileHeader.array());
+            for (byte[] bytes : kept) {
+                out.write(bytes);
+            }
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        channel.close();
+        randomAccessFile.close();
+        buffer = null;
+        if (!tmp.renameTo(file)) {
+            log.warn("can not replace header file {} with compacted copy", file.getName());
+            tmp.delete();
+        }
+        open();
+    }
+
+    private Block readBlock(int record) {
+        byte[] bytes = readBytes(record, 0, RECORD_SIZE);
+        ByteBuffer recordBuffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] blockHash = Arrays.copyOfRange(bytes, HASH_OFFSET, HASH_OFFSET + 32);
+        long version = recordBuffer.getInt(HEADER_OFFSET) & 0xffffffffL;
+        byte[] prevBlock = Arrays.copyOfRange(bytes, HEADER_OFFSET + 4, HEADER_OFFSET + 36);
+        byte[] merkleRoot = Arrays.copyOfRange(bytes, HEADER_OFFSET + 36, HEADER_OFFSET + 68);
+        int timestamp = recordBuffer.getInt(HEADER_OFFSET + 68);
+        long target = recordBuffer.getInt(HEADER_OFFSET + 72) & 0xffffffffL;
+        long nonce = recordBuffer.getInt(HEADER_OFFSET + 76) & 0xffffffffL;
+        int blockNo = recordBuffer.getInt(BLOCK_NO_OFFSET);
+        boolean isMain = (bytes[FLAGS_OFFSET] & FLAG_MAIN) != 0;
+        return new Block(blockHash, version, prevBlock, merkleRoot, timestamp, target, nonce,
+                blockNo, isMain);
+    }
+
+    private int readBlockNo(int record) {
+        return buffer.getInt(offset(record) + BLOCK_NO_OFFSET);
+    }
+
+    private byte readFlags(int record) {
+        return buffer.get(offset(record) + FLAGS_OFFSET);
+    }
+
+    private void writeFlags(int record, byte flags) {
+        buffer.put(offset(record) + FLAGS_OFFSET, flags);
+    }
+
+    private byte[] readBytes(int record, int from, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset(record) + from);
+        view.get(bytes);
+        return bytes;
+    }
+
+    private static int offset(int record) {
+        return FILE_HEADER_SIZE + record * RECORD_SIZE;
+    }
+
+    private static int crc(byte[] record) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(record, 0, CRC_LENGTH);
+        return (int) crc32.getValue();
+    }
+
+    private static final Comparator<Block> BLOCK_NO_DESC = new Comparator<Block>() {
+        @Override
+        public int compare(Block lhs, Block rhs) {
+            return rhs.getBlockNo() - lhs.getBlockNo();
+        }
+    };
+}
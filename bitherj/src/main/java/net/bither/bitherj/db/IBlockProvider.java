@@ -0,0 +1,80 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.bither.bitherj.db;
+
+import net.bither.bitherj.core.Block;
+
+import java.util.List;
+
+/**
+ * Storage for block headers. The implementation is chosen by
+ * {@link BlockProvider#setBlockStoreMode(net.bither.bitherj.core.BitherjSettings.BlockStoreMode)}.
+ */
+public interface IBlockProvider {
+    public List<Block> getAllBlocks();
+
+    /**
+     * @return blocks above blockNo, highest first
+     */
+    public List<Block> getBlocksFrom(int blockNo);
+
+    /**
+     * @return main chain blocks from blockNo up, lowest first
+     */
+    public List<Block> getMainChainBlocksFrom(int blockNo);
+
+    public int getBlockCount();
+
+    public Block getLastBlock();
+
+    public Block getLastOrphanBlock();
+
+    public Block getBlock(byte[] blockHash);
+
+    public Block getOrphanBlockByPrevHash(byte[] prevHash);
+
+    public Block getMainChainBlock(int blockNo);
+
+    public Block getMainChainBlock(byte[] blockHash);
+
+    public List<byte[]> exists(List<byte[]> blockHashes);
+
+    public boolean isExist(byte[] blockHash);
+
+    public void addBlocks(List<Block> blockItemList);
+
+    public void addBlock(Block item);
+
+    public void updateBlock(byte[] blockHash, boolean isMain);
+
+    public void removeBlock(byte[] blockHash);
+
+    /**
+     * Removes at most limit blocks, main chain ones below mainBelowBlockNo and orphans below
+     * orphanBelowBlockNo.
+     *
+     * @return the number of blocks removed, less than limit once nothing is left
+     */
+    public int removeOldBlocks(int mainBelowBlockNo, int orphanBelowBlockNo, int limit);
+
+    /**
+     * Gives the space of removed blocks back to the file system.
+     *
+     * @return bytes reclaimed
+     */
+    public long reclaimSpace();
+}
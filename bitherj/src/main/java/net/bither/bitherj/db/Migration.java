@@ -0,0 +1,38 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.bither.bitherj.db;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * One schema step, bringing the database from version - 1 to version. Steps run in version order
+ * inside the open helper's transaction and must be safe to run on a database that already has
+ * the change, since a fresh database is created at the latest layout and then runs every step.
+ */
+public abstract class Migration {
+    private int version;
+
+    public Migration(int version) {
+        this.version = version;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public abstract void migrate(SQLiteDatabase db);
+}
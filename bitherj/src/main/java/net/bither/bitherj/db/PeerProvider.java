@@ -38,7 +38,27 @@ public class PeerProvider {
         return peerProvider;
     }
 
+    private static final String QUERY_CONNECTED_PEERS = "select * from peers where " +
+            "peer_connected_cnt=1 order by peer_timestamp desc limit ?";
+    private static final String QUERY_NEVER_CONNECTED_PEERS = "select * from peers where " +
+            "peer_connected_cnt=0 order by peer_timestamp desc limit ?";
+    private static final String QUERY_FAILED_PEERS = "select * from peers where " +
+            "peer_connected_cnt>1 order by peer_connected_cnt asc, peer_timestamp desc limit ?";
+    private static final String QUERY_DISCONNECTING_PEER_COUNT = "select count(0) from peers " +
+            "where peer_connected_cnt<>1";
+    private static final String QUERY_DISCONNECTING_PEER_TIMESTAMP = "select peer_timestamp " +
+            "from peers where peer_connected_cnt<>1 order by peer_timestamp desc limit 1 offset ?";
+    private static final String UPDATE_PEER_TIMESTAMP = "update peers set peer_timestamp=? " +
+            "where peer_address=?";
+    private static final String UPDATE_PEER_CONNECT_FAIL = "update peers set " +
+            "peer_connected_cnt=case peer_connected_cnt when 0 then 2 else peer_connected_cnt+1 " +
+            "end where peer_address=?";
+    private static final String UPDATE_PEER_CONNECT_SUCCEED = "update peers set " +
+            "peer_connected_cnt=1, peer_timestamp=? where peer_address=?";
+    private static final String DELETE_PEER = "delete from peers where peer_address=?";
+
     private SQLiteOpenHelper mDb;
+    private StatementRegistry statements = new StatementRegistry();
 
     public PeerProvider(SQLiteOpenHelper db) {
         this.mDb = db;
@@ -83,8 +103,7 @@ public class PeerProvider {
         db = mDb.getWritableDatabase();
         db.beginTransaction();
         for (long i : needDeletePeers) {
-            db.delete(BitherjDatabaseHelper.Tables.PEERS, BitherjDatabaseHelper.PeersColumns
-                    .PEER_ADDRESS + "=?", new String[]{Long.toString(i)});
+            statements.execute(db, DELETE_PEER, i);
         }
         db.setTransactionSuccessful();
         db.endTransaction();
@@ -126,16 +145,32 @@ public class PeerProvider {
         }
     }
 
+    /**
+     * Writes a snapshot of the peer address book over the table.
+     */
+    public void replacePeers(List<Peer> items) {
+        SQLiteDatabase db = this.mDb.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(BitherjDatabaseHelper.Tables.PEERS, "", new String[0]);
+            for (Peer item : items) {
+                ContentValues cv = new ContentValues();
+                applyContentValues(item, cv);
+                db.insert(BitherjDatabaseHelper.Tables.PEERS, null, cv);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     public void updatePeersTimestamp(List<InetAddress> peerAddresses) {
         long timestamp = new Date().getTime();
         SQLiteDatabase db = this.mDb.getWritableDatabase();
         db.beginTransaction();
         for (InetAddress peerAddress : peerAddresses) {
-            ContentValues cv = new ContentValues();
-            cv.put(BitherjDatabaseHelper.PeersColumns.PEER_TIMESTAMP, timestamp);
-            db.update(BitherjDatabaseHelper.Tables.PEERS, cv, BitherjDatabaseHelper.PeersColumns
-                    .PEER_ADDRESS + "=?", new String[]{Long.toString(Utils.parseLongFromAddress
-                    (peerAddress))});
+            statements.execute(db, UPDATE_PEER_TIMESTAMP, timestamp, Utils.parseLongFromAddress
+                    (peerAddress));
         }
         db.setTransactionSuccessful();
         db.endTransaction();
@@ -144,73 +179,40 @@ public class PeerProvider {
 
     public void removePeer(InetAddress address) {
         SQLiteDatabase db = this.mDb.getWritableDatabase();
-        db.delete(BitherjDatabaseHelper.Tables.PEERS, BitherjDatabaseHelper.PeersColumns
-                .PEER_ADDRESS + "=?", new String[]{Long.toString(Utils.parseLongFromAddress
-                (address))});
+        statements.execute(db, DELETE_PEER, Utils.parseLongFromAddress(address));
     }
 
     public void conncetFail(InetAddress address) {
         long addressLong = Utils.parseLongFromAddress(address);
-        String sql = "select count(0) cnt from peers where peer_address=" + Long.toString
-                (addressLong) + " and peer_connected_cnt=0";
-        SQLiteDatabase db = this.mDb.getReadableDatabase();
-        Cursor c = db.rawQuery(sql, null);
-        int cnt = 0;
-        if (c.moveToNext()) {
-            int idColumn = c.getColumnIndex("cnt");
-            if (idColumn != -1) {
-                cnt = c.getInt(idColumn);
-            }
-
-        }
-        c.close();
-        db = this.mDb.getWritableDatabase();
-        if (cnt == 0) {
-            sql = "update peers set peer_connected_cnt=peer_connected_cnt+1 where peer_address="
-                    + Long.toString(addressLong);
-            db.execSQL(sql);
-        } else {
-            sql = "update peers set peer_connected_cnt=2 where peer_address=" + Long.toString
-                    (addressLong);
-            db.execSQL(sql);
-        }
+        SQLiteDatabase db = this.mDb.getWritableDatabase();
+        statements.execute(db, UPDATE_PEER_CONNECT_FAIL, addressLong);
 
     }
 
     public void connectSucceed(InetAddress address) {
         long addressLong = Utils.parseLongFromAddress(address);
         SQLiteDatabase db = this.mDb.getWritableDatabase();
-        ContentValues cv = new ContentValues();
-        cv.put(BitherjDatabaseHelper.PeersColumns.PEER_CONNECTED_CNT, 1);
-        cv.put(BitherjDatabaseHelper.PeersColumns.PEER_TIMESTAMP, new Date().getTime());
-        db.update(BitherjDatabaseHelper.Tables.PEERS, cv, "peer_address=?",
-                new String[]{Long.toString(addressLong)});
+        statements.execute(db, UPDATE_PEER_CONNECT_SUCCEED, new Date().getTime(), addressLong);
     }
 
     public List<Peer> getPeersWithLimit(int limit) {
         List<Peer> peerItemList = new ArrayList<Peer>();
         SQLiteDatabase db = this.mDb.getReadableDatabase();
-        String sql = "select * from peers where peer_connected_cnt=1 order by peer_timestamp desc" +
-                " limit " + Integer.toString(limit);
-        Cursor c = db.rawQuery(sql, null);
+        Cursor c = BlobCursorFactory.rawQuery(db, QUERY_CONNECTED_PEERS, limit);
         while (c.moveToNext()) {
             peerItemList.add(applyCursor(c));
         }
         c.close();
         if (peerItemList.size() < limit) {
-            sql = "select * from peers where peer_connected_cnt=0 order by peer_timestamp desc " +
-                    "limit " + Integer.toString(limit - peerItemList.size());
-            c = db.rawQuery(sql, null);
+            c = BlobCursorFactory.rawQuery(db, QUERY_NEVER_CONNECTED_PEERS, limit - peerItemList
+                    .size());
             while (c.moveToNext()) {
                 peerItemList.add(applyCursor(c));
             }
             c.close();
         }
         if (peerItemList.size() < limit) {
-            sql = "select * from peers where peer_connected_cnt>1 order by peer_connected_cnt " +
-                    "asc, peer_timestamp desc limit " + Integer.toString(limit - peerItemList
-                    .size());
-            c = db.rawQuery(sql, null);
+            c = BlobCursorFactory.rawQuery(db, QUERY_FAILED_PEERS, limit - peerItemList.size());
             while (c.moveToNext()) {
                 peerItemList.add(applyCursor(c));
             }
@@ -221,31 +223,12 @@ public class PeerProvider {
 
     public void cleanPeers() {
         int maxPeerSaveCnt = 1000;
-        String disconnectingPeerCntSql = "select count(0) cnt from peers where " +
-                "peer_connected_cnt<>1";
-        int disconnectingPeerCnt = 0;
         SQLiteDatabase db = this.mDb.getReadableDatabase();
-        Cursor c = db.rawQuery(disconnectingPeerCntSql, null);
-        if (c.moveToNext()) {
-            int idColumn = c.getColumnIndex("cnt");
-            if (idColumn != -1) {
-                disconnectingPeerCnt = c.getInt(idColumn);
-            }
-        }
-        c.close();
+        long disconnectingPeerCnt = statements.simpleQueryForLong(db,
+                QUERY_DISCONNECTING_PEER_COUNT);
         if (disconnectingPeerCnt > maxPeerSaveCnt) {
-            String sql = "select peer_timestamp from peers where peer_connected_cnt<>1 " +
-                    "order by peer_timestamp desc limit 1 offset " + Integer.toString
-                    (maxPeerSaveCnt);
-            c = db.rawQuery(sql, null);
-            long timestamp = 0;
-            if (c.moveToNext()) {
-                int idColumn = c.getColumnIndex(BitherjDatabaseHelper.PeersColumns.PEER_TIMESTAMP);
-                if (idColumn != -1) {
-                    timestamp = c.getLong(idColumn);
-                }
-            }
-            c.close();
+            long timestamp = statements.simpleQueryForLong(db,
+                    QUERY_DISCONNECTING_PEER_TIMESTAMP, maxPeerSaveCnt);
             if (timestamp > 0) {
                 db = this.mDb.getWritableDatabase();
                 db.delete(BitherjDatabaseHelper.Tables.PEERS, "peer_connected_cnt<>1 and " +
@@ -261,6 +244,9 @@ public class PeerProvider {
         cv.put(BitherjDatabaseHelper.PeersColumns.PEER_PORT, item.getPeerPort());
         cv.put(BitherjDatabaseHelper.PeersColumns.PEER_SERVICES, item.getPeerServices());
         cv.put(BitherjDatabaseHelper.PeersColumns.PEER_TIMESTAMP, item.getPeerTimestamp());
+        cv.put(BitherjDatabaseHelper.PeersColumns.PEER_SUCCESS_CNT, item.getPeerSuccessCnt());
+        cv.put(BitherjDatabaseHelper.PeersColumns.PEER_FAILURE_CNT, item.getPeerFailureCnt());
+        cv.put(BitherjDatabaseHelper.PeersColumns.PEER_LATENCY, item.getPeerLatency());
 
     }
 
@@ -291,6 +277,18 @@ public class PeerProvider {
         if (idColumn != -1) {
             peerItem.setPeerTimestamp(c.getInt(idColumn));
         }
+        idColumn = c.getColumnIndex(BitherjDatabaseHelper.PeersColumns.PEER_SUCCESS_CNT);
+        if (idColumn != -1) {
+            peerItem.setPeerSuccessCnt(c.getInt(idColumn));
+        }
+        idColumn = c.getColumnIndex(BitherjDatabaseHelper.PeersColumns.PEER_FAILURE_CNT);
+        if (idColumn != -1) {
+            peerItem.setPeerFailureCnt(c.getInt(idColumn));
+        }
+        idColumn = c.getColumnIndex(BitherjDatabaseHelper.PeersColumns.PEER_LATENCY);
+        if (idColumn != -1) {
+            peerItem.setPeerLatency(c.getLong(idColumn));
+        }
         return peerItem;
 
     }
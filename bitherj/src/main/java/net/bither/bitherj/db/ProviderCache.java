@@ -0,0 +1,95 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.bither.bitherj.db;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+
+/**
+ * LRU cache of objects read by a provider, bounded by an estimate of their size in bytes. The
+ * cached objects are shared between callers and must not be modified.
+ * <p/>
+ * A reader takes {@link #generation()} before its query and hands it to
+ * {@link #put(Object, Object, long)}; the put is dropped when a write invalidated anything in
+ * between, so a row read just before a write never lands after it.
+ */
+public class ProviderCache<K, V> {
+    private final Weigher<? super K, ? super V> weigher;
+    private volatile Cache<K, V> cache;
+    private CacheStats retiredStats = new CacheStats(0, 0, 0, 0, 0, 0);
+    private volatile long generation = 0;
+    private long maxBytes;
+
+    public ProviderCache(long maxBytes, Weigher<? super K, ? super V> weigher) {
+        this.weigher = weigher;
+        this.maxBytes = maxBytes;
+        this.cache = build(maxBytes);
+    }
+
+    public V get(K key) {
+        return cache.getIfPresent(key);
+    }
+
+    public long generation() {
+        return generation;
+    }
+
+    public synchronized void put(K key, V value, long readGeneration) {
+        if (readGeneration == generation) {
+            cache.put(key, value);
+        }
+    }
+
+    public synchronized void invalidate(K key) {
+        generation++;
+        cache.invalidate(key);
+    }
+
+    public synchronized void invalidateAll() {
+        generation++;
+        cache.invalidateAll();
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Drops the cached objects and starts over with the new bound, the counters carry on.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        generation++;
+        retiredStats = retiredStats.plus(cache.stats());
+        this.maxBytes = maxBytes;
+        this.cache = build(maxBytes);
+    }
+
+    /**
+     * @return hit, miss and eviction counts since the cache was created
+     */
+    public synchronized CacheStats stats() {
+        return retiredStats.plus(cache.stats());
+    }
+
+    private Cache<K, V> build(long maxBytes) {
+        // one segment, so the bound and the lru order hold for the whole cache and not per segment
+        return CacheBuilder.newBuilder().concurrencyLevel(1).maximumWeight(maxBytes).weigher
+                (weigher).recordStats().build();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.bither.bitherj.db;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteProgram;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.HashMap;
+
+/**
+ * Keeps one compiled SQLiteStatement per sql string for the connection it was compiled on, so the
+ * scalar queries and updates the providers run on every block and tx are parsed and planned once.
+ * Row queries go through rawQuery with constant sql and hit the connection's own statement cache,
+ * see {@link BitherjDatabaseHelper#onOpen(SQLiteDatabase)}.
+ * <p/>
+ * A compiled statement is not safe to bind from two threads at once, so every use holds the
+ * statement's lock from bind to execute.
+ */
+public class StatementRegistry {
+    private SQLiteDatabase db;
+    private final HashMap<String, SQLiteStatement> statements = new HashMap<String,
+            SQLiteStatement>();
+
+    public long simpleQueryForLong(SQLiteDatabase db, String sql, Object... args) {
+        SQLiteStatement statement = getStatement(db, sql);
+        synchronized (statement) {
+            bind(statement, args);
+            try {
+                return statement.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                return 0;
+            } finally {
+                statement.clearBindings();
+            }
+        }
+    }
+
+    /**
+     * executeUpdateDelete only exists from API 11, the library still runs on 9.
+     */
+    public void execute(SQLiteDatabase db, String sql, Object... args) {
+        SQLiteStatement statement = getStatement(db, sql);
+        synchronized (statement) {
+            bind(statement, args);
+            try {
+                statement.execute();
+            } finally {
+                statement.clearBindings();
+            }
+        }
+    }
+
+    public long executeInsert(SQLiteDatabase db, String sql, Object... args) {
+        SQLiteStatement statement = getStatement(db, sql);
+        synchronized (statement) {
+            bind(statement, args);
+            try {
+                return statement.executeInsert();
+            } finally {
+                statement.clearBindings();
+            }
+        }
+    }
+
+    private synchronized SQLiteStatement getStatement(SQLiteDatabase db, String sql) {
+        if (this.db != db) {
+            // the helper reopened the database, statements compiled on the old one are dead
+            for (SQLiteStatement statement : statements.values()) {
+                statement.close();
+            }
+            statements.clear();
+            this.db = db;
+        }
+        SQLiteStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+            statements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    static void bind(SQLiteProgram program, Object... args) {
+        if (args == null) {
+            return;
+        }
+        for (int i = 0; i < args.length; i++) {
+            Object arg = args[i];
+            if (arg == null) {
+                program.bindNull(i + 1);
+            } else if (arg instanceof byte[]) {
+                program.bindBlob(i + 1, (byte[]) arg);
+            } else if (arg instanceof Integer || arg instanceof Long) {
+                program.bindLong(i + 1, ((Number) arg).longValue());
+            } else {
+                program.bindString(i + 1, arg.toString());
+            }
+        }
+    }
+}
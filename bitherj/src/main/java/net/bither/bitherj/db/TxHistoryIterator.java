@@ -0,0 +1,75 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.bither.bitherj.db;
+
+import net.bither.bitherj.core.Tx;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Yields the txs of an address newest first with their ins and outs. Only one page is held at a
+ * time, the next one is read after the (block_no, tx_time, tx_hash) of the last tx returned, so
+ * txs written while walking do not shift the pages.
+ */
+public class TxHistoryIterator implements Iterator<Tx> {
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    private TxProvider provider;
+    private String address;
+    private int pageSize;
+    private List<Tx> page;
+    private int pageIndex;
+    private Tx last;
+    private boolean isLastPage;
+
+    TxHistoryIterator(TxProvider provider, String address, int pageSize) {
+        this.provider = provider;
+        this.address = address;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (page != null && pageIndex < page.size()) {
+            return true;
+        }
+        if (isLastPage) {
+            return false;
+        }
+        page = provider.getTxsByAddress(address, last, pageSize);
+        pageIndex = 0;
+        isLastPage = page.size() < pageSize;
+        return page.size() > 0;
+    }
+
+    @Override
+    public Tx next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        last = page.get(pageIndex);
+        pageIndex++;
+        return last;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
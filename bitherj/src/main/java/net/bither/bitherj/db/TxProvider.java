@@ -21,17 +21,23 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import com.google.common.cache.Weigher;
+
 import net.bither.bitherj.BitherjApplication;
+import net.bither.bitherj.core.BitherjSettings;
+import net.bither.bitherj.core.Block;
 import net.bither.bitherj.core.In;
 import net.bither.bitherj.core.Out;
 import net.bither.bitherj.core.Tx;
-import net.bither.bitherj.exception.AddressFormatException;
-import net.bither.bitherj.utils.Base58;
+import net.bither.bitherj.exception.ProtocolException;
+import net.bither.bitherj.utils.LogUtil;
 import net.bither.bitherj.utils.Sha256Hash;
 import net.bither.bitherj.utils.Utils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 public class TxProvider {
@@ -42,12 +48,231 @@ public class TxProvider {
         return txProvider;
     }
 
+    private static final String QUERY_TX_EXISTS = "select count(0) from txs where tx_hash=?";
+    private static final String QUERY_TX = "select * from txs where tx_hash=?";
+    // raw has no spent flags, they are read from outs for every parsed or cached tx handed out
+    private static final String QUERY_OUT_STATUSES = "select out_sn, out_status from outs where tx_hash=?";
+    private static final String UPDATE_TX_RAW = "update txs set raw=? where tx_hash=?";
+    // sqlite binds at most 999 args, larger sets are read in slices
+    private static final int MAX_TX_HASHES_PER_QUERY = 500;
+    private static final String QUERY_PREV_OUT_SPENT_BY_OTHER = "select count(0) from ins where prev_tx_hash=? and prev_out_sn=?";
+    private static final String QUERY_PREV_OUT_SPENDERS = "select tx_hash from ins where prev_tx_hash=? and prev_out_sn=?";
+    private static final String QUERY_TX_ADDRESSES = "select address from addresses_txs where tx_hash=?";
+    private static final String QUERY_ADDRESS_BALANCE = "select balance from address_balances where address=?";
+    private static final String QUERY_ADDRESS_TX_COUNT = "select count(0) from addresses_txs where address=?";
+    private static final String UPDATE_OUT_STATUS = "update outs set out_status=? where tx_hash=? and out_sn=?";
+    private static final String UPDATE_TX_SOURCE_SAW = "update txs set source=source+1 where tx_hash=? and source>=1";
+    private static final String INSERT_ADDRESS_TX = "insert or ignore into addresses_txs(address, tx_hash) values(?,?)";
+    private static final String CREATE_CONFIRM_TX_HASHES = "create temp table if not exists confirm_tx_hashes (tx_hash blob primary key)";
+    private static final String DELETE_CONFIRM_TX_HASHES = "delete from confirm_tx_hashes";
+    private static final String INSERT_CONFIRM_TX_HASH = "insert or ignore into confirm_tx_hashes(tx_hash) values(?)";
+    // txs spending the same outs as a tx of the block that is not yet confirmed in it. cross join
+    // keeps the hashes of the block as the outer loop, the temp table has no stats for the planner
+    private static final String QUERY_CONFIRM_DOUBLE_SPENDS = "select distinct a.tx_hash from confirm_tx_hashes cross join txs t cross join ins b cross join ins a" +
+            " where t.tx_hash=confirm_tx_hashes.tx_hash and (t.block_no is null or t.block_no<>?)" +
+            " and b.tx_hash=confirm_tx_hashes.tx_hash and a.prev_tx_hash=b.prev_tx_hash and a.prev_out_sn=b.prev_out_sn" +
+            " and a.tx_hash<>b.tx_hash and a.tx_hash not in (select tx_hash from confirm_tx_hashes)";
+    private static final String UPDATE_CONFIRM_TX_BLOCK_NO = "update txs set block_no=? where tx_hash in (select tx_hash from confirm_tx_hashes)" +
+            " and (block_no is null or block_no<>?)";
+    private static final String QUERY_CONFIRM_ADDRESSES = "select distinct a.address from confirm_tx_hashes cross join addresses_txs a" +
+            " where a.tx_hash=confirm_tx_hashes.tx_hash";
+    // a tx held back as a conflicting spend takes its prev outs and adds its own once it confirms
+    private static final String UPDATE_CONFIRM_SPENT_OUTS = "update outs set out_status=? where rowid in (select o.rowid" +
+            " from confirm_tx_hashes cross join ins i cross join outs o where i.tx_hash=confirm_tx_hashes.tx_hash" +
+            " and o.tx_hash=i.prev_tx_hash and o.out_sn=i.prev_out_sn and o.out_status<>?)";
+    private static final String DELETE_CONFIRM_SPENT_UNSPENT_OUTS = "delete from unspent_outs where rowid in (select u.rowid" +
+            " from confirm_tx_hashes cross join ins i cross join unspent_outs u where i.tx_hash=confirm_tx_hashes.tx_hash" +
+            " and u.tx_hash=i.prev_tx_hash and u.out_sn=i.prev_out_sn)";
+    private static final String INSERT_CONFIRM_UNSPENT_OUTS = "insert or ignore into unspent_outs(out_address, tx_hash, out_sn, out_value, block_no)" +
+            " select o.out_address, o.tx_hash, o.out_sn, o.out_value, ? from confirm_tx_hashes cross join outs o" +
+            " where o.tx_hash=confirm_tx_hashes.tx_hash and o.out_status=? and o.out_address is not null";
+    // a history import is staged in temp tables a batch at a time and applied with set-wise
+    // statements instead of the per-row lookups of addTxToDb
+    private static final int IMPORT_BATCH_SIZE = 1000;
+    private static final String CREATE_IMPORT_TXS = "create temp table if not exists import_txs (tx_hash blob primary key," +
+            " tx_ver integer, tx_locktime integer, tx_time integer, block_no integer, source integer, raw blob)";
+    private static final String CREATE_IMPORT_INS = "create temp table if not exists import_ins (tx_hash blob not null," +
+            " in_sn integer not null, prev_tx_hash blob, prev_out_sn integer, in_signature blob, in_sequence integer," +
+            " primary key (tx_hash, in_sn))";
+    private static final String CREATE_IMPORT_INS_PREV_INDEX = "create index if not exists idx_import_ins_prev on import_ins" +
+            " (prev_tx_hash, prev_out_sn)";
+    private static final String CREATE_IMPORT_OUTS = "create temp table if not exists import_outs (tx_hash blob not null," +
+            " out_sn integer not null, out_script blob not null, out_value integer not null, out_status integer not null," +
+            " out_address text, primary key (tx_hash, out_sn))";
+    private static final String INSERT_IMPORT_TX = "insert or ignore into import_txs(tx_hash, tx_ver, tx_locktime, tx_time," +
+            " block_no, source, raw) values(?,?,?,?,?,?,?)";
+    private static final String INSERT_IMPORT_IN = "insert or ignore into import_ins(tx_hash, in_sn, prev_tx_hash, prev_out_sn," +
+            " in_signature, in_sequence) values(?,?,?,?,?,?)";
+    private static final String INSERT_IMPORT_OUT = "insert or ignore into import_outs(tx_hash, out_sn, out_script, out_value," +
+            " out_status, out_address) values(?,?,?,?,?,?)";
+    private static final String DELETE_IMPORT_EXISTING_TXS = "delete from import_txs where exists (select 1 from txs t" +
+            " where t.tx_hash=import_txs.tx_hash)";
+    private static final String DELETE_IMPORT_UNSTAGED_INS = "delete from import_ins where not exists (select 1 from import_txs t" +
+            " where t.tx_hash=import_ins.tx_hash)";
+    private static final String DELETE_IMPORT_UNSTAGED_OUTS = "delete from import_outs where not exists (select 1 from import_txs t" +
+            " where t.tx_hash=import_outs.tx_hash)";
+    // staged txs spending an out some other stored or staged tx spends, they go through addTxToDb
+    private static final String QUERY_IMPORT_CONFLICTS = "select i.tx_hash from import_ins i cross join ins s" +
+            " where s.prev_tx_hash=i.prev_tx_hash and s.prev_out_sn=i.prev_out_sn and s.tx_hash<>i.tx_hash" +
+            " union select i.tx_hash from import_ins i cross join import_ins s" +
+            " where s.prev_tx_hash=i.prev_tx_hash and s.prev_out_sn=i.prev_out_sn and s.tx_hash<>i.tx_hash";
+    private static final String DELETE_IMPORT_TX = "delete from import_txs where tx_hash=?";
+    private static final String DELETE_IMPORT_TX_INS = "delete from import_ins where tx_hash=?";
+    private static final String DELETE_IMPORT_TX_OUTS = "delete from import_outs where tx_hash=?";
+    private static final String COPY_IMPORT_TXS = "insert into txs(tx_hash, tx_ver, tx_locktime, tx_time, block_no, source, raw)" +
+            " select tx_hash, tx_ver, tx_locktime, tx_time, block_no, source, raw from import_txs";
+    private static final String COPY_IMPORT_INS = "insert into ins(tx_hash, in_sn, prev_tx_hash, prev_out_sn, in_signature, in_sequence)" +
+            " select tx_hash, in_sn, prev_tx_hash, prev_out_sn, in_signature, in_sequence from import_ins";
+    // after the ins, so an out spent by a tx stored before or in the same batch comes in spent
+    private static final String COPY_IMPORT_OUTS = "insert into outs(tx_hash, out_sn, out_script, out_value, out_status, out_address)" +
+            " select o.tx_hash, o.out_sn, o.out_script, o.out_value, case when exists (select 1 from ins s" +
+            " where s.prev_tx_hash=o.tx_hash and s.prev_out_sn=o.out_sn) then ? else o.out_status end, o.out_address" +
+            " from import_outs o";
+    private static final String UPDATE_IMPORT_SPENT_OUTS = "update outs set out_status=? where rowid in (select o.rowid" +
+            " from import_ins i cross join outs o where o.tx_hash=i.prev_tx_hash and o.out_sn=i.prev_out_sn and o.out_status<>?)";
+    private static final String DELETE_IMPORT_SPENT_UNSPENT_OUTS = "delete from unspent_outs where rowid in (select u.rowid" +
+            " from import_ins i cross join unspent_outs u where u.tx_hash=i.prev_tx_hash and u.out_sn=i.prev_out_sn)";
+    private static final String INSERT_IMPORT_UNSPENT_OUTS = "insert or ignore into unspent_outs(out_address, tx_hash, out_sn, out_value, block_no)" +
+            " select o.out_address, o.tx_hash, o.out_sn, o.out_value, t.block_no from import_outs o cross join import_txs t" +
+            " cross join outs s where t.tx_hash=o.tx_hash and s.tx_hash=o.tx_hash and s.out_sn=o.out_sn and s.out_status=?" +
+            " and o.out_address is not null";
+    private static final String INSERT_IMPORT_OUT_ADDRESSES_TXS = "insert or ignore into addresses_txs(address, tx_hash)" +
+            " select out_address, tx_hash from import_outs where out_address is not null";
+    // the addresses a staged tx spends from, resolved against every stored out at once
+    private static final String INSERT_IMPORT_IN_ADDRESSES_TXS = "insert or ignore into addresses_txs(address, tx_hash)" +
+            " select o.out_address, i.tx_hash from import_ins i cross join outs o" +
+            " where o.tx_hash=i.prev_tx_hash and o.out_sn=i.prev_out_sn and o.out_address is not null";
+    // stored txs spending the staged outs touch their addresses as well
+    private static final String INSERT_IMPORT_SPENDER_ADDRESSES_TXS = "insert or ignore into addresses_txs(address, tx_hash)" +
+            " select o.out_address, s.tx_hash from import_outs o cross join ins s" +
+            " where s.prev_tx_hash=o.tx_hash and s.prev_out_sn=o.out_sn and o.out_address is not null";
+    private static final String DELETE_IMPORT_TXS = "delete from import_txs";
+    private static final String DELETE_IMPORT_INS = "delete from import_ins";
+    private static final String DELETE_IMPORT_OUTS = "delete from import_outs";
+    private static final String UPDATE_TX_TIME_AFTER_BLOCK_TIME = "update txs set tx_time=? where block_no=? and tx_time>?";
+    private static final String UPDATE_CONFIRM_UNSPENT_OUTS_BLOCK_NO = "update unspent_outs set block_no=? where tx_hash in (select tx_hash from confirm_tx_hashes)";
+    private static final String UPDATE_UNCONFIRM_UNSPENT_OUTS = "update unspent_outs set block_no=null where block_no>=?";
+    // a replace would delete the old row without running the balance trigger
+    private static final String INSERT_UNSPENT_OUT = "insert or ignore into unspent_outs(out_address, tx_hash, out_sn, out_value, block_no)" +
+            " select o.out_address, o.tx_hash, o.out_sn, o.out_value, t.block_no from outs o, txs t" +
+            " where o.tx_hash=? and o.out_sn=? and o.out_status=? and o.out_address is not null and t.tx_hash=o.tx_hash";
+    private static final String INSERT_UNSPENT_OUTS_OF_TX = "insert or ignore into unspent_outs(out_address, tx_hash, out_sn, out_value, block_no)" +
+            " select o.out_address, o.tx_hash, o.out_sn, o.out_value, t.block_no from outs o, txs t" +
+            " where o.tx_hash=? and o.out_status=? and o.out_address is not null and t.tx_hash=o.tx_hash";
+    private static final String DELETE_UNSPENT_OUT = "delete from unspent_outs where tx_hash=? and out_sn=?";
+    private static final String DELETE_UNSPENT_OUTS_OF_TX = "delete from unspent_outs where tx_hash=?";
+    private static final String QUERY_UNSPENT_TXS = "select o.*,t.tx_ver,t.tx_locktime,t.tx_time,t.block_no,t.source,ifnull(u.block_no,0)*u.out_value coin_depth" +
+            " from unspent_outs u cross join outs o cross join txs t" +
+            " where u.out_address=? and o.tx_hash=u.tx_hash and o.out_sn=u.out_sn and t.tx_hash=u.tx_hash";
+    private static final String QUERY_UNCONFIRMED_UNSPENT_OUTS = "select o.* from unspent_outs u cross join outs o" +
+            " where u.out_address=? and u.block_no is null and o.tx_hash=u.tx_hash and o.out_sn=u.out_sn";
+    private static final String QUERY_CONFIRMED_UNSPENT_OUTS = "select o.*,u.block_no*u.out_value coin_depth from unspent_outs u cross join outs o" +
+            " where u.out_address=? and u.block_no is not null and o.tx_hash=u.tx_hash and o.out_sn=u.out_sn";
+    private static final String QUERY_UNCONFIRMED_UNSPENT_OUTS_FROM_SELF = "select o.* from unspent_outs u cross join outs o cross join txs t" +
+            " where u.out_address=? and u.block_no is null and o.tx_hash=u.tx_hash and o.out_sn=u.out_sn" +
+            " and t.tx_hash=u.tx_hash and t.source>=?";
+    private static final String QUERY_UNCONFIRMED_UNSPENT_OUTS_BY_SOURCE = "select o.* from unspent_outs u cross join outs o cross join txs t" +
+            " where u.out_address=? and u.block_no is null and o.tx_hash=u.tx_hash and o.out_sn=u.out_sn" +
+            " and t.tx_hash=u.tx_hash and t.source=?";
+
+    // the whole history of an address in one cursor, newest first and grouped by tx. unconfirmed
+    // txs sort above every block
+    private static final String QUERY_ADDRESS_TXS = "select t.tx_hash tx_hash, t.tx_ver, t.tx_locktime, t.tx_time tx_time," +
+            " t.block_no block_no, t.source, t.block_no is null unconfirmed, 1 kind, i.in_sn, i.prev_tx_hash, i.prev_out_sn, i.in_signature, i.in_sequence," +
+            " null out_sn, null out_script, null out_value, null out_status, null out_address" +
+            " from addresses_txs a cross join txs t cross join ins i where a.address=? and t.tx_hash=a.tx_hash and i.tx_hash=t.tx_hash" +
+            " union all select t.tx_hash, t.tx_ver, t.tx_locktime, t.tx_time, t.block_no, t.source, t.block_no is null, 2," +
+            " null, null, null, null, null, o.out_sn, o.out_script, o.out_value, o.out_status, o.out_address" +
+            " from addresses_txs a cross join txs t cross join outs o where a.address=? and t.tx_hash=a.tx_hash and o.tx_hash=t.tx_hash" +
+            " order by unconfirmed desc, block_no desc, tx_time desc, tx_hash desc, kind, in_sn, out_sn";
+    // a page of an address history is picked once into a temp table, walking idx_txs_history
+    // down from the key of the previous page. Unconfirmed txs come first, then the blocks
+    private static final String CREATE_ADDRESS_TX_PAGE = "create temp table if not exists address_tx_page (seq integer primary key," +
+            " tx_hash blob, tx_ver integer, tx_locktime integer, tx_time integer, block_no integer, source integer)";
+    private static final String DELETE_ADDRESS_TX_PAGE = "delete from address_tx_page";
+    private static final String INSERT_ADDRESS_TX_PAGE_UNCONFIRMED = "insert into address_tx_page(tx_hash, tx_ver, tx_locktime, tx_time," +
+            " block_no, source) select t.tx_hash, t.tx_ver, t.tx_locktime, t.tx_time, t.block_no, t.source" +
+            " from txs t cross join addresses_txs a where t.block_no is null and t.tx_time<=?" +
+            " and (t.tx_time<? or (t.tx_time=? and t.tx_hash<?)) and a.address=? and a.tx_hash=t.tx_hash" +
+            " order by t.tx_time desc, t.tx_hash desc limit ?";
+    // block_no<=? bounds the index range, the rest of the key only filters the first block
+    private static final String INSERT_ADDRESS_TX_PAGE_CONFIRMED = "insert into address_tx_page(tx_hash, tx_ver, tx_locktime, tx_time," +
+            " block_no, source) select t.tx_hash, t.tx_ver, t.tx_locktime, t.tx_time, t.block_no, t.source" +
+            " from txs t cross join addresses_txs a where t.block_no<=?" +
+            " and (t.block_no<? or (t.block_no=? and (t.tx_time<? or (t.tx_time=? and t.tx_hash<?))))" +
+            " and a.address=? and a.tx_hash=t.tx_hash order by t.block_no desc, t.tx_time desc, t.tx_hash desc limit ?";
+    private static final String QUERY_ADDRESS_TX_PAGE_COUNT = "select count(0) from address_tx_page";
+    // the ins and outs of the page in one cursor, grouped by tx in page order
+    private static final String QUERY_ADDRESS_TX_PAGE = "select p.*, 1 kind, i.in_sn, i.prev_tx_hash, i.prev_out_sn, i.in_signature," +
+            " i.in_sequence, null out_sn, null out_script, null out_value, null out_status, null out_address" +
+            " from address_tx_page p cross join ins i where i.tx_hash=p.tx_hash" +
+            " union all select p.*, 2 kind, null, null, null, null, null, o.out_sn, o.out_script, o.out_value, o.out_status," +
+            " o.out_address from address_tx_page p cross join outs o where o.tx_hash=p.tx_hash" +
+            " order by seq, kind, in_sn, out_sn";
+    private static final int KIND_IN = 1;
+    private static final String QUERY_TX_INS = "select * from ins where tx_hash=? order by in_sn";
+    private static final String QUERY_TX_OUTS = "select * from outs where tx_hash=? order by out_sn";
+    // filled with one ? a hash
+    private static final String QUERY_TXS_BY_HASHES = "select * from txs where tx_hash in (%s)";
+    private static final String QUERY_PUBLISHED_TXS = "select * from txs where block_no is null or block_no=?";
+    private static final String QUERY_PUBLISHED_INS = "select b.* from txs a, ins b where a.tx_hash=b.tx_hash" +
+            " and (a.block_no is null or a.block_no=?) order by b.tx_hash, b.in_sn";
+    private static final String QUERY_PUBLISHED_OUTS = "select b.* from txs a, outs b where a.tx_hash=b.tx_hash" +
+            " and (a.block_no is null or a.block_no=?) order by b.tx_hash, b.out_sn";
+    private static final String QUERY_PREV_OUT_ADDRESS = "select out_address from outs where tx_hash=? and out_sn=?";
+    private static final String QUERY_TX_PREV_OUTS = "select prev_tx_hash, prev_out_sn from ins where tx_hash=?";
+    private static final String QUERY_TX_SPENDERS = "select distinct tx_hash from ins where prev_tx_hash=?";
+    private static final String QUERY_PREV_OUT_CONFIRMED_SPENDS = "select count(0) from ins a, txs b where a.tx_hash=b.tx_hash" +
+            " and b.block_no is not null and a.prev_tx_hash=? and a.prev_out_sn=?";
+    private static final String QUERY_ADDRESS_TX_EXISTS = "select count(0) from addresses_txs where tx_hash=? and address=?";
+    private static final String QUERY_PREV_OUT_OF_ADDRESS = "select count(0) from outs where tx_hash=? and out_sn=? and out_address=?";
+    private static final String QUERY_RECENT_ADDRESS_TXS = "select b.* from addresses_txs a, txs b where a.tx_hash=b.tx_hash" +
+            " and a.address=? and ((b.block_no is null) or (b.block_no is not null and b.block_no>?))" +
+            " order by ifnull(b.block_no,4294967295) desc, b.tx_time desc limit ?";
+    private static final String QUERY_TX_IN_VALUES = "select b.out_value from ins a left outer join outs b" +
+            " on a.prev_tx_hash=b.tx_hash and a.prev_out_sn=b.out_sn where a.tx_hash=?";
+    private static final String UPDATE_UNCONFIRM_TXS = "update txs set block_no=null where block_no>=?";
+    private static final String DELETE_TX = "delete from txs where tx_hash=?";
+    private static final String DELETE_TX_INS = "delete from ins where tx_hash=?";
+    private static final String DELETE_TX_OUTS = "delete from outs where tx_hash=?";
+    private static final String DELETE_TX_ADDRESSES_TXS = "delete from addresses_txs where tx_hash=?";
+
+    // object overhead of a parsed tx and of each of its ins and outs, their byte arrays come on top
+    private static final int TX_WEIGHT = 160;
+    private static final int IN_OUT_WEIGHT = 120;
+    private static final Weigher<Sha256Hash, Tx> TX_WEIGHER = new Weigher<Sha256Hash, Tx>() {
+        @Override
+        public int weigh(Sha256Hash key, Tx value) {
+            int weight = TX_WEIGHT;
+            for (In inItem : value.getIns()) {
+                weight += IN_OUT_WEIGHT + (inItem.getInSignature() == null ? 0 : inItem
+                        .getInSignature().length);
+            }
+            for (Out outItem : value.getOuts()) {
+                weight += IN_OUT_WEIGHT + (outItem.getOutScript() == null ? 0 : outItem
+                        .getOutScript().length);
+            }
+            return weight;
+        }
+    };
+
     private SQLiteOpenHelper mDb;
+    private StatementRegistry statements = new StatementRegistry();
+    private ProviderCache<Sha256Hash, Tx> txCache = new ProviderCache<Sha256Hash, Tx>
+            (BitherjSettings.TX_CACHE_MAX_BYTES, TX_WEIGHER);
 
     public TxProvider(SQLiteOpenHelper db) {
         this.mDb = db;
     }
 
+    /**
+     * Txs parsed from raw by {@link #getTxDetailByTxHash(byte[])} and
+     * {@link #getTxDependencies(Tx)}. Rows without raw are read from ins and outs every time.
+     */
+    public ProviderCache<Sha256Hash, Tx> getTxCache() {
+        return txCache;
+    }
+
 //    public List<Tx> getTxByAddress(String address) {
 //        List<Tx> txItemList = new ArrayList<Tx>();
 //        String sql = "select b.* from addresses_txs a, txs b where a.tx_hash=b.tx_hash and a.address='" +
@@ -65,122 +290,163 @@ public class TxProvider {
 //        return txItemList;
 //    }
 
+    /**
+     * The whole history of the address with ins and outs, newest first, read from a single
+     * ordered cursor.
+     */
     public List<Tx> getTxAndDetailByAddress(String address) {
-        List<Tx> txItemList = new ArrayList<Tx>();
-        HashMap<Sha256Hash, Tx> txDict = new HashMap<Sha256Hash, Tx>();
         SQLiteDatabase db = this.mDb.getReadableDatabase();
+        Cursor c = BlobCursorFactory.rawQuery(db, QUERY_ADDRESS_TXS, new Object[]{address,
+                address});
         try {
-            String sql = "select b.* from addresses_txs a, txs b where a.tx_hash=b.tx_hash and a.address='"
-                    + address + "' order by b.block_no ";
-            Cursor c = db.rawQuery(sql, null);
-            while (c.moveToNext()) {
-                Tx txItem = applyCursor(c);
-                txItem.setIns(new ArrayList<In>());
-                txItem.setOuts(new ArrayList<Out>());
-                txItemList.add(txItem);
-                txDict.put(new Sha256Hash(txItem.getTxHash()), txItem);
-            }
+            return applyCursorTxsWithInsAndOuts(c);
+        } finally {
             c.close();
+        }
+    }
 
-            sql = "select b.* from addresses_txs a, ins b where a.tx_hash=b.tx_hash and a.address=? "
-                    + "order by b.tx_hash ,b.in_sn";
-            c = db.rawQuery(sql, new String[]{address});
-            while (c.moveToNext()) {
-                In inItem = applyCursorIn(c);
-                Tx tx = txDict.get(new Sha256Hash(inItem.getTxHash()));
-                tx.getIns().add(inItem);
-            }
-            c.close();
+    /**
+     * Walks the history of the address newest first, holding one page of txs in memory.
+     */
+    public TxHistoryIterator iterateTxsByAddress(String address) {
+        return new TxHistoryIterator(this, address, TxHistoryIterator.DEFAULT_PAGE_SIZE);
+    }
 
-            sql = "select b.* from addresses_txs a, outs b where a.tx_hash=b.tx_hash and a.address=? "
-                    + "order by b.tx_hash,b.out_sn";
-            c = db.rawQuery(sql, new String[]{address});
-            while (c.moveToNext()) {
-                Out out = applyCursorOut(c);
-                Tx tx = txDict.get(new Sha256Hash(out.getTxHash()));
-                tx.getOuts().add(out);
+    /**
+     * One page of the history of the address with ins and outs, newest first. The page is picked
+     * once by seeking the (block_no, tx_time, tx_hash) index, so a page costs about the same
+     * wherever it is in the history.
+     *
+     * @param after the last tx of the previous page, null for the first page
+     */
+    public List<Tx> getTxsByAddress(String address, Tx after, int limit) {
+        SQLiteDatabase db = this.mDb.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.execSQL(CREATE_ADDRESS_TX_PAGE);
+            statements.execute(db, DELETE_ADDRESS_TX_PAGE);
+            if (after == null || after.getBlockNo() == Tx.TX_UNCONFIRMED) {
+                Object txTime = after == null ? Long.MAX_VALUE : after.getTxTime();
+                Object txHash = after == null ? new byte[0] : after.getTxHash();
+                statements.execute(db, INSERT_ADDRESS_TX_PAGE_UNCONFIRMED, txTime, txTime,
+                        txTime, txHash, address, limit);
+                long count = statements.simpleQueryForLong(db, QUERY_ADDRESS_TX_PAGE_COUNT);
+                if (count < limit) {
+                    statements.execute(db, INSERT_ADDRESS_TX_PAGE_CONFIRMED, Long.MAX_VALUE,
+                            Long.MAX_VALUE, Long.MAX_VALUE, 0, 0, new byte[0], address,
+                            limit - count);
+                }
+            } else {
+                Object blockNo = after.getBlockNo();
+                Object txTime = after.getTxTime();
+                statements.execute(db, INSERT_ADDRESS_TX_PAGE_CONFIRMED, blockNo, blockNo,
+                        blockNo, txTime, txTime, after.getTxHash(), address, limit);
             }
-            c.close();
-
-        } catch (AddressFormatException e) {
-            e.printStackTrace();
+            List<Tx> txItemList;
+            Cursor c = BlobCursorFactory.rawQuery(db, QUERY_ADDRESS_TX_PAGE);
+            try {
+                txItemList = applyCursorTxsWithInsAndOuts(c);
+            } finally {
+                c.close();
+            }
+            statements.execute(db, DELETE_ADDRESS_TX_PAGE);
+            db.setTransactionSuccessful();
+            return txItemList;
+        } finally {
+            db.endTransaction();
         }
-        return txItemList;
     }
 
-    public List<Tx> getPublishedTxs() {
+    // txs with their ins and outs from a cursor of in and out rows grouped by tx
+    private List<Tx> applyCursorTxsWithInsAndOuts(Cursor c) {
         List<Tx> txItemList = new ArrayList<Tx>();
-        HashMap<Sha256Hash, Tx> txDict = new HashMap<Sha256Hash, Tx>();
-        SQLiteDatabase db = this.mDb.getReadableDatabase();
-        String sql = "select * from txs where block_no is null or block_no = ?";
-        try {
-            Cursor c = db.rawQuery(sql, new String[]{Integer.toString(Tx.TX_UNCONFIRMED)});
-            while (c.moveToNext()) {
-                Tx txItem = applyCursor(c);
+        int txHashColumn = c.getColumnIndex(BitherjDatabaseHelper.TxsColumns.TX_HASH);
+        int kindColumn = c.getColumnIndex("kind");
+        Tx txItem = null;
+        while (c.moveToNext()) {
+            if (txItem == null || !Arrays.equals(txItem.getTxHash(), c.getBlob(txHashColumn))) {
+                txItem = applyCursor(c);
                 txItem.setIns(new ArrayList<In>());
                 txItem.setOuts(new ArrayList<Out>());
                 txItemList.add(txItem);
-                txDict.put(new Sha256Hash(txItem.getTxHash()), txItem);
             }
-            c.close();
-
-            sql = "select b.* from txs a, ins b  where a.tx_hash=b.tx_hash  and ( a.block_no is null or a.block_no = ? ) "
-                    + "order by b.tx_hash ,b.in_sn";
-            c = db.rawQuery(sql, new String[]{Integer.toString(Tx.TX_UNCONFIRMED)});
-            while (c.moveToNext()) {
+            if (c.getInt(kindColumn) == KIND_IN) {
                 In inItem = applyCursorIn(c);
-                Tx tx = txDict.get(new Sha256Hash(inItem.getTxHash()));
-                tx.getIns().add(inItem);
+                inItem.setTx(txItem);
+                txItem.getIns().add(inItem);
+            } else {
+                Out outItem = applyCursorOut(c);
+                outItem.setTx(txItem);
+                txItem.getOuts().add(outItem);
             }
-            c.close();
+        }
+        return txItemList;
+    }
 
-            sql = "select b.* from txs a, outs b where a.tx_hash=b.tx_hash and ( a.block_no is null or a.block_no = ? ) "
-                    + "order by b.tx_hash,b.out_sn";
-            c = db.rawQuery(sql, new String[]{Integer.toString(Tx.TX_UNCONFIRMED)});
-            while (c.moveToNext()) {
-                Out out = applyCursorOut(c);
-                Tx tx = txDict.get(new Sha256Hash(out.getTxHash()));
-                tx.getOuts().add(out);
-            }
-            c.close();
+    public List<Tx> getPublishedTxs() {
+        List<Tx> txItemList = new ArrayList<Tx>();
+        HashMap<Sha256Hash, Tx> txDict = new HashMap<Sha256Hash, Tx>();
+        SQLiteDatabase db = this.mDb.getReadableDatabase();
+        Cursor c = BlobCursorFactory.rawQuery(db, QUERY_PUBLISHED_TXS, Tx.TX_UNCONFIRMED);
+        while (c.moveToNext()) {
+            Tx txItem = applyCursor(c);
+            txItem.setIns(new ArrayList<In>());
+            txItem.setOuts(new ArrayList<Out>());
+            txItemList.add(txItem);
+            txDict.put(new Sha256Hash(txItem.getTxHash()), txItem);
+        }
+        c.close();
 
-        } catch (AddressFormatException e) {
-            e.printStackTrace();
-        } finally {
+        c = BlobCursorFactory.rawQuery(db, QUERY_PUBLISHED_INS, Tx.TX_UNCONFIRMED);
+        while (c.moveToNext()) {
+            In inItem = applyCursorIn(c);
+            Tx tx = txDict.get(new Sha256Hash(inItem.getTxHash()));
+            tx.getIns().add(inItem);
+        }
+        c.close();
 
+        c = BlobCursorFactory.rawQuery(db, QUERY_PUBLISHED_OUTS, Tx.TX_UNCONFIRMED);
+        while (c.moveToNext()) {
+            Out out = applyCursorOut(c);
+            Tx tx = txDict.get(new Sha256Hash(out.getTxHash()));
+            tx.getOuts().add(out);
         }
+        c.close();
+
         return txItemList;
     }
 
+    /**
+     * Reads the tx row and parses its raw bytes, the outs get their status from the outs table.
+     * The tx may be shared with other callers through the cache and must not be modified.
+     */
     public Tx getTxDetailByTxHash(byte[] txHash) {
-        Tx txItem = null;
-        String txHashStr = Base58.encode(txHash);
+        Sha256Hash key = new Sha256Hash(txHash);
+        Tx txItem = txCache.get(key);
         SQLiteDatabase db = this.mDb.getReadableDatabase();
-        String sql = "select * from txs where tx_hash='" + txHashStr + "'";
-        Cursor c = db.rawQuery(sql, null);
+        if (txItem != null) {
+            applyOutStatuses(db, txItem);
+            return txItem;
+        }
+        long generation = txCache.generation();
+        Cursor c = BlobCursorFactory.rawQuery(db, QUERY_TX, txHash);
         try {
             if (c.moveToNext()) {
-                txItem = applyCursor(c);
-            }
-
-            if (txItem != null) {
-                addInsAndOuts(db, txItem);
-
+                txItem = applyCursorDetail(db, c);
+                if (hasRaw(c)) {
+                    txCache.put(key, txItem, generation);
+                }
             }
-        } catch (AddressFormatException e) {
-            e.printStackTrace();
         } finally {
             c.close();
         }
         return txItem;
     }
 
-    private void addInsAndOuts(SQLiteDatabase db, Tx txItem) throws AddressFormatException {
-        String txHashStr = Base58.encode(txItem.getTxHash());
+    private void addInsAndOuts(SQLiteDatabase db, Tx txItem) {
         txItem.setOuts(new ArrayList<Out>());
         txItem.setIns(new ArrayList<In>());
-        String sql = "select * from ins where tx_hash='" + txHashStr + "' order by in_sn";
-        Cursor c = db.rawQuery(sql, null);
+        Cursor c = BlobCursorFactory.rawQuery(db, QUERY_TX_INS, txItem.getTxHash());
         while (c.moveToNext()) {
             In inItem = applyCursorIn(c);
             inItem.setTx(txItem);
@@ -188,8 +454,7 @@ public class TxProvider {
         }
         c.close();
 
-        sql = "select * from outs where tx_hash='" + txHashStr + "' order by out_sn";
-        c = db.rawQuery(sql, null);
+        c = BlobCursorFactory.rawQuery(db, QUERY_TX_OUTS, txItem.getTxHash());
         while (c.moveToNext()) {
             Out outItem = applyCursorOut(c);
             outItem.setTx(txItem);
@@ -199,43 +464,31 @@ public class TxProvider {
     }
 
     public boolean isExist(byte[] txHash) {
-        boolean result = false;
-        SQLiteDatabase db = this.mDb.getReadableDatabase();
-        String sql = "select count(0) from txs where tx_hash='" + Base58.encode(txHash) + "'";
-        Cursor c = db.rawQuery(sql, null);
-        if (c.moveToNext()) {
-            result = c.getInt(0) > 0;
+        if (WriteBehindQueue.getInstance().isPending(txHash)) {
+            return true;
         }
-        c.close();
-        return result;
+        SQLiteDatabase db = this.mDb.getReadableDatabase();
+        return statements.simpleQueryForLong(db, QUERY_TX_EXISTS, txHash) > 0;
     }
 
     public void add(Tx txItem) {
         SQLiteDatabase db = this.mDb.getWritableDatabase();
         db.beginTransaction();
-        addTxToDb(db, txItem);
-        db.setTransactionSuccessful();
-        db.endTransaction();
+        try {
+            addTxToDb(db, txItem);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
     public void addTxs(List<Tx> txItems) {
         SQLiteDatabase db = this.mDb.getReadableDatabase();
         List<Tx> addTxItems = new ArrayList<Tx>();
-        String existSql = "select count(0) cnt from txs where tx_hash=";
-        Cursor c;
         for (Tx txItem : txItems) {
-            c = db.rawQuery(existSql + "'" + Base58.encode(txItem.getTxHash()) + "'", null);
-            int cnt = 0;
-            if (c.moveToNext()) {
-                int idColumn = c.getColumnIndex("cnt");
-                if (idColumn != -1) {
-                    cnt = c.getInt(idColumn);
-                }
-            }
-            if (cnt == 0) {
+            if (statements.simpleQueryForLong(db, QUERY_TX_EXISTS, txItem.getTxHash()) == 0) {
                 addTxItems.add(txItem);
             }
-            c.close();
         }
         if (addTxItems.size() > 0) {
             db = this.mDb.getWritableDatabase();
@@ -250,110 +503,252 @@ public class TxProvider {
         }
     }
 
+    public interface ImportProgressListener {
+        void onProgress(int importedTxCount, int totalTxCount);
+    }
+
+    /**
+     * Stores a history fetched in bulk, a batch per transaction. Each batch is staged in temp
+     * tables, txs already stored are dropped with one anti join, and the rest are copied over
+     * with their spent flags, unspent outs and address links resolved set-wise. Balances follow
+     * from the unspent_outs triggers. Txs spending an out another tx spends are applied one by
+     * one through addTxToDb, so they are held back or replace the conflicting txs as usual.
+     *
+     * @param listener told after each batch, may be null
+     */
+    public void importTxs(List<Tx> txItems, ImportProgressListener listener) {
+        SQLiteDatabase db = this.mDb.getWritableDatabase();
+        for (int from = 0; from < txItems.size(); from += IMPORT_BATCH_SIZE) {
+            List<Tx> batch = txItems.subList(from, Math.min(from + IMPORT_BATCH_SIZE, txItems
+                    .size()));
+            db.beginTransaction();
+            try {
+                importBatch(db, batch);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            if (listener != null) {
+                listener.onProgress(from + batch.size(), txItems.size());
+            }
+        }
+    }
+
+    private void importBatch(SQLiteDatabase db, List<Tx> txItems) {
+        db.execSQL(CREATE_IMPORT_TXS);
+        db.execSQL(CREATE_IMPORT_INS);
+        db.execSQL(CREATE_IMPORT_INS_PREV_INDEX);
+        db.execSQL(CREATE_IMPORT_OUTS);
+        clearImport(db);
+        for (Tx txItem : txItems) {
+            stageImport(db, txItem);
+        }
+        statements.execute(db, DELETE_IMPORT_EXISTING_TXS);
+        statements.execute(db, DELETE_IMPORT_UNSTAGED_INS);
+        statements.execute(db, DELETE_IMPORT_UNSTAGED_OUTS);
+
+        HashSet<Sha256Hash> conflictTxHashes = new HashSet<Sha256Hash>();
+        Cursor c = db.rawQuery(QUERY_IMPORT_CONFLICTS, null);
+        try {
+            while (c.moveToNext()) {
+                conflictTxHashes.add(new Sha256Hash(c.getBlob(0)));
+            }
+        } finally {
+            c.close();
+        }
+        for (Sha256Hash txHash : conflictTxHashes) {
+            statements.execute(db, DELETE_IMPORT_TX, txHash.getBytes());
+            statements.execute(db, DELETE_IMPORT_TX_INS, txHash.getBytes());
+            statements.execute(db, DELETE_IMPORT_TX_OUTS, txHash.getBytes());
+        }
+
+        int spent = Out.OutStatus.spent.getValue();
+        int unspent = Out.OutStatus.unspent.getValue();
+        statements.execute(db, COPY_IMPORT_TXS);
+        statements.execute(db, COPY_IMPORT_INS);
+        statements.execute(db, COPY_IMPORT_OUTS, spent);
+        statements.execute(db, UPDATE_IMPORT_SPENT_OUTS, spent, spent);
+        statements.execute(db, DELETE_IMPORT_SPENT_UNSPENT_OUTS);
+        statements.execute(db, INSERT_IMPORT_UNSPENT_OUTS, unspent);
+        statements.execute(db, INSERT_IMPORT_OUT_ADDRESSES_TXS);
+        statements.execute(db, INSERT_IMPORT_IN_ADDRESSES_TXS);
+        statements.execute(db, INSERT_IMPORT_SPENDER_ADDRESSES_TXS);
+        clearImport(db);
+        txCache.invalidateAll();
+
+        // in the order they came, a later spend of the same out is the one held back
+        for (Tx txItem : txItems) {
+            if (conflictTxHashes.remove(new Sha256Hash(txItem.getTxHash()))) {
+                addTxToDb(db, txItem);
+            }
+        }
+    }
+
+    private void stageImport(SQLiteDatabase db, Tx txItem) {
+        statements.executeInsert(db, INSERT_IMPORT_TX, txItem.getTxHash(), txItem.getTxVer(),
+                txItem.getTxLockTime(), txItem.getTxTime(), txItem.getBlockNo() == Tx
+                        .TX_UNCONFIRMED ? null : txItem.getBlockNo(), txItem.getSource(),
+                rawOf(txItem));
+        for (In inItem : txItem.getIns()) {
+            statements.executeInsert(db, INSERT_IMPORT_IN, txItem.getTxHash(), inItem.getInSn(),
+                    inItem.getPrevTxHash(), inItem.getPrevOutSn(), inItem.getInSignature(),
+                    inItem.getInSequence());
+        }
+        for (Out outItem : txItem.getOuts()) {
+            statements.executeInsert(db, INSERT_IMPORT_OUT, txItem.getTxHash(), outItem
+                    .getOutSn(), outItem.getOutScript(), outItem.getOutValue(), outItem
+                    .getOutStatus().getValue(), Utils.isEmpty(outItem.getOutAddress()) ? null
+                    : outItem.getOutAddress());
+        }
+    }
+
+    private void clearImport(SQLiteDatabase db) {
+        statements.execute(db, DELETE_IMPORT_TXS);
+        statements.execute(db, DELETE_IMPORT_INS);
+        statements.execute(db, DELETE_IMPORT_OUTS);
+    }
+
+    /**
+     * Applies the tx to unspent_outs, and through its triggers to the balance of every address it
+     * touches: spent prev outs are debited and the outs of the tx are credited. An unconfirmed tx
+     * spending an out another tx already spent is stored but held back, as the old full rescan
+     * ignored it; it is applied if it confirms. A confirmed tx removes the conflicting ones.
+     */
     private void addTxToDb(SQLiteDatabase db, Tx txItem) {
+        List<byte[]> conflictTxHashes = getConflictTxHashes(db, txItem);
+        boolean isHeldBack = false;
+        if (conflictTxHashes.size() > 0) {
+            if (txItem.getBlockNo() == Tx.TX_UNCONFIRMED) {
+                isHeldBack = true;
+            } else {
+                removeWithRelayTxs(db, conflictTxHashes);
+            }
+        }
         ContentValues cv = new ContentValues();
         applyContentValues(txItem, cv);
         db.insert(BitherjDatabaseHelper.Tables.TXS, null, cv);
+        txCache.invalidate(new Sha256Hash(txItem.getTxHash()));
         Cursor c;
-        String sql;
         List<Object[]> addressesTxsRels = new ArrayList<Object[]>();
-        try {
-            for (In inItem : txItem.getIns()) {
-
-                sql = "select out_address from outs where tx_hash='"
-                        + Base58.encode(inItem.getPrevTxHash()) + "' and out_sn=" + inItem.getPrevOutSn();
-                c = db.rawQuery(sql, null);
-                while (c.moveToNext()) {
-                    int idColumn = c.getColumnIndex("out_address");
-                    if (idColumn != -1) {
-                        addressesTxsRels.add(new Object[]{c.getString(idColumn), txItem.getTxHash()});
-                    }
+        for (In inItem : txItem.getIns()) {
+            c = BlobCursorFactory.rawQuery(db, QUERY_PREV_OUT_ADDRESS, inItem.getPrevTxHash(),
+                    inItem.getPrevOutSn());
+            while (c.moveToNext()) {
+                int idColumn = c.getColumnIndex("out_address");
+                if (idColumn != -1) {
+                    addressesTxsRels.add(new Object[]{c.getString(idColumn), txItem.getTxHash()});
                 }
-                c.close();
-                cv = new ContentValues();
-                applyContentValues(inItem, cv);
-                db.insert(BitherjDatabaseHelper.Tables.INS, null, cv);
-
-                sql = "update outs set out_status=" + Out.OutStatus.spent.getValue() +
-                        " where tx_hash='" + Base58.encode(inItem.getPrevTxHash()) + "' and out_sn=" + inItem.getPrevOutSn();
-                db.execSQL(sql);
             }
-            for (Out outItem : txItem.getOuts()) {
+            c.close();
+            cv = new ContentValues();
+            applyContentValues(inItem, cv);
+            db.insert(BitherjDatabaseHelper.Tables.INS, null, cv);
+
+            if (!isHeldBack) {
+                statements.execute(db, UPDATE_OUT_STATUS, Out.OutStatus.spent.getValue(),
+                        inItem.getPrevTxHash(), inItem.getPrevOutSn());
+                statements.execute(db, DELETE_UNSPENT_OUT, inItem.getPrevTxHash(),
+                        inItem.getPrevOutSn());
+            }
+        }
+        for (Out outItem : txItem.getOuts()) {
 
-                cv = new ContentValues();
-                applyContentValues(outItem, cv);
-                db.insert(BitherjDatabaseHelper.Tables.OUTS, null, cv);
-                if (!Utils.isEmpty(outItem.getOutAddress())) {
-                    addressesTxsRels.add(new Object[]{outItem.getOutAddress(), txItem.getTxHash()});
-                }
-                sql = "select tx_hash from ins where prev_tx_hash='" + Base58.encode(txItem.getTxHash())
-                        + "' and prev_out_sn=" + outItem.getOutSn();
-                c = db.rawQuery(sql, null);
-                boolean isSpentByExistTx = false;
-                if (c.moveToNext()) {
-                    int idColumn = c.getColumnIndex("tx_hash");
-                    if (idColumn != -1) {
-                        addressesTxsRels.add(new Object[]{outItem.getOutAddress(), Base58.decode(c.getString(idColumn))});
-                    }
-                    isSpentByExistTx = true;
-                }
-                c.close();
-                if (isSpentByExistTx) {
-                    sql = "update outs set out_status=" + Out.OutStatus.spent.getValue() +
-                            " where tx_hash='" + Base58.encode(txItem.getTxHash()) + "' and out_sn=" + outItem.getOutSn();
-                    db.execSQL(sql);
+            cv = new ContentValues();
+            applyContentValues(outItem, cv);
+            db.insert(BitherjDatabaseHelper.Tables.OUTS, null, cv);
+            if (!Utils.isEmpty(outItem.getOutAddress())) {
+                addressesTxsRels.add(new Object[]{outItem.getOutAddress(), txItem.getTxHash()});
+            }
+            c = BlobCursorFactory.rawQuery(db, QUERY_PREV_OUT_SPENDERS, txItem.getTxHash(),
+                    outItem.getOutSn());
+            boolean isSpentByExistTx = false;
+            if (c.moveToNext()) {
+                int idColumn = c.getColumnIndex("tx_hash");
+                if (idColumn != -1) {
+                    addressesTxsRels.add(new Object[]{outItem.getOutAddress(), c.getBlob(idColumn)});
                 }
-
+                isSpentByExistTx = true;
             }
-            for (Object[] array : addressesTxsRels) {
-                sql = "insert or ignore into addresses_txs(address, tx_hash) values('"
-                        + array[0] + "','" + Base58.encode((byte[]) array[1]) + "')";
-                db.execSQL(sql);
+            c.close();
+            if (isSpentByExistTx) {
+                statements.execute(db, UPDATE_OUT_STATUS, Out.OutStatus.spent.getValue(),
+                        txItem.getTxHash(), outItem.getOutSn());
             }
 
-        } catch (AddressFormatException e) {
-            e.printStackTrace();
         }
+        if (!isHeldBack) {
+            statements.execute(db, INSERT_UNSPENT_OUTS_OF_TX, txItem.getTxHash(), Out.OutStatus
+                    .unspent.getValue());
+        }
+        for (Object[] array : addressesTxsRels) {
+            statements.executeInsert(db, INSERT_ADDRESS_TX, array);
+        }
+
+    }
 
+    private List<byte[]> getConflictTxHashes(SQLiteDatabase db, Tx txItem) {
+        List<byte[]> conflictTxHashes = new ArrayList<byte[]>();
+        for (In inItem : txItem.getIns()) {
+            Cursor c = BlobCursorFactory.rawQuery(db, QUERY_PREV_OUT_SPENDERS, inItem
+                    .getPrevTxHash(), inItem.getPrevOutSn());
+            while (c.moveToNext()) {
+                byte[] txHash = c.getBlob(0);
+                if (!Arrays.equals(txHash, txItem.getTxHash())) {
+                    conflictTxHashes.add(txHash);
+                }
+            }
+            c.close();
+        }
+        return conflictTxHashes;
     }
 
     public void remove(byte[] txHash) {
-        String txHashStr = Base58.encode(txHash);
-        List<String> txHashes = new ArrayList<String>();
-        List<String> needRemoveTxHashes = new ArrayList<String>();
-        txHashes.add(txHashStr);
+        List<byte[]> txHashes = new ArrayList<byte[]>();
+        txHashes.add(txHash);
+        SQLiteDatabase db = this.mDb.getWritableDatabase();
+        db.beginTransaction();
+        removeWithRelayTxs(db, txHashes);
+        db.setTransactionSuccessful();
+        db.endTransaction();
+    }
+
+    /**
+     * Removes the txs and every tx spending their outs.
+     *
+     * @return the addresses the removed txs touched
+     */
+    private List<String> removeWithRelayTxs(SQLiteDatabase db, List<byte[]> txHashes) {
+        List<byte[]> needRemoveTxHashes = new ArrayList<byte[]>();
+        txHashes = new ArrayList<byte[]>(txHashes);
         while (txHashes.size() > 0) {
-            String thisHash = txHashes.get(0);
+            byte[] thisHash = txHashes.get(0);
             txHashes.remove(0);
             needRemoveTxHashes.add(thisHash);
-            List<String> temp = getRelayTx(thisHash);
+            List<byte[]> temp = getRelayTx(thisHash);
             txHashes.addAll(temp);
         }
-        SQLiteDatabase db = this.mDb.getWritableDatabase();
-        db.beginTransaction();
-        for (String str : needRemoveTxHashes) {
-            removeSingleTx(db, str);
+        List<String> addresses = new ArrayList<String>();
+        for (byte[] hash : needRemoveTxHashes) {
+            Cursor c = BlobCursorFactory.rawQuery(db, QUERY_TX_ADDRESSES, hash);
+            while (c.moveToNext()) {
+                addresses.add(c.getString(0));
+            }
+            c.close();
+            removeSingleTx(db, hash);
+            txCache.invalidate(new Sha256Hash(hash));
         }
-        db.setTransactionSuccessful();
-        db.endTransaction();
+        return addresses;
     }
 
-    private void removeSingleTx(SQLiteDatabase db, String tx) {
-        String deleteTx = "delete from txs where tx_hash='" + tx + "'";
-        String deleteIn = "delete from ins where tx_hash='" + tx + "'";
-        String deleteOut = "delete from outs where tx_hash='" + tx + "'";
-        String deleteAddressesTx = "delete from addresses_txs where tx_hash='" + tx + "'";
-        String inSql = "select prev_tx_hash,prev_out_sn from ins where tx_hash='" + tx + "'";
-        String existOtherIn = "select count(0) cnt from ins where prev_tx_hash=? and prev_out_sn=?";
-        String updatePrevOut = "update outs set out_status=%d where tx_hash=%s and out_sn=%d";
-        Cursor c = db.rawQuery(inSql, new String[]{tx});
+    private void removeSingleTx(SQLiteDatabase db, byte[] tx) {
+        Cursor c = BlobCursorFactory.rawQuery(db, QUERY_TX_PREV_OUTS, tx);
         List<Object[]> needUpdateOuts = new ArrayList<Object[]>();
         while (c.moveToNext()) {
             int idColumn = c.getColumnIndex(BitherjDatabaseHelper.InsColumns.PREV_TX_HASH);
-            String prevTxHash = null;
+            byte[] prevTxHash = null;
             int prevOutSn = 0;
             if (idColumn != -1) {
-                prevTxHash = c.getString(idColumn);
+                prevTxHash = c.getBlob(idColumn);
             }
             idColumn = c.getColumnIndex(BitherjDatabaseHelper.InsColumns.PREV_OUT_SN);
             if (idColumn != -1) {
@@ -363,244 +758,198 @@ public class TxProvider {
 
         }
         c.close();
-        db.execSQL(deleteAddressesTx);
-        db.execSQL(deleteOut);
-        db.execSQL(deleteIn);
-        db.execSQL(deleteTx);
+        statements.execute(db, DELETE_TX_ADDRESSES_TXS, tx);
+        statements.execute(db, DELETE_UNSPENT_OUTS_OF_TX, tx);
+        statements.execute(db, DELETE_TX_OUTS, tx);
+        statements.execute(db, DELETE_TX_INS, tx);
+        statements.execute(db, DELETE_TX, tx);
         for (Object[] array : needUpdateOuts) {
-            c = db.rawQuery(existOtherIn, new String[]{array[0].toString(), array[1].toString()});
-            while (c.moveToNext()) {
-                if (c.getInt(0) == 0) {
-                    String updateSql = Utils.format(updatePrevOut,
-                            Out.OutStatus.unspent.getValue(), array[0].toString(), Integer.valueOf(array[1].toString()));
-                    db.execSQL(updateSql);
-                }
-
+            if (statements.simpleQueryForLong(db, QUERY_PREV_OUT_SPENT_BY_OTHER, array[0],
+                    array[1]) == 0) {
+                statements.execute(db, UPDATE_OUT_STATUS, Out.OutStatus.unspent
+                        .getValue(), array[0], array[1]);
+                statements.execute(db, INSERT_UNSPENT_OUT, array[0], array[1], Out.OutStatus
+                        .unspent.getValue());
             }
-            c.close();
-
         }
     }
 
-    private List<String> getRelayTx(String txHash) {
-        List<String> relayTxHashes = new ArrayList<String>();
+    private List<byte[]> getRelayTx(byte[] txHash) {
+        List<byte[]> relayTxHashes = new ArrayList<byte[]>();
         SQLiteDatabase db = this.mDb.getReadableDatabase();
-        String relayTx = "select distinct tx_hash from ins where prev_tx_hash='" + txHash + "'";
-        Cursor c = db.rawQuery(relayTx, null);
+        Cursor c = BlobCursorFactory.rawQuery(db, QUERY_TX_SPENDERS, txHash);
         while (c.moveToNext()) {
-            relayTxHashes.add(c.getString(0));
+            relayTxHashes.add(c.getBlob(0));
         }
         c.close();
         return relayTxHashes;
     }
 
     public boolean isAddress(String address, Tx txItem) {
-        boolean result = false;
-        String sql = "select count(0) from ins a, txs b where a.tx_hash=b.tx_hash and" +
-                " b.block_no is not null and a.prev_tx_hash=? and a.prev_out_sn=?";
         SQLiteDatabase db = this.mDb.getReadableDatabase();
-        Cursor c;
         for (In inItem : txItem.getIns()) {
-            c = db.rawQuery(sql, new String[]{Base58.encode(inItem.getPrevTxHash()), Integer.toString(inItem.getPrevOutSn())});
-            if (c.moveToNext()) {
-                if (c.getInt(0) > 0) {
-                    c.close();
-                    return false;
-                }
+            if (statements.simpleQueryForLong(db, QUERY_PREV_OUT_CONFIRMED_SPENDS, inItem
+                    .getPrevTxHash(), inItem.getPrevOutSn()) > 0) {
+                return false;
             }
-            c.close();
-
         }
-        sql = "select count(0) from addresses_txs where tx_hash=? and address=?";
-        c = db.rawQuery(sql, new String[]{
-                Base58.encode(txItem.getTxHash()), address
-        });
-        int count = 0;
-        if (c.moveToNext()) {
-            count = c.getInt(0);
-        }
-        c.close();
-        if (count > 0) {
+        if (statements.simpleQueryForLong(db, QUERY_ADDRESS_TX_EXISTS, txItem.getTxHash(),
+                address) > 0) {
             return true;
         }
-        sql = "select count(0) from outs where tx_hash=? and out_sn=? and out_address=?";
         for (In inItem : txItem.getIns()) {
-            c = db.rawQuery(sql, new String[]{Base58.encode(inItem.getPrevTxHash())
-                    , Integer.toString(inItem.getPrevOutSn()), address});
-            count = 0;
-            if (c.moveToNext()) {
-                count = c.getInt(0);
+            // the prev tx may still wait in the write behind queue
+            Tx prevTx = WriteBehindQueue.getInstance().getPendingTx(inItem.getPrevTxHash());
+            if (prevTx != null && inItem.getPrevOutSn() < prevTx.getOuts().size()
+                    && Utils.compareString(address, prevTx.getOuts().get(inItem.getPrevOutSn())
+                    .getOutAddress())) {
+                return true;
             }
-            c.close();
-            if (count > 0) {
+            if (statements.simpleQueryForLong(db, QUERY_PREV_OUT_OF_ADDRESS, inItem
+                    .getPrevTxHash(), inItem.getPrevOutSn(), address) > 0) {
                 return true;
             }
         }
-        return result;
+        return false;
     }
 
-    public void confirmTx(int blockNo, List<byte[]> txHashes) {
+    /**
+     * Confirms every tx of the block in a few set based statements: the hashes go into a temp
+     * table, conflicting spends of the txs that become confirmed are found with one join, and
+     * block_no is updated with one statement. Matched blocks of a busy address can carry hundreds
+     * of hashes, most of them false positives of the bloom filter.
+     *
+     * @return the addresses whose txs or balance the block changed
+     */
+    public List<String> confirmTx(int blockNo, List<byte[]> txHashes) {
+        HashSet<String> addresses = new HashSet<String>();
         if (blockNo == Tx.TX_UNCONFIRMED || txHashes == null) {
-            return;
-        }
-        String sql = "update txs set block_no=%d where tx_hash='%s'";
-        String existSql = "select count(0) from txs where block_no=? and tx_hash=?";
-        String doubleSpendSql = "select a.tx_hash from ins a, ins b where a.prev_tx_hash=b.prev_tx_hash " +
-                "and a.prev_out_sn=b.prev_out_sn and a.tx_hash<>b.tx_hash and b.tx_hash=?";
-        String blockTimeSql = "select block_time from blocks where block_no=?";
-        String updateTxTimeThatMoreThanBlockTime = "update txs set tx_time=%d where block_no=%d and tx_time>%d";
+            return new ArrayList<String>(addresses);
+        }
         SQLiteDatabase db = this.mDb.getWritableDatabase();
         db.beginTransaction();
-        Cursor c;
-        for (byte[] txHash : txHashes) {
-            c = db.rawQuery(existSql, new String[]{Integer.toString(blockNo), Base58.encode(txHash)});
-            if (c.moveToNext()) {
-                int cnt = c.getInt(0);
-                c.close();
-                if (cnt > 0) {
-                    continue;
-                }
-            } else {
-                c.close();
+        try {
+            db.execSQL(CREATE_CONFIRM_TX_HASHES);
+            db.execSQL(DELETE_CONFIRM_TX_HASHES);
+            for (byte[] txHash : txHashes) {
+                statements.executeInsert(db, INSERT_CONFIRM_TX_HASH, txHash);
             }
-            String updateSql = Utils.format(sql, blockNo, Base58.encode(txHash));
-            db.execSQL(updateSql);
-            c = db.rawQuery(doubleSpendSql, new String[]{Base58.encode(txHash)});
-            List<String> txHashes1 = new ArrayList<String>();
+
+            List<byte[]> txHashes1 = new ArrayList<byte[]>();
+            Cursor c = BlobCursorFactory.rawQuery(db, QUERY_CONFIRM_DOUBLE_SPENDS, blockNo);
             while (c.moveToNext()) {
-                int idColumn = c.getColumnIndex("tx_hash");
-                if (idColumn != -1) {
-                    txHashes1.add(c.getString(idColumn));
-                }
+                txHashes1.add(c.getBlob(0));
             }
             c.close();
-            List<String> needRemoveTxHashes = new ArrayList<String>();
-            while (txHashes1.size() > 0) {
-                String thisHash = txHashes1.get(0);
-                txHashes1.remove(0);
-                needRemoveTxHashes.add(thisHash);
-                List<String> temp = getRelayTx(thisHash);
-                txHashes1.addAll(temp);
-            }
-            for (String each : needRemoveTxHashes) {
-                removeSingleTx(db, each);
-            }
+            addresses.addAll(removeWithRelayTxs(db, txHashes1));
 
-        }
-        c = db.rawQuery(blockTimeSql, new String[]{Integer.toString(blockNo)});
-        if (c.moveToNext()) {
-            int idColumn = c.getColumnIndex("block_time");
-            if (idColumn != -1) {
-                int blockTime = c.getInt(idColumn);
-                c.close();
-                String sqlTemp = Utils.format(updateTxTimeThatMoreThanBlockTime, blockTime, blockNo, blockTime);
-                db.execSQL(sqlTemp);
+            c = BlobCursorFactory.rawQuery(db, QUERY_CONFIRM_ADDRESSES);
+            while (c.moveToNext()) {
+                addresses.add(c.getString(0));
             }
-        } else {
             c.close();
+
+            statements.execute(db, UPDATE_CONFIRM_SPENT_OUTS, Out.OutStatus.spent.getValue(),
+                    Out.OutStatus.spent.getValue());
+            statements.execute(db, DELETE_CONFIRM_SPENT_UNSPENT_OUTS);
+            statements.execute(db, INSERT_CONFIRM_UNSPENT_OUTS, blockNo, Out.OutStatus.unspent
+                    .getValue());
+            statements.execute(db, UPDATE_CONFIRM_TX_BLOCK_NO, blockNo, blockNo);
+            statements.execute(db, UPDATE_CONFIRM_UNSPENT_OUTS_BLOCK_NO, blockNo);
+
+            Block block = BlockProvider.getInstance().getMainChainBlock(blockNo);
+            if (block != null) {
+                statements.execute(db, UPDATE_TX_TIME_AFTER_BLOCK_TIME, block.getBlockTime(),
+                        blockNo, block.getBlockTime());
+            }
+            db.execSQL(DELETE_CONFIRM_TX_HASHES);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
-        db.setTransactionSuccessful();
-        db.endTransaction();
+        for (byte[] txHash : txHashes) {
+            txCache.invalidate(new Sha256Hash(txHash));
+        }
+        return new ArrayList<String>(addresses);
     }
 
     public void unConfirmTxByBlockNo(int blockNo) {
         SQLiteDatabase db = this.mDb.getWritableDatabase();
-        String sql = "update txs set block_no=null where block_no>=" + blockNo;
-        db.execSQL(sql);
+        db.beginTransaction();
+        try {
+            statements.execute(db, UPDATE_UNCONFIRM_TXS, blockNo);
+            statements.execute(db, UPDATE_UNCONFIRM_UNSPENT_OUTS, blockNo);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        txCache.invalidateAll();
     }
 
     public List<Tx> getUnspendTxWithAddress(String address) {
-        String unspendOutSql = "select a.*,b.tx_ver,b.tx_locktime,b.tx_time,b.block_no,b.source,ifnull(b.block_no,0)*a.out_value coin_depth " +
-                "from outs a,txs b where a.tx_hash=b.tx_hash" +
-                " and a.out_address=? and a.out_status=?";
         List<Tx> txItemList = new ArrayList<Tx>();
         SQLiteDatabase db = this.mDb.getReadableDatabase();
-        Cursor c = db.rawQuery(unspendOutSql, new String[]{address, Integer.toString(Out.OutStatus.unspent.getValue())});
-        try {
-            while (c.moveToNext()) {
-                int idColumn = c.getColumnIndex("coin_depth");
-
-                Tx txItem = applyCursor(c);
-                Out outItem = applyCursorOut(c);
-                if (idColumn != -1) {
-                    outItem.setCoinDepth(c.getLong(idColumn));
-                }
-                outItem.setTx(txItem);
-                txItem.setOuts(new ArrayList<Out>());
-                txItem.getOuts().add(outItem);
-                txItemList.add(txItem);
+        Cursor c = BlobCursorFactory.rawQuery(db, QUERY_UNSPENT_TXS, address);
+        while (c.moveToNext()) {
+            int idColumn = c.getColumnIndex("coin_depth");
 
+            Tx txItem = applyCursor(c);
+            Out outItem = applyCursorOut(c);
+            if (idColumn != -1) {
+                outItem.setCoinDepth(c.getLong(idColumn));
             }
-            c.close();
-        } catch (AddressFormatException e) {
-            e.printStackTrace();
+            outItem.setTx(txItem);
+            txItem.setOuts(new ArrayList<Out>());
+            txItem.getOuts().add(outItem);
+            txItemList.add(txItem);
+
         }
+        c.close();
         return txItemList;
     }
 
     public List<Out> getUnspendOutWithAddress(String address) {
         List<Out> outItems = new ArrayList<Out>();
-        String unspendOutSql = "select a.* from outs a,txs b where a.tx_hash=b.tx_hash " +
-                "and b.block_no is null and a.out_address=? and a.out_status=?";
         SQLiteDatabase db = this.mDb.getReadableDatabase();
-        Cursor c = db.rawQuery(unspendOutSql,
-                new String[]{address, Integer.toString(Out.OutStatus.unspent.getValue())});
-        try {
-            while (c.moveToNext()) {
-                outItems.add(applyCursorOut(c));
-            }
-            c.close();
-        } catch (AddressFormatException e) {
-            e.printStackTrace();
+        Cursor c = BlobCursorFactory.rawQuery(db, QUERY_UNCONFIRMED_UNSPENT_OUTS, address);
+        while (c.moveToNext()) {
+            outItems.add(applyCursorOut(c));
         }
+        c.close();
         return outItems;
     }
 
     public List<Out> getUnSpendOutCanSpendWithAddress(String address) {
         List<Out> outItems = new ArrayList<Out>();
-        String confirmedOutSql = "select a.*,b.block_no*a.out_value coin_depth from outs a,txs b" +
-                " where a.tx_hash=b.tx_hash and b.block_no is not null and a.out_address=? and a.out_status=?";
-        String selfOutSql = "select a.* from outs a,txs b where a.tx_hash=b.tx_hash and b.block_no" +
-                " is null and a.out_address=? and a.out_status=? and b.source>=?";
         SQLiteDatabase db = this.mDb.getReadableDatabase();
-        Cursor c = db.rawQuery(confirmedOutSql,
-                new String[]{address, Integer.toString(Out.OutStatus.unspent.getValue())});
-        try {
-            while (c.moveToNext()) {
-                Out outItem = applyCursorOut(c);
-                int idColumn = c.getColumnIndex("coin_depth");
-                if (idColumn != -1) {
-                    outItem.setCoinDepth(c.getLong(idColumn));
-                }
-                outItems.add(outItem);
-            }
-            c.close();
-            c = db.rawQuery(selfOutSql, new String[]{address,
-                    Integer.toString(Out.OutStatus.unspent.getValue()), "1"});
-            while (c.moveToNext()) {
-                outItems.add(applyCursorOut(c));
+        Cursor c = BlobCursorFactory.rawQuery(db, QUERY_CONFIRMED_UNSPENT_OUTS, address);
+        while (c.moveToNext()) {
+            Out outItem = applyCursorOut(c);
+            int idColumn = c.getColumnIndex("coin_depth");
+            if (idColumn != -1) {
+                outItem.setCoinDepth(c.getLong(idColumn));
             }
-            c.close();
-        } catch (AddressFormatException e) {
-            e.printStackTrace();
+            outItems.add(outItem);
         }
+        c.close();
+        c = BlobCursorFactory.rawQuery(db, QUERY_UNCONFIRMED_UNSPENT_OUTS_FROM_SELF, address, 1);
+        while (c.moveToNext()) {
+            outItems.add(applyCursorOut(c));
+        }
+        c.close();
         return outItems;
     }
 
     public List<Out> getUnSpendOutButNotConfirmWithAddress(String address) {
         List<Out> outItems = new ArrayList<Out>();
-        String selfOutSql = "select a.* from outs a,txs b where a.tx_hash=b.tx_hash and b.block_no" +
-                " is null and a.out_address=? and a.out_status=? and b.source=?";
         SQLiteDatabase db = this.mDb.getReadableDatabase();
-        Cursor c = db.rawQuery(selfOutSql, new String[]{address,
-                Integer.toString(Out.OutStatus.unspent.getValue()), "0"});
+        Cursor c = BlobCursorFactory.rawQuery(db, QUERY_UNCONFIRMED_UNSPENT_OUTS_BY_SOURCE, address,
+                0);
         try {
             while (c.moveToNext()) {
                 outItems.add(applyCursorOut(c));
 
             }
-        } catch (AddressFormatException e) {
-            e.printStackTrace();
         } finally {
             c.close();
         }
@@ -608,23 +957,23 @@ public class TxProvider {
         return outItems;
     }
 
-    public int txCount(String address) {
-        int result = 0;
+    /**
+     * @return the running balance of the address, kept up to date by every tx write
+     */
+    public long getBalance(String address) {
         SQLiteDatabase db = this.mDb.getReadableDatabase();
-        String sql = "select count(*) from addresses_txs  where address='" + address + "'";
-        Cursor c = db.rawQuery(sql, null);
-        if (c.moveToNext()) {
-            result = c.getInt(0);
-        }
-        c.close();
+        return statements.simpleQueryForLong(db, QUERY_ADDRESS_BALANCE, address);
+    }
 
-        return result;
+    public int txCount(String address) {
+        SQLiteDatabase db = this.mDb.getReadableDatabase();
+        return (int) statements.simpleQueryForLong(db, QUERY_ADDRESS_TX_COUNT, address);
     }
 
     public void txSentBySelfHasSaw(byte[] txHash) {
         SQLiteDatabase db = this.mDb.getWritableDatabase();
-        String sql = "update txs set source=source+1 where tx_hash='" + Base58.encode(txHash) + "' and source>=1";
-        db.execSQL(sql);
+        statements.execute(db, UPDATE_TX_SOURCE_SAW, txHash);
+        txCache.invalidate(new Sha256Hash(txHash));
     }
 
     public List<Out> getOuts() {
@@ -636,8 +985,6 @@ public class TxProvider {
             while (c.moveToNext()) {
                 outItemList.add(applyCursorOut(c));
             }
-        } catch (AddressFormatException e) {
-            e.printStackTrace();
         } finally {
             c.close();
         }
@@ -648,23 +995,12 @@ public class TxProvider {
     public List<Tx> getRecentlyTxsByAddress(String address, int greateThanBlockNo, int limit) {
         List<Tx> txItemList = new ArrayList<Tx>();
         SQLiteDatabase db = this.mDb.getReadableDatabase();
-        String sql = "select b.* from addresses_txs a, txs b where a.tx_hash=b.tx_hash and a.address='%s' " +
-                "and ((b.block_no is null) or (b.block_no is not null and b.block_no>%d)) " +
-                "order by ifnull(b.block_no,4294967295) desc, b.tx_time desc " +
-                "limit %d ";
-        sql = Utils.format(sql, address, greateThanBlockNo, limit);
-        Cursor c = db.rawQuery(sql, null);
+        Cursor c = BlobCursorFactory.rawQuery(db, QUERY_RECENT_ADDRESS_TXS, address,
+                greateThanBlockNo, limit);
         try {
             while (c.moveToNext()) {
-                Tx txItem = applyCursor(c);
-                txItemList.add(txItem);
-            }
-
-            for (Tx item : txItemList) {
-                addInsAndOuts(db, item);
+                txItemList.add(applyCursorDetail(db, c));
             }
-        } catch (AddressFormatException e) {
-            e.printStackTrace();
         } finally {
             c.close();
         }
@@ -674,10 +1010,7 @@ public class TxProvider {
     public List<Long> txInValues(byte[] txHash) {
         List<Long> inValues = new ArrayList<Long>();
         SQLiteDatabase db = this.mDb.getReadableDatabase();
-        String sql = "select b.out_value " +
-                "from ins a left outer join outs b on a.prev_tx_hash=b.tx_hash and a.prev_out_sn=b.out_sn " +
-                "where a.tx_hash='" + Base58.encode(txHash) + "'";
-        Cursor c = db.rawQuery(sql, null);
+        Cursor c = BlobCursorFactory.rawQuery(db, QUERY_TX_IN_VALUES, txHash);
         while (c.moveToNext()) {
             int idColumn = c.getColumnIndex("out_value");
             if (idColumn != -1) {
@@ -690,34 +1023,80 @@ public class TxProvider {
         return inValues;
     }
 
+    /**
+     * The stored txs whose outs the ins of txItem spend, keyed by hash, read with one
+     * tx_hash in (...) query.
+     */
     public HashMap<Sha256Hash, Tx> getTxDependencies(Tx txItem) {
         HashMap<Sha256Hash, Tx> result = new HashMap<Sha256Hash, Tx>();
+        HashSet<Sha256Hash> prevTxHashes = new HashSet<Sha256Hash>();
         SQLiteDatabase db = this.mDb.getReadableDatabase();
-        try {
-
-
-            for (In inItem : txItem.getIns()) {
-                Tx tx;
-                String txHashStr = Base58.encode(inItem.getTxHash());
-                String sql = "select * from txs where tx_hash='" + txHashStr + "'";
-                Cursor c = db.rawQuery(sql, null);
-                if (c.moveToNext()) {
-                    tx = applyCursor(c);
-                    c.close();
-                } else {
-                    c.close();
-                    continue;
+        for (In inItem : txItem.getIns()) {
+            Sha256Hash prevTxHash = new Sha256Hash(inItem.getPrevTxHash());
+            Tx prevTx = txCache.get(prevTxHash);
+            if (prevTx != null) {
+                applyOutStatuses(db, prevTx);
+                result.put(prevTxHash, prevTx);
+            } else {
+                prevTxHashes.add(prevTxHash);
+            }
+        }
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(prevTxHashes);
+        long generation = txCache.generation();
+        for (int from = 0; from < hashes.size(); from += MAX_TX_HASHES_PER_QUERY) {
+            List<Sha256Hash> slice = hashes.subList(from, Math.min(hashes.size(), from +
+                    MAX_TX_HASHES_PER_QUERY));
+            StringBuilder placeholders = new StringBuilder();
+            Object[] args = new Object[slice.size()];
+            for (int i = 0; i < slice.size(); i++) {
+                placeholders.append(i == 0 ? "?" : ",?");
+                args[i] = slice.get(i).getBytes();
+            }
+            Cursor c = BlobCursorFactory.rawQuery(db, String.format(QUERY_TXS_BY_HASHES,
+                    placeholders), args);
+            try {
+                while (c.moveToNext()) {
+                    Tx tx = applyCursorDetail(db, c);
+                    Sha256Hash key = new Sha256Hash(tx.getTxHash());
+                    result.put(key, tx);
+                    if (hasRaw(c)) {
+                        txCache.put(key, tx, generation);
+                    }
                 }
-                addInsAndOuts(db, tx);
-                result.put(new Sha256Hash(tx.getTxHash()), tx);
-
+            } finally {
+                c.close();
             }
-        } catch (AddressFormatException e) {
-            e.printStackTrace();
         }
         return result;
     }
 
+    /**
+     * Fills raw for the rows stored before the column existed, from their ins and outs. A row
+     * whose rebuilt bytes do not hash to its tx_hash keeps reading from those tables.
+     */
+    void fillRawTxs(SQLiteDatabase db) {
+        List<Tx> txItems = new ArrayList<Tx>();
+        Cursor c = db.rawQuery("select * from txs where raw is null", null);
+        try {
+            while (c.moveToNext()) {
+                txItems.add(applyCursor(c));
+            }
+        } finally {
+            c.close();
+        }
+        int filled = 0;
+        for (Tx txItem : txItems) {
+            addInsAndOuts(db, txItem);
+            byte[] raw = rawOf(txItem);
+            if (raw != null) {
+                statements.execute(db, UPDATE_TX_RAW, raw, txItem.getTxHash());
+                filled++;
+            }
+        }
+        LogUtil.d(TxProvider.class.getSimpleName(), "filled raw of " + filled + "/" + txItems
+                .size() + " txs");
+    }
+
     public void clearAllTx() {
         SQLiteDatabase db = this.mDb.getWritableDatabase();
         db.beginTransaction();
@@ -725,36 +1104,57 @@ public class TxProvider {
         db.delete(BitherjDatabaseHelper.Tables.OUTS, "", new String[0]);
         db.delete(BitherjDatabaseHelper.Tables.INS, "", new String[0]);
         db.delete(BitherjDatabaseHelper.Tables.ADDRESSES_TXS, "", new String[0]);
+        db.delete(BitherjDatabaseHelper.Tables.UNSPENT_OUTS, "", new String[0]);
+        db.delete(BitherjDatabaseHelper.Tables.ADDRESS_BALANCES, "", new String[0]);
         db.setTransactionSuccessful();
         db.endTransaction();
+        txCache.invalidateAll();
     }
 
     private void applyContentValues(Tx txItem, ContentValues cv) {
         if (txItem.getBlockNo() != Tx.TX_UNCONFIRMED) {
             cv.put(BitherjDatabaseHelper.TxsColumns.BLOCK_NO, txItem.getBlockNo());
         }
-        cv.put(BitherjDatabaseHelper.TxsColumns.TX_HASH, Base58.encode(txItem.getTxHash()));
+        cv.put(BitherjDatabaseHelper.TxsColumns.TX_HASH, txItem.getTxHash());
         cv.put(BitherjDatabaseHelper.TxsColumns.SOURCE, txItem.getSource());
         cv.put(BitherjDatabaseHelper.TxsColumns.TX_TIME, txItem.getTxTime());
         cv.put(BitherjDatabaseHelper.TxsColumns.TX_VER, txItem.getTxVer());
         cv.put(BitherjDatabaseHelper.TxsColumns.TX_LOCKTIME, txItem.getTxLockTime());
+        byte[] raw = rawOf(txItem);
+        if (raw != null) {
+            cv.put(BitherjDatabaseHelper.TxsColumns.RAW, raw);
+        }
+    }
+
+    /**
+     * @return the serialized tx, null when it does not hash to the tx hash it is stored under
+     */
+    private byte[] rawOf(Tx txItem) {
+        byte[] raw;
+        try {
+            raw = txItem.bitcoinSerialize();
+        } catch (RuntimeException e) {
+            // a tx missing some of its fields, it is read back from ins and outs
+            return null;
+        }
+        return Arrays.equals(Utils.doubleDigest(raw), txItem.getTxHash()) ? raw : null;
     }
 
     private void applyContentValues(In inItem, ContentValues cv) {
-        cv.put(BitherjDatabaseHelper.InsColumns.TX_HASH, Base58.encode(inItem.getTxHash()));
+        cv.put(BitherjDatabaseHelper.InsColumns.TX_HASH, inItem.getTxHash());
         cv.put(BitherjDatabaseHelper.InsColumns.IN_SN, inItem.getInSn());
-        cv.put(BitherjDatabaseHelper.InsColumns.PREV_TX_HASH, Base58.encode(inItem.getPrevTxHash()));
+        cv.put(BitherjDatabaseHelper.InsColumns.PREV_TX_HASH, inItem.getPrevTxHash());
         cv.put(BitherjDatabaseHelper.InsColumns.PREV_OUT_SN, inItem.getPrevOutSn());
         if (inItem.getInSignature() != null) {
-            cv.put(BitherjDatabaseHelper.InsColumns.IN_SIGNATURE, Base58.encode(inItem.getInSignature()));
+            cv.put(BitherjDatabaseHelper.InsColumns.IN_SIGNATURE, inItem.getInSignature());
         }
         cv.put(BitherjDatabaseHelper.InsColumns.IN_SEQUENCE, inItem.getInSequence());
     }
 
     private void applyContentValues(Out outItem, ContentValues cv) {
-        cv.put(BitherjDatabaseHelper.OutsColumns.TX_HASH, Base58.encode(outItem.getTxHash()));
+        cv.put(BitherjDatabaseHelper.OutsColumns.TX_HASH, outItem.getTxHash());
         cv.put(BitherjDatabaseHelper.OutsColumns.OUT_SN, outItem.getOutSn());
-        cv.put(BitherjDatabaseHelper.OutsColumns.OUT_SCRIPT, Base58.encode(outItem.getOutScript()));
+        cv.put(BitherjDatabaseHelper.OutsColumns.OUT_SCRIPT, outItem.getOutScript());
         cv.put(BitherjDatabaseHelper.OutsColumns.OUT_VALUE, outItem.getOutValue());
         cv.put(BitherjDatabaseHelper.OutsColumns.OUT_STATUS, outItem.getOutStatus().getValue());
         if (!Utils.isEmpty(outItem.getOutAddress())) {
@@ -762,8 +1162,52 @@ public class TxProvider {
         }
     }
 
-    private Tx applyCursor(Cursor c) throws AddressFormatException {
+    private boolean hasRaw(Cursor c) {
+        int rawColumn = c.getColumnIndex(BitherjDatabaseHelper.TxsColumns.RAW);
+        return rawColumn != -1 && !c.isNull(rawColumn);
+    }
+
+    /**
+     * The tx of the row with its ins and outs, parsed from raw when the row has it.
+     */
+    private Tx applyCursorDetail(SQLiteDatabase db, Cursor c) {
+        if (hasRaw(c)) {
+            try {
+                Tx txItem = new Tx(c.getBlob(c.getColumnIndex(BitherjDatabaseHelper.TxsColumns
+                        .RAW)));
+                applyCursor(c, txItem);
+                applyOutStatuses(db, txItem);
+                return txItem;
+            } catch (ProtocolException e) {
+                e.printStackTrace();
+            }
+        }
+        Tx txItem = applyCursor(c);
+        addInsAndOuts(db, txItem);
+        return txItem;
+    }
+
+    private void applyOutStatuses(SQLiteDatabase db, Tx txItem) {
+        Cursor c = BlobCursorFactory.rawQuery(db, QUERY_OUT_STATUSES, txItem.getTxHash());
+        try {
+            while (c.moveToNext()) {
+                int outSn = c.getInt(0);
+                if (outSn >= 0 && outSn < txItem.getOuts().size()) {
+                    txItem.getOuts().get(outSn).setOutStatus(Out.getOutStatus(c.getInt(1)));
+                }
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private Tx applyCursor(Cursor c) {
         Tx txItem = new Tx();
+        applyCursor(c, txItem);
+        return txItem;
+    }
+
+    private void applyCursor(Cursor c, Tx txItem) {
         int idColumn = c.getColumnIndex(BitherjDatabaseHelper.TxsColumns.BLOCK_NO);
         if (!c.isNull(idColumn)) {
             txItem.setBlockNo(c.getInt(idColumn));
@@ -772,7 +1216,7 @@ public class TxProvider {
         }
         idColumn = c.getColumnIndex(BitherjDatabaseHelper.TxsColumns.TX_HASH);
         if (idColumn != -1) {
-            txItem.setTxHash(Base58.decode(c.getString(idColumn)));
+            txItem.setTxHash(c.getBlob(idColumn));
         }
         idColumn = c.getColumnIndex(BitherjDatabaseHelper.TxsColumns.SOURCE);
         if (idColumn != -1) {
@@ -797,15 +1241,13 @@ public class TxProvider {
         if (idColumn != -1) {
             txItem.setTxLockTime(c.getInt(idColumn));
         }
-        return txItem;
-
     }
 
-    private In applyCursorIn(Cursor c) throws AddressFormatException {
+    private In applyCursorIn(Cursor c) {
         In inItem = new In();
         int idColumn = c.getColumnIndex(BitherjDatabaseHelper.InsColumns.TX_HASH);
         if (idColumn != -1) {
-            inItem.setTxHash(Base58.decode(c.getString(idColumn)));
+            inItem.setTxHash(c.getBlob(idColumn));
         }
         idColumn = c.getColumnIndex(BitherjDatabaseHelper.InsColumns.IN_SN);
         if (idColumn != -1) {
@@ -813,18 +1255,15 @@ public class TxProvider {
         }
         idColumn = c.getColumnIndex(BitherjDatabaseHelper.InsColumns.PREV_TX_HASH);
         if (idColumn != -1) {
-            inItem.setPrevTxHash(Base58.decode(c.getString(idColumn)));
+            inItem.setPrevTxHash(c.getBlob(idColumn));
         }
         idColumn = c.getColumnIndex(BitherjDatabaseHelper.InsColumns.PREV_OUT_SN);
         if (idColumn != -1) {
             inItem.setPrevOutSn(c.getInt(idColumn));
         }
         idColumn = c.getColumnIndex(BitherjDatabaseHelper.InsColumns.IN_SIGNATURE);
-        if (idColumn != -1) {
-            String inSignature = c.getString(idColumn);
-            if (!Utils.isEmpty(inSignature)) {
-                inItem.setInSignature(Base58.decode(c.getString(idColumn)));
-            }
+        if (idColumn != -1 && !c.isNull(idColumn)) {
+            inItem.setInSignature(c.getBlob(idColumn));
         }
         idColumn = c.getColumnIndex(BitherjDatabaseHelper.InsColumns.IN_SEQUENCE);
         if (idColumn != -1) {
@@ -833,11 +1272,11 @@ public class TxProvider {
         return inItem;
     }
 
-    private Out applyCursorOut(Cursor c) throws AddressFormatException {
+    private Out applyCursorOut(Cursor c) {
         Out outItem = new Out();
         int idColumn = c.getColumnIndex(BitherjDatabaseHelper.OutsColumns.TX_HASH);
         if (idColumn != -1) {
-            outItem.setTxHash(Base58.decode(c.getString(idColumn)));
+            outItem.setTxHash(c.getBlob(idColumn));
         }
         idColumn = c.getColumnIndex(BitherjDatabaseHelper.OutsColumns.OUT_SN);
         if (idColumn != -1) {
@@ -845,7 +1284,7 @@ public class TxProvider {
         }
         idColumn = c.getColumnIndex(BitherjDatabaseHelper.OutsColumns.OUT_SCRIPT);
         if (idColumn != -1) {
-            outItem.setOutScript(Base58.decode(c.getString(idColumn)));
+            outItem.setOutScript(c.getBlob(idColumn));
         }
         idColumn = c.getColumnIndex(BitherjDatabaseHelper.OutsColumns.OUT_VALUE);
         if (idColumn != -1) {
@@ -0,0 +1,219 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.bither.bitherj.db;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import net.bither.bitherj.BitherjApplication;
+import net.bither.bitherj.core.Tx;
+import net.bither.bitherj.utils.Sha256Hash;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the writes of relayed txs, confirmations and peer updates and commits them together,
+ * FLUSH_DELAY_MS after the first one or as soon as MAX_PENDING_WRITES are waiting. A mempool burst
+ * then costs one sqlite transaction instead of one per tx. The providers' own transactions nest
+ * into the batch one.
+ * <p/>
+ * Txs waiting here are reported by {@link TxProvider#isExist(byte[])} and used by
+ * {@link TxProvider#isAddress(String, Tx)}. The callback passed with a write runs after it is
+ * committed, on the thread that flushed it, and not at all when the write failed. Writes that
+ * other code must see right away call {@link #flush()} first.
+ */
+public class WriteBehindQueue {
+    private static final Logger log = LoggerFactory.getLogger(WriteBehindQueue.class);
+
+    public static final long FLUSH_DELAY_MS = 250;
+    public static final int MAX_PENDING_WRITES = 100;
+
+    private static WriteBehindQueue writeBehindQueue = new WriteBehindQueue(BitherjApplication
+            .mDbHelper);
+
+    public static WriteBehindQueue getInstance() {
+        return writeBehindQueue;
+    }
+
+    private SQLiteOpenHelper mDb;
+    private final byte[] flushLock = new byte[0];
+    private List<Write> writes = new ArrayList<Write>();
+    private HashMap<Sha256Hash, Tx> pendingTxs = new HashMap<Sha256Hash, Tx>();
+    private boolean isFlushScheduled = false;
+    private boolean isFullFlushScheduled = false;
+    private ScheduledExecutorService scheduler;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public WriteBehindQueue(SQLiteOpenHelper db) {
+        this.mDb = db;
+        this.scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setName("WriteBehindQueue flush");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public void addTx(Tx tx, Runnable afterCommit) {
+        PendingTxWrite write = new PendingTxWrite(tx);
+        synchronized (this) {
+            pendingTxs.put(write.txHash, tx);
+        }
+        enqueue(write, afterCommit);
+    }
+
+    /**
+     * Never commits on the caller's thread, which may hold its own locks. A full queue is
+     * flushed by the scheduler thread right away instead of after the delay.
+     */
+    public synchronized void enqueue(Runnable write, Runnable afterCommit) {
+        writes.add(new Write(write, afterCommit));
+        if (writes.size() >= MAX_PENDING_WRITES) {
+            if (!isFullFlushScheduled) {
+                isFullFlushScheduled = true;
+                scheduler.execute(flushTask);
+            }
+        } else if (!isFlushScheduled) {
+            isFlushScheduled = true;
+            scheduler.schedule(flushTask, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized boolean isPending(byte[] txHash) {
+        return pendingTxs.containsKey(new Sha256Hash(txHash));
+    }
+
+    public synchronized Tx getPendingTx(byte[] txHash) {
+        return pendingTxs.get(new Sha256Hash(txHash));
+    }
+
+    /**
+     * Commits everything queued so far before returning. Batches commit in the order they were
+     * queued even when the scheduler and a caller flush at the same time.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            List<Write> batch;
+            synchronized (this) {
+                batch = writes;
+                writes = new ArrayList<Write>();
+                isFlushScheduled = false;
+                isFullFlushScheduled = false;
+            }
+            if (batch.size() == 0) {
+                return;
+            }
+            List<Write> committed = batch;
+            try {
+                commit(batch);
+            } catch (RuntimeException e) {
+                // one bad write rolled back the whole batch, keep the others
+                log.warn("write behind batch of {} failed, commit one by one", batch.size());
+                committed = new ArrayList<Write>();
+                for (Write write : batch) {
+                    List<Write> single = new ArrayList<Write>();
+                    single.add(write);
+                    try {
+                        commit(single);
+                        committed.add(write);
+                    } catch (RuntimeException ex) {
+                        log.error("write behind write " + write.write + " failed, its callback" +
+                                " is skipped", ex);
+                    }
+                }
+            }
+            synchronized (this) {
+                for (Write write : batch) {
+                    if (write.write instanceof PendingTxWrite) {
+                        pendingTxs.remove(((PendingTxWrite) write.write).txHash);
+                    }
+                }
+            }
+            for (Write write : committed) {
+                if (write.afterCommit == null) {
+                    continue;
+                }
+                try {
+                    write.afterCommit.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void commit(List<Write> batch) {
+        SQLiteDatabase db = this.mDb.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Write write : batch) {
+                write.write.run();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static class Write {
+        private Runnable write;
+        private Runnable afterCommit;
+
+        Write(Runnable write, Runnable afterCommit) {
+            this.write = write;
+            this.afterCommit = afterCommit;
+        }
+    }
+
+    private static class PendingTxWrite implements Runnable {
+        private Tx tx;
+        private Sha256Hash txHash;
+
+        PendingTxWrite(Tx tx) {
+            this.tx = tx;
+            this.txHash = new Sha256Hash(tx.getTxHash());
+        }
+
+        @Override
+        public void run() {
+            TxProvider.getInstance().add(tx);
+        }
+
+        @Override
+        public String toString() {
+            return "add tx " + txHash;
+        }
+    }
+}
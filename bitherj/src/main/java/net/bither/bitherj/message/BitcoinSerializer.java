@@ -21,6 +21,7 @@ import net.bither.bitherj.core.BitherjSettings;
 import net.bither.bitherj.core.BloomFilter;
 import net.bither.bitherj.core.Tx;
 import net.bither.bitherj.exception.ProtocolException;
+import net.bither.bitherj.utils.BufferPool;
 import net.bither.bitherj.utils.Utils;
 
 import org.slf4j.Logger;
@@ -31,6 +32,7 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -54,9 +56,14 @@ import static net.bither.bitherj.utils.Utils.uint32ToByteArrayBE;
 public class BitcoinSerializer {
     private static final Logger log = LoggerFactory.getLogger(BitcoinSerializer.class);
     private static final int COMMAND_LEN = 12;
+    // a headers message of 2000 headers fits, larger payloads get an array of their own
+    private static final int MAX_REUSED_PAYLOAD_SIZE = 256 * 1024;
+    private static final int MIN_REUSED_PAYLOAD_SIZE = 4096;
 
     private static Map<Class<? extends Message>, String> names = new HashMap<Class<? extends Message>, String>();
 
+    private byte[] payloadBuffer;
+
     static {
         names.put(VersionMessage.class, "version");
         names.put(InventoryMessage.class, "inv");
@@ -122,6 +129,51 @@ public class BitcoinSerializer {
         serialize(name, message.bitcoinSerialize(), out);
     }
 
+    /**
+     * Serializes message with its header into a buffer from the pool. The payload is written
+     * after room for the header, which is then filled in with the checksum taken over the
+     * buffer itself. The returned buffer is flipped, ready to write, and belongs to the caller.
+     */
+    public ByteBuffer serialize(Message message, BufferPool pool) throws IOException {
+        String name = names.get(message.getClass());
+        if (name == null) {
+            throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
+        }
+        int headerLength = 4 + COMMAND_LEN + 4 + 4;
+        int expectedSize = headerLength + (message.length == Message.UNKNOWN_LENGTH ? 0 :
+                message.length);
+        BufferPool.BufferOutputStream out = new BufferPool.BufferOutputStream(pool, expectedSize);
+        out.getBuffer().position(headerLength);
+        try {
+            message.bitcoinSerialize(out);
+        } catch (IOException e) {
+            pool.release(out.getBuffer());
+            throw e;
+        }
+        ByteBuffer buffer = out.getBuffer();
+        int payloadLength = buffer.position() - headerLength;
+        buffer.flip();
+        buffer.position(headerLength);
+        byte[] hash = Utils.doubleDigest(buffer);
+        buffer.position(0);
+
+        buffer.putInt(0, (int) BitherjSettings.packetMagic);
+        for (int i = 0; i < COMMAND_LEN; i++) {
+            buffer.put(4 + i, i < name.length() ? (byte) (name.codePointAt(i) & 0xFF) : 0);
+        }
+        buffer.putInt(4 + COMMAND_LEN, Integer.reverseBytes(payloadLength));
+        for (int i = 0; i < 4; i++) {
+            buffer.put(4 + COMMAND_LEN + 4 + i, hash[i]);
+        }
+
+        if (log.isDebugEnabled()) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            log.debug("Sending {} message: {}", name, bytesToHexString(bytes));
+        }
+        return buffer;
+    }
+
     /**
      * Reads a message from the given ByteBuffer and returns it.
      */
@@ -157,14 +209,30 @@ public class BitcoinSerializer {
     /**
      * Deserialize payload only.  You must provide a header, typically obtained by calling
      * {@link BitcoinSerializer#deserializeHeader}.
+     * <p/>
+     * A heap buffer is parsed where it lies. Anything else is copied once into a payload buffer
+     * this serializer reuses, so it must only deserialize on one thread. Messages copy out what
+     * they keep, neither buffer is referenced once this returns.
      */
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
-        byte[] payloadBytes = new byte[header.size];
-        in.get(payloadBytes, 0, header.size);
+        if (in.remaining() < header.size) {
+            throw new BufferUnderflowException();
+        }
+        byte[] payload;
+        int offset;
+        if (in.hasArray()) {
+            payload = in.array();
+            offset = in.arrayOffset() + in.position();
+            in.position(in.position() + header.size);
+        } else {
+            payload = payloadBuffer(header.size);
+            offset = 0;
+            in.get(payload, 0, header.size);
+        }
 
         // Verify the checksum.
         byte[] hash;
-        hash = doubleDigest(payloadBytes);
+        hash = doubleDigest(payload, offset, header.size);
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
@@ -174,54 +242,82 @@ public class BitcoinSerializer {
 
         if (log.isDebugEnabled()) {
             log.debug("Received {} byte '{}' message: {}", header.size, header.command,
-                    Utils.bytesToHexString(payloadBytes));
+                    Utils.bytesToHexString(Arrays.copyOfRange(payload, offset, offset + header.size)));
         }
 
         try {
-            return makeMessage(header.command, header.size, payloadBytes, hash, header.checksum);
+            return makeMessage(header.command, payload, offset, header.size, hash, header.checksum);
         } catch (Exception e) {
-            throw new ProtocolException("Error deserializing message " + Utils.bytesToHexString(payloadBytes) + "\n", e);
+            throw new ProtocolException("Error deserializing message " + Utils.bytesToHexString
+                    (Arrays.copyOfRange(payload, offset, offset + header.size)) + "\n", e);
         }
     }
 
-    private Message makeMessage(String command, int length, byte[] payloadBytes, byte[] hash, byte[] checksum) throws ProtocolException {
+    /**
+     * A buffer to assemble a payload of size bytes in before handing it to deserializePayload.
+     * Up to a few hundred kilobytes it is the one this serializer reuses, larger payloads get an
+     * array of their own.
+     */
+    public byte[] payloadBuffer(int size) {
+        if (size > MAX_REUSED_PAYLOAD_SIZE) {
+            return new byte[size];
+        }
+        if (payloadBuffer == null || payloadBuffer.length < size) {
+            payloadBuffer = new byte[Math.max(size, MIN_REUSED_PAYLOAD_SIZE)];
+        }
+        return payloadBuffer;
+    }
+
+    private Message makeMessage(String command, byte[] payload, int offset, int length, byte[] hash, byte[] checksum) throws ProtocolException {
         // We use an if ladder rather than reflection because reflection is very slow on Android.
+        // The messages a synced wallet mostly gets are parsed in place, the rest from a copy.
         Message message;
-        if (command.equals("version")) {
-            return new VersionMessage(payloadBytes);
-        } else if (command.equals("inv")) {
-            message = new InventoryMessage(payloadBytes, length);
-        } else if (command.equals("block")) {
-            message = new BlockMessage(payloadBytes, length);
+        if (command.equals("inv")) {
+            message = new InventoryMessage(payload, offset, length);
         } else if (command.equals("merkleblock")) {
-            message = new FilteredBlockMessage(payloadBytes);
-        } else if (command.equals("getdata")) {
-            message = new GetDataMessage(payloadBytes, length);
-        } else if (command.equals("getblocks")) {
-            message = new GetBlocksMessage(payloadBytes);
-        } else if (command.equals("getheaders")) {
-            message = new GetHeadersMessage(payloadBytes);
+            message = new FilteredBlockMessage(payload, offset, length);
         } else if (command.equals("tx")) {
-            Tx tx = new Tx(payloadBytes, 0, length);
+            Tx tx = new Tx(payload, offset, length);
             if (hash != null)
                 tx.setTxHash(hash);
             message = tx;
+        } else if (command.equals("headers")) {
+            return new HeadersMessage(payload, offset, length);
+        } else if (command.equals("block")) {
+            message = new BlockMessage(payload, offset, length);
+        } else if (command.equals("getdata")) {
+            message = new GetDataMessage(payload, offset, length);
+        } else if (command.equals("notfound")) {
+            return new NotFoundMessage(payload, offset, length);
         } else if (command.equals("addr")) {
-            message = new AddressMessage(payloadBytes, length);
+            message = new AddressMessage(payload, offset, length);
+        } else {
+            return makeMessage(command, Arrays.copyOfRange(payload, offset, offset + length),
+                    checksum);
+        }
+        if (checksum != null)
+            message.setChecksum(checksum);
+        return message;
+    }
+
+    private Message makeMessage(String command, byte[] payloadBytes, byte[] checksum) throws ProtocolException {
+        Message message;
+        if (command.equals("version")) {
+            return new VersionMessage(payloadBytes);
+        } else if (command.equals("getblocks")) {
+            message = new GetBlocksMessage(payloadBytes);
+        } else if (command.equals("getheaders")) {
+            message = new GetHeadersMessage(payloadBytes);
         } else if (command.equals("ping")) {
             message = new PingMessage(payloadBytes);
         } else if (command.equals("pong")) {
             message = new PongMessage(payloadBytes);
         } else if (command.equals("verack")) {
             return new VersionAck(payloadBytes);
-        } else if (command.equals("headers")) {
-            return new HeadersMessage(payloadBytes);
         } else if (command.equals("alert")) {
             return new AlertMessage(payloadBytes);
         } else if (command.equals("filterload")) {
             return new BloomFilter(payloadBytes);
-        } else if (command.equals("notfound")) {
-            return new NotFoundMessage(payloadBytes);
         } else if (command.equals("mempool")) {
             return new MemoryPoolMessage();
         } else if (command.equals("reject")) {
@@ -160,8 +160,16 @@ public class BlockMessage extends Message {
      */
     public BlockMessage(byte[] payloadBytes, int length)
             throws ProtocolException {
-        super(payloadBytes, 0, length);
-        block = new Block(payloadBytes, length);
+        this(payloadBytes, 0, length);
+    }
+
+    /**
+     * Parses the block at offset in place, for a block read out of a larger buffer.
+     */
+    public BlockMessage(byte[] payloadBytes, int offset, int length)
+            throws ProtocolException {
+        super(payloadBytes, offset, length);
+        block = new Block(payloadBytes, offset, length);
     }
 
     /**
@@ -58,6 +58,10 @@ public class FilteredBlockMessage extends Message {
         super(payloadBytes, 0);
     }
 
+    public FilteredBlockMessage(byte[] payloadBytes, int offset, int length) throws ProtocolException {
+        super(payloadBytes, offset, length);
+    }
+
     public void bitcoinSerializeToStream(OutputStream stream) throws IOException {
         if (block.getTransactions() == null)
             block.bitcoinSerializeToStream(stream);
@@ -71,11 +75,13 @@ public class FilteredBlockMessage extends Message {
 
     @Override
     protected void parse() throws ProtocolException {
-        byte[] headerBytes = new byte[BlockMessage.HEADER_SIZE];
-        System.arraycopy(bytes, 0, headerBytes, 0, BlockMessage.HEADER_SIZE);
-        block = new Block(headerBytes);
-        merkleTree = new PartialMerkleTree(bytes, BlockMessage.HEADER_SIZE);
-        length = BlockMessage.HEADER_SIZE + merkleTree.getMessageSize();
+        if (offset + BlockMessage.HEADER_SIZE > limit) {
+            throw new ProtocolException("Filtered block is shorter than a block header");
+        }
+        block = new Block(bytes, offset, BlockMessage.HEADER_SIZE);
+        merkleTree = new PartialMerkleTree(bytes, offset + BlockMessage.HEADER_SIZE);
+        cursor = offset + BlockMessage.HEADER_SIZE + merkleTree.getMessageSize();
+        length = cursor - offset;
         block.setTxHashes(this.getTransactionHashes());
     }
 
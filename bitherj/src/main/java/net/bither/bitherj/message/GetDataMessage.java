@@ -46,6 +46,11 @@ public class GetDataMessage extends ListMessage {
         super(msg, length);
     }
 
+    public GetDataMessage(byte[] msg, int offset, int length)
+            throws ProtocolException {
+        super(msg, offset, length);
+    }
+
     public GetDataMessage() {
         super();
     }
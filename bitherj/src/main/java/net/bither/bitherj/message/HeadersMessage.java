@@ -45,6 +45,10 @@ public class HeadersMessage extends Message {
         super(payload, 0);
     }
 
+    public HeadersMessage(byte[] payload, int offset, int length) throws ProtocolException {
+        super(payload, offset, length);
+    }
+
     public HeadersMessage(BlockMessage... headers) throws ProtocolException {
         super();
         blockHeaders = Arrays.asList(headers);
@@ -83,11 +87,14 @@ public class HeadersMessage extends Message {
         for (int i = 0; i < numHeaders; ++i) {
             // Read 80 bytes of the header and one more byte for the transaction list, which is always a 00 because the
             // transaction list is empty.
-            byte[] blockHeader = readBytes(81);
-            if (blockHeader[80] != 0)
+            // parsed in place, the block keeps copies of the fields it needs
+            if (cursor + 81 > limit)
+                throw new ProtocolException("Ran off the end of the headers");
+            if (bytes[cursor + 80] != 0)
                 throw new ProtocolException("Block header does not end with a null byte");
-            BlockMessage newBlockHeader = new BlockMessage(blockHeader, 81);
+            BlockMessage newBlockHeader = new BlockMessage(bytes, cursor, 81);
             blockHeaders.add(newBlockHeader);
+            cursor += 81;
         }
 
         if (log.isDebugEnabled()) {
@@ -50,6 +50,9 @@ public abstract class Message {
 
     // The raw message bytes themselves.
     protected transient byte[] bytes;
+    // Where the bytes this message may read end. A message parsed in place from a larger array,
+    // like the payload buffer of a connection, must not run into whatever follows it.
+    protected transient int limit;
 
     protected transient int protocolVersion;
 
@@ -93,7 +96,12 @@ public abstract class Message {
         this.bytes = msg;
         this.cursor = this.offset = offset;
         this.length = length;
+        this.limit = length == UNKNOWN_LENGTH ? msg.length : offset + length;
         parse();
+        if (cursor > limit) {
+            throw new ProtocolException(getClass().getSimpleName() + " read " + (cursor - limit) +
+                    " bytes past its end");
+        }
 
         if (this.length == UNKNOWN_LENGTH) {
             this.protocolVersion = protocolVersion;
@@ -256,7 +264,15 @@ public abstract class Message {
         return length;
     }
 
+    private void checkAvailable(int count) throws ProtocolException {
+        if (count < 0 || cursor + count > limit) {
+            throw new ProtocolException("Message needs " + count + " bytes at " + cursor + ", " +
+                    "ends at " + limit);
+        }
+    }
+
     protected long readUint32() throws ProtocolException {
+        checkAvailable(4);
         try {
             long u = Utils.readUint32(bytes, cursor);
             cursor += 4;
@@ -267,6 +283,7 @@ public abstract class Message {
     }
 
     protected byte[] readHash() throws ProtocolException {
+        checkAvailable(32);
         try {
             byte[] hash = new byte[32];
             System.arraycopy(bytes, cursor, hash, 0, 32);
@@ -281,6 +298,7 @@ public abstract class Message {
     }
 
     protected long readInt64() throws ProtocolException {
+        checkAvailable(8);
         try {
             long u = Utils.readInt64(bytes, cursor);
             cursor += 8;
@@ -291,6 +309,7 @@ public abstract class Message {
     }
 
     protected BigInteger readUint64() throws ProtocolException {
+        checkAvailable(8);
         try {
             // Java does not have an unsigned 64 bit type. So scrape it off the wire then flip.
             byte[] valbytes = new byte[8];
@@ -309,7 +328,9 @@ public abstract class Message {
 
     protected long readVarInt(int offset) throws ProtocolException {
         try {
+            checkAvailable(offset + 1);
             VarInt varint = new VarInt(bytes, cursor + offset);
+            checkAvailable(offset + varint.getOriginalSizeInBytes());
             cursor += offset + varint.getOriginalSizeInBytes();
             return varint.value;
         } catch (ArrayIndexOutOfBoundsException e) {
@@ -319,6 +340,7 @@ public abstract class Message {
 
 
     protected byte[] readBytes(int length) throws ProtocolException {
+        checkAvailable(length);
         try {
             byte[] b = new byte[length];
             System.arraycopy(bytes, cursor, b, 0, length);
@@ -336,13 +358,12 @@ public abstract class Message {
 
     protected String readStr() throws ProtocolException {
         try {
-            VarInt varInt = new VarInt(bytes, cursor);
-            if (varInt.value == 0) {
-                cursor += 1;
+            long len = readVarInt();
+            if (len == 0) {
                 return "";
             }
-            cursor += varInt.getOriginalSizeInBytes();
-            byte[] characters = new byte[(int) varInt.value];
+            checkAvailable((int) len);
+            byte[] characters = new byte[(int) len];
             System.arraycopy(bytes, cursor, characters, 0, characters.length);
             cursor += characters.length;
             try {
@@ -358,7 +379,7 @@ public abstract class Message {
     }
 
     protected boolean hasMoreBytes() {
-        return cursor < bytes.length;
+        return cursor < limit;
     }
 
 }
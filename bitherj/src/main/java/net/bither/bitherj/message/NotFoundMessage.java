@@ -37,6 +37,10 @@ public class NotFoundMessage extends InventoryMessage {
         super(payloadBytes);
     }
 
+    public NotFoundMessage(byte[] msg, int offset, int length) throws ProtocolException {
+        super(msg, offset, length);
+    }
+
     public NotFoundMessage(List<InventoryItem> items) {
         super();
         this.items = new ArrayList<InventoryItem>(items);
@@ -16,23 +16,23 @@
 
 package net.bither.bitherj.net;
 
-import java.util.Timer;
-import java.util.TimerTask;
-
 /**
  * <p>A base class which provides basic support for socket timeouts. It is used instead of integrating timeouts into the
  * NIO select thread both for simplicity and to keep code shared between NIO and blocking sockets as much as possible.
  * </p>
  */
 public abstract class AbstractTimeoutHandler {
-    // TimerTask and timeout value which are added to a timer to kill the connection on timeout
-    private TimerTask timeoutTask;
+    // Timeout and timeout value which are scheduled on the wheel to kill the connection on
+    // timeout. The same Timeout is moved on every reset.
+    private final TimingWheel.Timeout timeout = new TimingWheel.Timeout(new Runnable() {
+        @Override
+        public void run() {
+            timeoutOccurred();
+        }
+    });
     private long timeoutMillis = 0;
     private boolean timeoutEnabled = true;
 
-    // A timer which manages expiring channels as their timeouts occur (if configured).
-    private static final Timer timeoutTimer = new Timer("AbstractTimeoutHandler timeouts", true);
-
     /**
      * <p>Enables or disables the timeout entirely. This may be useful if you want to store the timeout value but wish
      * to temporarily disable/enable timeouts.</p>
@@ -65,17 +65,11 @@ public abstract class AbstractTimeoutHandler {
      * Resets the current progress towards timeout to 0.
      */
     protected synchronized void resetTimeout() {
-        if (timeoutTask != null)
-            timeoutTask.cancel();
-        if (timeoutMillis == 0 || !timeoutEnabled)
+        if (timeoutMillis == 0 || !timeoutEnabled) {
+            TimingWheel.getInstance().cancel(timeout);
             return;
-        timeoutTask = new TimerTask() {
-            @Override
-            public void run() {
-                timeoutOccurred();
-            }
-        };
-        timeoutTimer.schedule(timeoutTask, timeoutMillis);
+        }
+        TimingWheel.getInstance().schedule(timeout, timeoutMillis);
     }
 
     protected abstract void timeoutOccurred();
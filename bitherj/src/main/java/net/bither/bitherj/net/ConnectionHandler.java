@@ -19,6 +19,7 @@ package net.bither.bitherj.net;
 import com.google.common.base.Throwables;
 
 import net.bither.bitherj.message.Message;
+import net.bither.bitherj.utils.BufferPool;
 import net.bither.bitherj.utils.Threading;
 
 import org.slf4j.LoggerFactory;
@@ -28,8 +29,6 @@ import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Arrays;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
@@ -53,13 +52,16 @@ class ConnectionHandler implements MessageWriteTarget {
 
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte
     // message header
+    // most buffers handed to one gathering write
+    private static final int MAX_GATHERED_BUFFERS = 64;
 
     // We lock when touching local flags and when writing data, but NEVER when calling any
     // methods which leave this
     // class into non-Java classes.
     private final ReentrantLock lock = Threading.lock("nioConnectionHandler");
-    @GuardedBy("lock")
-    private final ByteBuffer readBuff;
+    // only touched by the selector thread, which hands it back to the pool once the channel is
+    // closed
+    private ByteBuffer readBuff;
     @GuardedBy("lock")
     private final SocketChannel channel;
     @GuardedBy("lock")
@@ -73,6 +75,8 @@ class ConnectionHandler implements MessageWriteTarget {
     private long bytesToWriteRemaining = 0;
     @GuardedBy("lock")
     private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<ByteBuffer>();
+    @GuardedBy("lock")
+    private final ByteBuffer[] gatheredBuffers = new ByteBuffer[MAX_GATHERED_BUFFERS];
 
     private Set<ConnectionHandler> connectedHandlers;
 
@@ -85,8 +89,8 @@ class ConnectionHandler implements MessageWriteTarget {
             return;
         }
         this.parser = parser;
-        readBuff = ByteBuffer.allocateDirect(Math.min(Math.max(parser.getMaxMessageSize(),
-                BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
+        readBuff = BufferPool.getInstance().acquire(Math.min(Math.max(parser
+                .getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
         parser.setWriteTarget(this); // May callback into us (eg closeConnection() now)
         connectedHandlers = null;
     }
@@ -122,15 +126,25 @@ class ConnectionHandler implements MessageWriteTarget {
     private void tryWriteBytes() throws IOException {
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the
-            // OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining()) {
-                    bytesIterator.remove();
-                } else {
+            // Push as much of the outbound ByteBuff queue as possible into the OS' network
+            // buffer, handing several buffers to each write call.
+            while (!bytesToWrite.isEmpty()) {
+                int count = 0;
+                for (ByteBuffer buff : bytesToWrite) {
+                    if (count == gatheredBuffers.length) {
+                        break;
+                    }
+                    gatheredBuffers[count++] = buff;
+                }
+                bytesToWriteRemaining -= channel.write(gatheredBuffers, 0, count);
+                boolean socketFull = gatheredBuffers[count - 1].hasRemaining();
+                for (int i = 0; i < count; i++) {
+                    gatheredBuffers[i] = null;
+                }
+                while (!bytesToWrite.isEmpty() && !bytesToWrite.peek().hasRemaining()) {
+                    BufferPool.getInstance().release(bytesToWrite.poll());
+                }
+                if (socketFull) {
                     setWriteOps();
                     break;
                 }
@@ -147,6 +161,14 @@ class ConnectionHandler implements MessageWriteTarget {
 
     @Override
     public void writeBytes(byte[] message) throws IOException {
+        ByteBuffer buffer = BufferPool.getInstance().acquire(message.length);
+        buffer.put(message);
+        buffer.flip();
+        writeBuffer(buffer);
+    }
+
+    @Override
+    public void writeBuffer(ByteBuffer buffer) throws IOException {
         lock.lock();
         try {
             // Network buffers are not unlimited (and are often smaller than some messages we may
@@ -158,16 +180,16 @@ class ConnectionHandler implements MessageWriteTarget {
             // register our SelectionKey to wakeup when we have free outbound buffer space
             // available.
 
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT) {
+            if (bytesToWriteRemaining + buffer.remaining() > OUTBOUND_BUFFER_BYTE_COUNT) {
                 throw new IOException("Outbound buffer overflowed");
             }
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
-            bytesToWriteRemaining += message.length;
+            // Just queue the buffer, it goes back to the pool once written
+            bytesToWrite.offer(buffer);
+            bytesToWriteRemaining += buffer.remaining();
             setWriteOps();
         } catch (IOException e) {
             lock.unlock();
+            BufferPool.getInstance().release(buffer);
             log.error("Error writing message to connection, closing connection", e);
             closeConnection();
             throw e;
@@ -180,6 +202,23 @@ class ConnectionHandler implements MessageWriteTarget {
         lock.unlock();
     }
 
+    @Override
+    public void setReadingPaused(boolean paused) {
+        lock.lock();
+        try {
+            if (paused) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                key.selector().wakeup();
+            }
+        } catch (CancelledKeyException e) {
+            // already closed, nothing left to read
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     // May NOT be called with lock held
     public void closeConnection() {
@@ -197,6 +236,11 @@ class ConnectionHandler implements MessageWriteTarget {
         try {
             callClosed = !closeCalled;
             closeCalled = true;
+            // nothing more gets written, so the queued buffers can go back
+            while (!bytesToWrite.isEmpty()) {
+                BufferPool.getInstance().release(bytesToWrite.poll());
+            }
+            bytesToWriteRemaining = 0;
         } finally {
             lock.unlock();
         }
@@ -253,6 +297,11 @@ class ConnectionHandler implements MessageWriteTarget {
                 log.error("Error handling SelectionKey: {}", Throwables.getRootCause(e).getMessage());
             }
             handler.closeConnection();
+        } finally {
+            if (handler != null && handler.readBuff != null && !handler.channel.isOpen()) {
+                BufferPool.getInstance().release(handler.readBuff);
+                handler.readBuff = null;
+            }
         }
     }
 }
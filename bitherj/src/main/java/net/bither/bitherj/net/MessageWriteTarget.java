@@ -16,7 +16,10 @@
 
 package net.bither.bitherj.net;
 
+import net.bither.bitherj.utils.BufferPool;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * A target to which messages can be written/connection can be closed
@@ -26,6 +29,18 @@ public interface MessageWriteTarget {
      * Writes the given bytes to the remote server.
      */
     void writeBytes(byte[] message) throws IOException;
+    /**
+     * Writes the bytes between the buffer's position and limit to the remote server. The target
+     * takes the buffer over and hands it back to the {@link BufferPool} once it has been
+     * written, or straight away if this throws.
+     */
+    void writeBuffer(ByteBuffer buffer) throws IOException;
+    /**
+     * Stops or resumes reading from the remote server. A parser that hands messages to another
+     * thread pauses reading while that thread falls behind, instead of blocking the network
+     * thread. Never calls back into the parser.
+     */
+    void setReadingPaused(boolean paused);
     /**
      * Closes the connection to the server, triggering the {@link StreamParser#connectionClosed()}
      * event on the network-handling thread where all callbacks occur.
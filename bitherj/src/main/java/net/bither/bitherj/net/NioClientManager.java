@@ -16,155 +16,81 @@
 
 package net.bither.bitherj.net;
 
-import com.google.common.base.Throwables;
-import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import com.google.common.util.concurrent.AbstractIdleService;
 
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.SocketAddress;
-import java.nio.channels.ClosedChannelException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Queue;
-import java.util.Set;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
 
 /**
  * A class which manages a set of client connections. Uses Java NIO to select network events and
- * processes them in a
- * single network processing thread.
+ * processes them in one or more event loops, each a selector with its own thread. A new
+ * connection goes to the loop with the fewest connections, taking turns between equal ones.
+ * <p/>
+ * One loop is the default, which is what a phone needs. A process keeping many connections
+ * open sets more with {@link #setEventLoopCount(int)} before the first {@link #instance()}.
  */
-public class NioClientManager extends AbstractExecutionThreadService implements
-        ClientConnectionManager {
+public class NioClientManager extends AbstractIdleService implements ClientConnectionManager {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClientManager.class);
     private static NioClientManager instance;
+    private static int eventLoopCount = 1;
 
-    private final Selector selector;
-
-    // SocketChannels and StreamParsers of newly-created connections which should be registered
-    // with OP_CONNECT
-    class SocketChannelAndParser {
-        SocketChannel sc;
-        StreamParser parser;
+    private final List<NioEventLoop> loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
 
-        SocketChannelAndParser(SocketChannel sc, StreamParser parser) {
-            this.sc = sc;
-            this.parser = parser;
-        }
-    }
-
-    final Queue<SocketChannelAndParser> newConnectionChannels = new
-            LinkedBlockingQueue<SocketChannelAndParser>();
-
-    // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on
-    // its own.
-    private final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new
-            HashSet<ConnectionHandler>());
-
-    public static final NioClientManager instance(){
-        if(instance == null){
-            instance = new NioClientManager();
+    public static final synchronized NioClientManager instance() {
+        if (instance == null) {
+            instance = new NioClientManager(eventLoopCount);
         }
         return instance;
     }
 
-    // Handle a SelectionKey which was selected
-    private void handleKey(SelectionKey key) throws IOException {
-        // We could have a !isValid() key here if the connection is already closed at this point
-        if (key.isValid() && key.isConnectable()) { // ie a client connection which has finished
-            // the initial connect process
-            // Create a ConnectionHandler and hook everything together
-            StreamParser parser = (StreamParser) key.attachment();
-            SocketChannel sc = (SocketChannel) key.channel();
-            ConnectionHandler handler = new ConnectionHandler(parser, key, connectedHandlers);
-            try {
-                if (sc.finishConnect()) {
-                    log.info("Successfully connected to {}", sc.socket().getRemoteSocketAddress());
-                    key.interestOps(SelectionKey.OP_READ).attach(handler);
-                    handler.parser.connectionOpened();
-                } else {
-                    log.error("Failed to connect to {}", sc.socket().getRemoteSocketAddress());
-                    handler.closeConnection(); // Failed to connect for some reason
-                }
-            } catch (Exception e) {
-                // If e is a CancelledKeyException, there is a race to get to interestOps after
-                // finishConnect() which
-                // may cause this. Otherwise it may be any arbitrary kind of connection failure.
-                // Calling sc.socket().getRemoteSocketAddress() here throws an exception,
-                // so we can only log the error itself
-                log.error("Failed to connect with exception: {}",
-                        Throwables.getRootCause(e).getMessage());
-                handler.closeConnection();
-            }
-        } else if(key.isValid()) // Process bytes read
-        {
-            ConnectionHandler.handleKey(key);
-        }
+    /**
+     * Sets how many event loops the manager runs, only before it is created.
+     */
+    public static synchronized void setEventLoopCount(int count) {
+        checkArgument(count > 0);
+        checkState(instance == null, "NioClientManager already created with %s event loops",
+                eventLoopCount);
+        eventLoopCount = count;
     }
 
     /**
-     * Creates a new client manager which uses Java NIO for socket management. Uses a single
-     * thread to handle all select
-     * calls.
+     * Creates a new client manager which uses Java NIO for socket management, with count
+     * threads to handle all select calls.
      */
-    private NioClientManager() {
-        try {
-            selector = SelectorProvider.provider().openSelector();
-        } catch (IOException e) {
-            throw new RuntimeException(e); // Shouldn't ever happen
+    private NioClientManager(int count) {
+        List<NioEventLoop> loops = new ArrayList<NioEventLoop>(count);
+        for (int i = 0; i < count; i++) {
+            loops.add(new NioEventLoop(count == 1 ? "NioClientManager" : "NioClientManager " +
+                    "loop " + i));
         }
+        this.loops = Collections.unmodifiableList(loops);
     }
 
     @Override
-    public void run() {
-        try {
-            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-            while (isRunning()) {
-                SocketChannelAndParser conn;
-                while ((conn = newConnectionChannels.poll()) != null) {
-                    try {
-                        SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
-                        key.attach(conn.parser);
-                    } catch (ClosedChannelException e) {
-                        log.info("SocketChannel was closed before it could be registered");
-                    }
-                }
-
-                selector.select();
+    protected void startUp() {
+        for (NioEventLoop loop : loops) {
+            loop.startAndWait();
+        }
+    }
 
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-                    handleKey(key);
-                }
-            }
-        } catch (Exception e) {
-            log.error("Error trying to open/read from connection: ", e);
-        } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.error("Error closing channel", e);
-                }
-                key.cancel();
-                if (key.attachment() instanceof ConnectionHandler) {
-                    ConnectionHandler.handleKey(key); // Close connection if relevant
-                }
-            }
-            try {
-                selector.close();
-            } catch (IOException e) {
-                log.error("Error closing client manager selector", e);
-            }
+    @Override
+    protected void shutDown() {
+        for (NioEventLoop loop : loops) {
+            loop.stop();
+        }
+        for (NioEventLoop loop : loops) {
+            loop.stopAndWait();
         }
     }
 
@@ -173,13 +99,16 @@ public class NioClientManager extends AbstractExecutionThreadService implements
         if (!isRunning()) {
             throw new IllegalStateException();
         }
+        NioEventLoop loop = leastLoadedLoop();
+        if (loop == null) {
+            throw new IllegalStateException("No running event loop");
+        }
         // Create a new connection, give it a parser as an attachment
         try {
             SocketChannel sc = SocketChannel.open();
             sc.configureBlocking(false);
             sc.connect(serverAddress);
-            newConnectionChannels.offer(new SocketChannelAndParser(sc, parser));
-            selector.wakeup();
+            loop.openConnection(sc, parser);
         } catch (IOException e) {
             log.error("Could not connect to " + serverAddress);
             throw new RuntimeException(e); // This should only happen if we are, eg,
@@ -187,26 +116,51 @@ public class NioClientManager extends AbstractExecutionThreadService implements
         }
     }
 
-    @Override
-    public void triggerShutdown() {
-        selector.wakeup();
+    private NioEventLoop leastLoadedLoop() {
+        int count = loops.size();
+        int start = (nextLoop.getAndIncrement() & Integer.MAX_VALUE) % count;
+        NioEventLoop leastLoaded = null;
+        int leastLoad = Integer.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            NioEventLoop loop = loops.get((start + i) % count);
+            if (!loop.isRunning()) {
+                continue;
+            }
+            int load = loop.getLoad();
+            if (load < leastLoad) {
+                leastLoaded = loop;
+                leastLoad = load;
+            }
+        }
+        return leastLoaded;
+    }
+
+    public int getEventLoopCount() {
+        return loops.size();
     }
 
     @Override
     public int getConnectedClientCount() {
-        return connectedHandlers.size();
+        int count = 0;
+        for (NioEventLoop loop : loops) {
+            count += loop.getConnectedClientCount();
+        }
+        return count;
     }
 
     @Override
     public void closeConnections(int n) {
-        while (n-- > 0) {
-            ConnectionHandler handler;
-            synchronized (connectedHandlers) {
-                handler = connectedHandlers.iterator().next();
+        // one at a time from each loop in turn, so the remaining ones stay spread out
+        while (n > 0) {
+            boolean closed = false;
+            for (NioEventLoop loop : loops) {
+                if (n > 0 && loop.closeConnection()) {
+                    closed = true;
+                    n--;
+                }
             }
-            if (handler != null) {
-                handler.closeConnection(); // Removes handler from connectedHandlers before
-                // returning
+            if (!closed) {
+                return;
             }
         }
     }
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.bither.bitherj.net;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.AbstractExecutionThreadService;
+
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One selector and the thread that connects, reads and writes the connections registered with
+ * it. {@link NioClientManager} spreads connections over one or more of these.
+ */
+class NioEventLoop extends AbstractExecutionThreadService {
+    private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioEventLoop.class);
+
+    private final String name;
+    private final Selector selector;
+
+    // SocketChannels and StreamParsers of newly-created connections which should be registered
+    // with OP_CONNECT
+    class SocketChannelAndParser {
+        SocketChannel sc;
+        StreamParser parser;
+
+        SocketChannelAndParser(SocketChannel sc, StreamParser parser) {
+            this.sc = sc;
+            this.parser = parser;
+        }
+    }
+
+    final Queue<SocketChannelAndParser> newConnectionChannels = new
+            LinkedBlockingQueue<SocketChannelAndParser>();
+
+    // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on
+    // its own.
+    private final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new
+            HashSet<ConnectionHandler>());
+
+    // connections handed to this loop that have not finished connecting yet
+    private final AtomicInteger pendingConnections = new AtomicInteger();
+
+    NioEventLoop(String name) {
+        this.name = name;
+        try {
+            selector = SelectorProvider.provider().openSelector();
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Shouldn't ever happen
+        }
+    }
+
+    // Handle a SelectionKey which was selected
+    private void handleKey(SelectionKey key) throws IOException {
+        // We could have a !isValid() key here if the connection is already closed at this point
+        if (key.isValid() && key.isConnectable()) { // ie a client connection which has finished
+            // the initial connect process
+            // Create a ConnectionHandler and hook everything together
+            StreamParser parser = (StreamParser) key.attachment();
+            SocketChannel sc = (SocketChannel) key.channel();
+            ConnectionHandler handler = new ConnectionHandler(parser, key, connectedHandlers);
+            pendingConnections.decrementAndGet();
+            try {
+                if (sc.finishConnect()) {
+                    log.info("Successfully connected to {}", sc.socket().getRemoteSocketAddress());
+                    key.interestOps(SelectionKey.OP_READ).attach(handler);
+                    handler.parser.connectionOpened();
+                } else {
+                    log.error("Failed to connect to {}", sc.socket().getRemoteSocketAddress());
+                    handler.closeConnection(); // Failed to connect for some reason
+                }
+            } catch (Exception e) {
+                // If e is a CancelledKeyException, there is a race to get to interestOps after
+                // finishConnect() which
+                // may cause this. Otherwise it may be any arbitrary kind of connection failure.
+                // Calling sc.socket().getRemoteSocketAddress() here throws an exception,
+                // so we can only log the error itself
+                log.error("Failed to connect with exception: {}",
+                        Throwables.getRootCause(e).getMessage());
+                handler.closeConnection();
+            }
+        } else if (key.isValid()) // Process bytes read
+        {
+            ConnectionHandler.handleKey(key);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+            while (isRunning()) {
+                SocketChannelAndParser conn;
+                while ((conn = newConnectionChannels.poll()) != null) {
+                    try {
+                        SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
+                        key.attach(conn.parser);
+                    } catch (ClosedChannelException e) {
+                        pendingConnections.decrementAndGet();
+                        log.info("SocketChannel was closed before it could be registered");
+                    }
+                }
+
+                selector.select();
+
+                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                while (keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+                    handleKey(key);
+                }
+            }
+        } catch (Exception e) {
+            log.error("Error trying to open/read from connection: ", e);
+        } finally {
+            // Go through and close everything, without letting IOExceptions get in our way
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    log.error("Error closing channel", e);
+                }
+                key.cancel();
+                if (key.attachment() instanceof ConnectionHandler) {
+                    ConnectionHandler.handleKey(key); // Close connection if relevant
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                log.error("Error closing client manager selector", e);
+            }
+            pendingConnections.set(0);
+        }
+    }
+
+    /**
+     * Queues the connecting channel to be registered by this loop's thread.
+     */
+    void openConnection(SocketChannel sc, StreamParser parser) {
+        pendingConnections.incrementAndGet();
+        newConnectionChannels.offer(new SocketChannelAndParser(sc, parser));
+        selector.wakeup();
+    }
+
+    @Override
+    protected void triggerShutdown() {
+        selector.wakeup();
+    }
+
+    @Override
+    protected String getServiceName() {
+        return name;
+    }
+
+    /**
+     * Connections this loop serves or is connecting, what a new connection is placed by.
+     */
+    int getLoad() {
+        return connectedHandlers.size() + pendingConnections.get();
+    }
+
+    int getConnectedClientCount() {
+        return connectedHandlers.size();
+    }
+
+    /**
+     * Closes one connection of this loop.
+     *
+     * @return false if it has none
+     */
+    boolean closeConnection() {
+        ConnectionHandler handler = null;
+        synchronized (connectedHandlers) {
+            Iterator<ConnectionHandler> iterator = connectedHandlers.iterator();
+            if (iterator.hasNext()) {
+                handler = iterator.next();
+            }
+        }
+        if (handler == null) {
+            return false;
+        }
+        handler.closeConnection(); // Removes handler from connectedHandlers before returning
+        return true;
+    }
+}
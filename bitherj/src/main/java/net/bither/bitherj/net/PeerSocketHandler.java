@@ -23,20 +23,26 @@ import net.bither.bitherj.exception.ProtocolException;
 import net.bither.bitherj.message.BitcoinSerializer;
 import net.bither.bitherj.message.Message;
 import net.bither.bitherj.message.PeerAddress;
+import net.bither.bitherj.utils.BufferPool;
 import net.bither.bitherj.utils.Threading;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.locks.Lock;
 
+import javax.annotation.concurrent.GuardedBy;
+
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
@@ -48,6 +54,28 @@ import static com.google.common.base.Preconditions.checkState;
 public abstract class PeerSocketHandler extends AbstractTimeoutHandler implements StreamParser {
     private static final Logger log = LoggerFactory.getLogger(PeerSocketHandler.class);
 
+    private static final int MESSAGE_HANDLER_THREADS = 2;
+    // reading from a peer pauses once this many of its messages wait, and resumes below the
+    // second bound
+    private static final int MAX_QUEUED_MESSAGES = 500;
+    private static final int RESUME_QUEUED_MESSAGES = 100;
+    // a handler thread moves on to other peers after this many messages of one
+    private static final int MESSAGES_PER_TURN = 50;
+
+    // Messages are only framed on the network thread. Processing them may verify scripts, query
+    // the db or wait for the PeerManager executor, so it runs here, one peer at a time per thread
+    // and in the order each peer sent them.
+    private static final ExecutorService messageHandlers = Executors.newFixedThreadPool
+            (MESSAGE_HANDLER_THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r);
+                    t.setName("PeerSocketHandler message handler");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
     private final BitcoinSerializer serializer;
     protected PeerAddress peerAddress;
     // If we close() before we know our writeTarget, set this to true to call writeTarget
@@ -63,12 +91,30 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
     // will receive. For SPV clients, this should be rare (ie we're mostly dealing with small
     // transactions), but for
     // messages which are larger than the read buffer, we have to keep a temporary buffer with
-    // its bytes.
+    // its bytes. It comes from the serializer, which reuses it for the next one, and may be
+    // longer than the message.
     private byte[] largeReadBuffer;
     private int largeReadBufferPos;
     private BitcoinSerializer.BitcoinPacketHeader header;
 
     private Lock lock = Threading.lock("PeerSocketHandler");
+    @GuardedBy("lock")
+    private final ArrayDeque<Message> inboundMessages = new ArrayDeque<Message>();
+    @GuardedBy("lock")
+    private boolean handlingMessages = false;
+    @GuardedBy("lock")
+    private boolean readingPaused = false;
+    @GuardedBy("lock")
+    private boolean closed = false;
+
+    private final ThroughputMeter bytesReceived = new ThroughputMeter();
+
+    private final Runnable handleMessages = new Runnable() {
+        @Override
+        public void run() {
+            handleQueuedMessages();
+        }
+    };
 
     public PeerSocketHandler(InetSocketAddress remoteIp) {
         serializer = new BitcoinSerializer();
@@ -96,11 +142,8 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            serializer.serialize(message, out);
-            writeTarget.writeBytes(out.toByteArray());
+            writeTarget.writeBuffer(serializer.serialize(message, BufferPool.getInstance()));
         } catch (IOException e) {
             exceptionCaught(e);
         }
@@ -130,12 +173,125 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
     }
 
     /**
-     * Called every time a message is received from the network
+     * Called every time a message is received from the network, on a message handler thread and
+     * never for two messages of this peer at once.
      */
     protected abstract void processMessage(Message m) throws Exception;
 
+    /**
+     * Drops the messages still waiting for a handler thread, so nothing more is processed once the
+     * connection is gone. The close itself goes through the handler queue, so
+     * {@link #messagesClosed()} runs after the message being processed, never beside it.
+     */
+    @Override
+    public final void connectionClosed() {
+        boolean startHandling;
+        lock.lock();
+        try {
+            closed = true;
+            inboundMessages.clear();
+            startHandling = !handlingMessages;
+            handlingMessages = true;
+        } finally {
+            lock.unlock();
+        }
+        if (startHandling) {
+            messageHandlers.execute(handleMessages);
+        }
+    }
+
+    /**
+     * Called once after the connection closed, on a message handler thread and after the last
+     * {@link #processMessage(Message)} of this peer returned.
+     */
+    protected void messagesClosed() {
+    }
+
+    private void queueMessage(Message message) {
+        boolean startHandling;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            inboundMessages.offer(message);
+            startHandling = !handlingMessages;
+            handlingMessages = true;
+            // called with the lock held so a resume from a handler thread cannot overtake it,
+            // the write target never calls back into us
+            if (!readingPaused && inboundMessages.size() >= MAX_QUEUED_MESSAGES) {
+                readingPaused = true;
+                writeTarget.setReadingPaused(true);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (startHandling) {
+            messageHandlers.execute(handleMessages);
+        }
+    }
+
+    private void handleQueuedMessages() {
+        for (int i = 0; i < MESSAGES_PER_TURN; i++) {
+            Message message;
+            lock.lock();
+            try {
+                if (closed) {
+                    // handlingMessages stays set, nothing starts another turn for this peer
+                    break;
+                }
+                message = inboundMessages.poll();
+                if (message == null) {
+                    handlingMessages = false;
+                    return;
+                }
+                if (readingPaused && inboundMessages.size() <= RESUME_QUEUED_MESSAGES) {
+                    readingPaused = false;
+                    writeTarget.setReadingPaused(false);
+                }
+            } finally {
+                lock.unlock();
+            }
+            try {
+                processMessage(message);
+            } catch (Exception e) {
+                exceptionCaught(e);
+            }
+        }
+        if (isClosed()) {
+            messagesClosed();
+            return;
+        }
+        // give the other peers a turn, handlingMessages stays set so the order holds
+        messageHandlers.execute(handleMessages);
+    }
+
+    private boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public int receiveBytes(ByteBuffer buff) {
+        int read = deserializeMessages(buff);
+        if (read > 0) {
+            bytesReceived.record(read);
+        }
+        return read;
+    }
+
+    /**
+     * @return the bytes per second recently read from the peer
+     */
+    public double getBytesPerSecond() {
+        return bytesReceived.getRate();
+    }
+
+    private int deserializeMessages(ByteBuffer buff) {
         checkArgument(buff.position() == 0 && buff.capacity() >= BitcoinSerializer
                 .BitcoinPacketHeader.HEADER_LENGTH + 4);
         try {
@@ -150,13 +306,14 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     checkState(i == 0);
                     // Read new bytes into the largeReadBuffer
                     int bytesToGet = Math.min(buff.remaining(),
-                            largeReadBuffer.length - largeReadBufferPos);
+                            header.size - largeReadBufferPos);
                     buff.get(largeReadBuffer, largeReadBufferPos, bytesToGet);
                     largeReadBufferPos += bytesToGet;
                     // Check the largeReadBuffer's status
-                    if (largeReadBufferPos == largeReadBuffer.length) {
+                    if (largeReadBufferPos == header.size) {
                         // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
+                        queueMessage(serializer.deserializePayload(header, ByteBuffer.wrap
+                                (largeReadBuffer, 0, header.size)));
                         largeReadBuffer = null;
                         header = null;
                     } else // ...or just returning if we don't have enough bytes yet
@@ -181,7 +338,7 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                             // Initialize the largeReadBuffer with the next message's size and
                             // fill it with any bytes
                             // left in buff
-                            largeReadBuffer = new byte[header.size];
+                            largeReadBuffer = serializer.payloadBuffer(header.size);
                             largeReadBufferPos = buff.remaining();
                             buff.get(largeReadBuffer, 0, largeReadBufferPos);
                         } catch (BufferUnderflowException e1) {
@@ -203,8 +360,8 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     }
                     return buff.position();
                 }
-                // Process our freshly deserialized message
-                processMessage(message);
+                // Hand our freshly deserialized message to a handler thread
+                queueMessage(message);
             }
         } catch (Exception e) {
             exceptionCaught(e);
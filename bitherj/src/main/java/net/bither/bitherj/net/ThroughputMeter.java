@@ -0,0 +1,110 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.bither.bitherj.net;
+
+import com.google.common.base.Ticker;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A running rate of something a connection receives, such as bytes or blocks per second.
+ * Amounts are summed over intervals of about a second, and each interval moves the rate toward
+ * its own rate by an exponentially weighted moving average whose weight depends on how long
+ * the interval was, so irregular and idle stretches count by their length.</p>
+ *
+ * <p>The rate also decays while nothing is recorded, reading it is enough to see a connection
+ * that went quiet.</p>
+ */
+public class ThroughputMeter {
+    private static final long INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final double DEFAULT_TIME_CONSTANT_SECONDS = 10;
+
+    private final double timeConstantSeconds;
+    private final Ticker ticker;
+    private final long startNanos;
+    private long intervalStartNanos;
+    private long intervalAmount;
+    private long total;
+    private double rate;
+
+    public ThroughputMeter() {
+        this(DEFAULT_TIME_CONSTANT_SECONDS);
+    }
+
+    /**
+     * @param timeConstantSeconds how long it takes a change of throughput to move the rate by
+     *                            about two thirds of the difference
+     */
+    public ThroughputMeter(double timeConstantSeconds) {
+        this(timeConstantSeconds, Ticker.systemTicker());
+    }
+
+    /**
+     * @param ticker where the meter reads the time, in nanoseconds
+     */
+    public ThroughputMeter(double timeConstantSeconds, Ticker ticker) {
+        checkArgument(timeConstantSeconds > 0);
+        this.timeConstantSeconds = timeConstantSeconds;
+        this.ticker = ticker;
+        this.startNanos = ticker.read();
+        this.intervalStartNanos = startNanos;
+    }
+
+    public synchronized void record(long amount) {
+        update(ticker.read());
+        intervalAmount += amount;
+        total += amount;
+    }
+
+    /**
+     * @return the average amount per second, weighted toward the last few time constants
+     */
+    public synchronized double getRate() {
+        update(ticker.read());
+        return rate;
+    }
+
+    /**
+     * @return everything recorded since the meter was created
+     */
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return how long the meter has been measuring, its rate means little in the first few
+     * time constants
+     */
+    public long getAgeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(ticker.read() - startNanos);
+    }
+
+    // called with the lock held
+    private void update(long now) {
+        long elapsed = now - intervalStartNanos;
+        if (elapsed < INTERVAL_NANOS) {
+            return;
+        }
+        double seconds = elapsed / (double) TimeUnit.SECONDS.toNanos(1);
+        double alpha = 1 - Math.exp(-seconds / timeConstantSeconds);
+        rate += alpha * (intervalAmount / seconds - rate);
+        intervalAmount = 0;
+        intervalStartNanos = now;
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.bither.bitherj.net;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A hashed timing wheel for the many short timeouts of peer connections. A {@link Timeout} is
+ * created once by its owner and scheduled, moved and cancelled as often as needed, each in
+ * constant time and without allocating. Timeouts fire on the single ticker thread, at most one
+ * tick late, so their tasks must be short and hand anything slow to another thread.</p>
+ *
+ * <p>Every tick the ticker looks at one bucket of the wheel. A timeout further away than a
+ * whole turn stays in its bucket until the turn it is due. When nothing is scheduled the ticker
+ * sleeps until something is.</p>
+ *
+ * <p>A wheel made without a name has no ticker, its time only moves on {@link #advance}, which
+ * fires the timeouts on the calling thread.</p>
+ */
+public class TimingWheel {
+    private static final Logger log = LoggerFactory.getLogger(TimingWheel.class);
+
+    private static final long TICK_MILLIS = 100;
+    // 51.2 seconds a turn, longer than any connection timeout
+    private static final int TICKS_PER_WHEEL = 512;
+
+    private static TimingWheel instance;
+
+    public static synchronized TimingWheel getInstance() {
+        if (instance == null) {
+            instance = new TimingWheel("TimingWheel ticker", TICK_MILLIS, TICKS_PER_WHEEL);
+        }
+        return instance;
+    }
+
+    /**
+     * A task that can be scheduled on one wheel. Its fields belong to the wheel and are guarded
+     * by it.
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        private Timeout prev;
+        private Timeout next;
+        private int bucket = -1;
+        private long deadlineTick;
+
+        public Timeout(Runnable task) {
+            this.task = task;
+        }
+    }
+
+    private final long tickNanos;
+    private final Timeout[] buckets;
+    // the wheel's own time when it has no ticker
+    private final boolean manual;
+    private long manualNanos;
+    private final long startNanos;
+    private long processedTick;
+    private int pendingCount = 0;
+    private long expiredCount = 0;
+
+    public TimingWheel(String name, long tickMillis, int ticksPerWheel) {
+        this(tickMillis, ticksPerWheel, false);
+        Thread ticker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, name);
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /**
+     * A wheel without a ticker, driven by {@link #advance}.
+     */
+    public TimingWheel(long tickMillis, int ticksPerWheel) {
+        this(tickMillis, ticksPerWheel, true);
+    }
+
+    private TimingWheel(long tickMillis, int ticksPerWheel, boolean manual) {
+        checkArgument(tickMillis > 0 && ticksPerWheel > 0);
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.buckets = new Timeout[ticksPerWheel];
+        this.manual = manual;
+        this.startNanos = now();
+        this.processedTick = currentTick(startNanos);
+    }
+
+    /**
+     * Runs the timeout's task in delayMillis, moving it if it was already scheduled.
+     */
+    public synchronized void schedule(Timeout timeout, long delayMillis) {
+        long now = now();
+        if (timeout.bucket >= 0) {
+            unlink(timeout);
+        } else if (pendingCount == 0) {
+            // the ticker was idle, it has no ticks to catch up on
+            processedTick = currentTick(now) - 1;
+        }
+        long deadlineNanos = now - startNanos + TimeUnit.MILLISECONDS.toNanos(Math.max
+                (delayMillis, 0));
+        long deadlineTick = Math.max((deadlineNanos + tickNanos - 1) / tickNanos, processedTick
+                + 1);
+        timeout.deadlineTick = deadlineTick;
+        timeout.bucket = (int) (deadlineTick % buckets.length);
+        timeout.prev = null;
+        timeout.next = buckets[timeout.bucket];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        buckets[timeout.bucket] = timeout;
+        pendingCount++;
+        if (pendingCount == 1) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return false if the timeout was not scheduled, it fired already or was never scheduled
+     */
+    public synchronized boolean cancel(Timeout timeout) {
+        if (timeout.bucket < 0) {
+            return false;
+        }
+        unlink(timeout);
+        return true;
+    }
+
+    public synchronized boolean isScheduled(Timeout timeout) {
+        return timeout.bucket >= 0;
+    }
+
+    /**
+     * Moves the time of a wheel without a ticker on, one tick at a time as a ticker would, and
+     * runs the timeouts due on the calling thread.
+     */
+    public void advance(long millis) {
+        checkState(manual, "the wheel has its own ticker");
+        checkArgument(millis >= 0);
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        long left = TimeUnit.MILLISECONDS.toNanos(millis);
+        while (left > 0) {
+            synchronized (this) {
+                long step = Math.min(left, tickNanos);
+                manualNanos += step;
+                left -= step;
+                expire(tasks);
+            }
+            runTasks(tasks);
+        }
+    }
+
+    /**
+     * @return the timeouts scheduled and not fired yet
+     */
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * @return the timeouts fired since the wheel started
+     */
+    public synchronized long getExpiredCount() {
+        return expiredCount;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        pendingCount--;
+    }
+
+    private long now() {
+        return manual ? manualNanos : System.nanoTime();
+    }
+
+    private long currentTick(long nanos) {
+        return (nanos - startNanos) / tickNanos;
+    }
+
+    private void tick() {
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        while (true) {
+            try {
+                synchronized (this) {
+                    waitForTick();
+                    expire(tasks);
+                }
+                runTasks(tasks);
+            } catch (InterruptedException e) {
+                log.warn("TimingWheel ticker interrupted");
+            }
+        }
+    }
+
+    // called with the lock held
+    private void waitForTick() throws InterruptedException {
+        while (true) {
+            if (pendingCount == 0) {
+                wait();
+                continue;
+            }
+            long now = now();
+            if (currentTick(now) > processedTick) {
+                return;
+            }
+            long nextTickNanos = startNanos + (processedTick + 1) * tickNanos;
+            TimeUnit.NANOSECONDS.timedWait(this, nextTickNanos - now);
+        }
+    }
+
+    private void runTasks(List<Runnable> tasks) {
+        for (Runnable task : tasks) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("Timeout task failed", e);
+            }
+        }
+        tasks.clear();
+    }
+
+    // called with the lock held, adds the tasks of the expired timeouts
+    private void expire(List<Runnable> tasks) {
+        long targetTick = currentTick(now());
+        // after a long pause one visit of every bucket is enough
+        long fromTick = Math.max(processedTick + 1, targetTick - buckets.length + 1);
+        for (long tick = fromTick; tick <= targetTick; tick++) {
+            Timeout timeout = buckets[(int) (tick % buckets.length)];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.deadlineTick <= tick) {
+                    unlink(timeout);
+                    tasks.add(timeout.task);
+                    expiredCount++;
+                }
+                timeout = next;
+            }
+        }
+        processedTick = targetTick;
+    }
+}
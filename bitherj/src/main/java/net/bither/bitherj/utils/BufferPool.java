@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.bither.bitherj.utils;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Direct buffers shared by all connections, in a few size classes. Sockets read into and write
+ * from direct memory anyway, and allocating it for every connection and every outbound message
+ * is slow and leaves the collector to free it. A buffer has one owner from acquire until it hands
+ * it back with release; one that is never released is simply collected.
+ * <p/>
+ * Requests above the largest class get a heap buffer of their own, release ignores those.
+ */
+public class BufferPool {
+    private static final int[] SIZE_CLASSES = new int[]{256, 1024, 4096, 16 * 1024, 64 * 1024};
+    // how many free buffers each class keeps, about 1.3 MB when all are full
+    private static final int[] MAX_FREE = new int[]{64, 32, 16, 8, 8};
+
+    private static BufferPool instance = new BufferPool(SIZE_CLASSES, MAX_FREE);
+
+    public static BufferPool getInstance() {
+        return instance;
+    }
+
+    private final int[] sizeClasses;
+    private final int[] maxFree;
+    private final List<ConcurrentLinkedQueue<ByteBuffer>> free = new
+            ArrayList<ConcurrentLinkedQueue<ByteBuffer>>();
+    private final List<AtomicInteger> freeCounts = new ArrayList<AtomicInteger>();
+
+    public BufferPool(int[] sizeClasses, int[] maxFree) {
+        this.sizeClasses = sizeClasses;
+        this.maxFree = maxFree;
+        for (int i = 0; i < sizeClasses.length; i++) {
+            free.add(new ConcurrentLinkedQueue<ByteBuffer>());
+            freeCounts.add(new AtomicInteger());
+        }
+    }
+
+    /**
+     * @return a cleared buffer of at least size bytes, its limit at its capacity
+     */
+    public ByteBuffer acquire(int size) {
+        int sizeClass = sizeClass(size);
+        if (sizeClass < 0) {
+            return ByteBuffer.allocate(size);
+        }
+        ByteBuffer buffer = free.get(sizeClass).poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(sizeClasses[sizeClass]);
+        }
+        freeCounts.get(sizeClass).decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Hands the buffer back, the caller must not touch it afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        int sizeClass = sizeClass(buffer.capacity());
+        if (sizeClass < 0 || sizeClasses[sizeClass] != buffer.capacity()) {
+            return;
+        }
+        if (freeCounts.get(sizeClass).incrementAndGet() > maxFree[sizeClass]) {
+            freeCounts.get(sizeClass).decrementAndGet();
+            return;
+        }
+        free.get(sizeClass).offer(buffer);
+    }
+
+    private int sizeClass(int size) {
+        for (int i = 0; i < sizeClasses.length; i++) {
+            if (size <= sizeClasses[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes into a pooled buffer, moving to a larger one when it fills up. The buffer it ends up
+     * in belongs to whoever calls {@link #getBuffer()}.
+     */
+    public static class BufferOutputStream extends OutputStream {
+        private final BufferPool pool;
+        private ByteBuffer buffer;
+
+        public BufferOutputStream(BufferPool pool, int expectedSize) {
+            this.pool = pool;
+            this.buffer = pool.acquire(expectedSize);
+        }
+
+        @Override
+        public void write(int b) {
+            ensureRemaining(1);
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureRemaining(len);
+            buffer.put(b, off, len);
+        }
+
+        /**
+         * @return the buffer written so far, its position at the end of the written bytes
+         */
+        public ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        private void ensureRemaining(int count) {
+            if (buffer.remaining() >= count) {
+                return;
+            }
+            ByteBuffer larger = pool.acquire(Math.max(buffer.position() + count, buffer
+                    .capacity() * 2));
+            buffer.flip();
+            larger.put(buffer);
+            pool.release(buffer);
+            buffer = larger;
+        }
+    }
+}
@@ -33,6 +33,7 @@ public class NotificationUtil {
     public static final String ACTION_ADDRESS_BALANCE = "net.bither.bitherj.balance";
     public static final String ACTION_PEER_STATE = "net.bither.bitherj.peer_state";
     public static final String ACTION_ADDRESS_LOAD_COMPLETE_STATE = "net.bither.bitherj.load_complete";
+    public static final String ACTION_ADDRESS_IMPORT_PROGRESS = "net.bither.bitherj.import_progress";
 
 
     public static final String ACTION_PEER_STATE_NUM_PEERS = "num_peers";
@@ -41,6 +42,8 @@ public class NotificationUtil {
     public static final String MESSAGE_ADDRESS = "address";
     public static final String MESSAGE_TX = "tx";
     public static final String MESSAGE_TX_NOTIFICATION_TYPE = "tx_notification_type";
+    public static final String MESSAGE_IMPORTED_TX_COUNT = "imported_tx_count";
+    public static final String MESSAGE_TOTAL_TX_COUNT = "total_tx_count";
 
     public static void sendBroadcastSyncSPVFinished(boolean isFinished) {
         if (isFinished) {
@@ -76,6 +79,14 @@ public class NotificationUtil {
 
     }
 
+    public static void sendBroadcastAddressImportProgress(String address, int importedTxCount, int totalTxCount) {
+        final Intent broadcast = new Intent(ACTION_ADDRESS_IMPORT_PROGRESS);
+        broadcast.putExtra(MESSAGE_ADDRESS, address);
+        broadcast.putExtra(MESSAGE_IMPORTED_TX_COUNT, importedTxCount);
+        broadcast.putExtra(MESSAGE_TOTAL_TX_COUNT, totalTxCount);
+        BitherjApplication.mContext.sendBroadcast(broadcast);
+    }
+
     public static void sendBroadcastPeerState(final int numPeers) {
         final Intent broadcast = new Intent(ACTION_PEER_STATE);
 
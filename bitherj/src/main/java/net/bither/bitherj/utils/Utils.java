@@ -41,6 +41,7 @@ import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -217,6 +218,19 @@ public class Utils {
         }
     }
 
+    /**
+     * Double SHA-256 of the bytes between the buffer's position and limit, which are left as they
+     * are.
+     */
+    public static byte[] doubleDigest(ByteBuffer input) {
+        synchronized (digest) {
+            digest.reset();
+            digest.update(input.duplicate());
+            byte[] first = digest.digest();
+            return digest.digest(first);
+        }
+    }
+
     public static byte[] singleDigest(byte[] input, int offset, int length) {
         synchronized (digest) {
             digest.reset();